@@ -0,0 +1,231 @@
+package com.mikea.decompiler;
+
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class files to benchmark against.
+ * <ul>
+ * <li>{@code synthetic}: generated straight-line and branchy methods, stable across JDKs;</li>
+ * <li>{@code asm}: the ASM classes on the classpath, real compiler output without stack maps;</li>
+ * <li>{@code jdk}: core JDK classes read through the system class loader, rewritten as
+ * Java 5 classes (stack map frames and unknown attributes dropped) since the decompiler
+ * does not handle frames.</li>
+ * </ul>
+ * Classes the decompiler can not handle yet are dropped, so every corpus measures
+ * the successful path only.
+ */
+final class Corpus {
+    private static final String[] ASM_CLASSES = {
+            "org/objectweb/asm/ClassReader",
+            "org/objectweb/asm/ClassWriter",
+            "org/objectweb/asm/MethodWriter",
+            "org/objectweb/asm/Frame",
+            "org/objectweb/asm/Type",
+            "org/objectweb/asm/ByteVector",
+            "org/objectweb/asm/Label",
+            "org/objectweb/asm/tree/MethodNode",
+            "org/objectweb/asm/tree/ClassNode",
+            "org/objectweb/asm/tree/InsnList",
+            "org/objectweb/asm/tree/analysis/Analyzer",
+            "org/objectweb/asm/tree/analysis/BasicInterpreter",
+            "org/objectweb/asm/util/Textifier",
+            "org/objectweb/asm/util/CheckMethodAdapter",
+            "org/objectweb/asm/commons/GeneratorAdapter",
+            "org/objectweb/asm/commons/Remapper",
+    };
+
+    private static final String[] JDK_CLASSES = {
+            "java/lang/Object",
+            "java/lang/Integer",
+            "java/lang/Math",
+            "java/lang/StringBuilder",
+            "java/util/ArrayList",
+            "java/util/HashMap",
+            "java/util/Arrays",
+            "java/util/BitSet",
+            "java/util/zip/CRC32",
+            "java/util/zip/Adler32",
+            "java/util/LinkedList",
+            "java/util/TreeMap",
+            "java/util/ArrayDeque",
+            "java/util/PriorityQueue",
+            "java/util/Random",
+            "java/lang/Long",
+            "java/lang/Character",
+            "java/lang/String",
+            "java/io/DataInputStream",
+            "java/io/BufferedReader",
+            "java/math/BigInteger",
+    };
+
+    private Corpus() {
+    }
+
+    static List<byte[]> load(String name) throws IOException {
+        List<byte[]> classes;
+        if (name.equals("synthetic")) {
+            classes = synthetic(32);
+        } else if (name.equals("asm")) {
+            classes = resources(ASM_CLASSES);
+        } else if (name.equals("jdk")) {
+            classes = new ArrayList<byte[]>();
+            for (byte[] bytes : resources(JDK_CLASSES)) {
+                byte[] downgraded = downgrade(bytes);
+                if (downgraded != null) {
+                    classes.add(downgraded);
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown corpus: " + name);
+        }
+
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (byte[] bytes : classes) {
+            if (decompiles(bytes)) {
+                result.add(bytes);
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IllegalStateException("No decompilable classes in corpus " + name);
+        }
+        return result;
+    }
+
+    private static boolean decompiles(byte[] bytes) {
+        try {
+            JavaSourceWriter writer = new JavaSourceWriter("Corpus", new NullSink());
+            new DecompileVisitor(writer).decompile(new ClassReader(bytes));
+            writer.close();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the class as a Java 5 class without frames, or null if ASM can't read it
+     */
+    private static byte[] downgrade(byte[] bytes) {
+        // ASM 4 refuses newer class versions up front, so patch the major version first
+        bytes = bytes.clone();
+        bytes[6] = 0;
+        bytes[7] = Opcodes.V1_5;
+        try {
+            ClassWriter cw = new ClassWriter(0);
+            new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM4, cw) {
+                @Override
+                public void visitAttribute(Attribute attr) {
+                }
+
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                                 String[] exceptions) {
+                    return new MethodVisitor(Opcodes.ASM4, super.visitMethod(access, name, desc, signature, exceptions)) {
+                        @Override
+                        public void visitAttribute(Attribute attr) {
+                        }
+                    };
+                }
+            }, ClassReader.SKIP_FRAMES);
+            return cw.toByteArray();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static List<byte[]> resources(String[] names) throws IOException {
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (String name : names) {
+            InputStream in = ClassLoader.getSystemResourceAsStream(name + ".class");
+            if (in == null) {
+                continue;
+            }
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+                result.add(out.toByteArray());
+            } finally {
+                in.close();
+            }
+        }
+        return result;
+    }
+
+    static List<byte[]> synthetic(int count) {
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (int i = 0; i < count; ++i) {
+            result.add(syntheticClass("synthetic/Class" + i, 8 + i % 8));
+        }
+        return result;
+    }
+
+    /**
+     * A Java 5 class (no stack map frames) with {@code methods} methods mixing
+     * arithmetic, array access, field access, calls and conditional jumps.
+     */
+    private static byte[] syntheticClass(String name, int methods) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        cw.visitField(Opcodes.ACC_PRIVATE, "count", "I", null, null).visitEnd();
+
+        for (int m = 0; m < methods; ++m) {
+            MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "method" + m, "(I[I)I", null, null);
+            mv.visitCode();
+            Label start = new Label();
+            Label end = new Label();
+            mv.visitLabel(start);
+            for (int i = 0; i < 4 + m; ++i) {
+                mv.visitVarInsn(Opcodes.ILOAD, 1);
+                mv.visitVarInsn(Opcodes.ALOAD, 2);
+                mv.visitVarInsn(Opcodes.ILOAD, 1);
+                mv.visitInsn(Opcodes.IALOAD);
+                mv.visitInsn(Opcodes.IADD);
+                mv.visitIntInsn(Opcodes.BIPUSH, i);
+                mv.visitInsn(Opcodes.IMUL);
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math", "abs", "(I)I");
+                mv.visitVarInsn(Opcodes.ISTORE, 3);
+
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitFieldInsn(Opcodes.GETFIELD, name, "count", "I");
+                mv.visitVarInsn(Opcodes.ILOAD, 3);
+                mv.visitInsn(Opcodes.IADD);
+                mv.visitFieldInsn(Opcodes.PUTFIELD, name, "count", "I");
+
+                Label skip = new Label();
+                mv.visitVarInsn(Opcodes.ILOAD, 3);
+                mv.visitVarInsn(Opcodes.ILOAD, 1);
+                mv.visitJumpInsn(Opcodes.IF_ICMPLE, skip);
+                mv.visitIincInsn(1, 1);
+                mv.visitLabel(skip);
+            }
+            mv.visitVarInsn(Opcodes.ILOAD, 3);
+            mv.visitInsn(Opcodes.IRETURN);
+            mv.visitLabel(end);
+            mv.visitLocalVariable("this", "L" + name + ";", null, start, end, 0);
+            mv.visitLocalVariable("x", "I", null, start, end, 1);
+            mv.visitLocalVariable("values", "[I", null, start, end, 2);
+            mv.visitLocalVariable("y", "I", null, start, end, 3);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
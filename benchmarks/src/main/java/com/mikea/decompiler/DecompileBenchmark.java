@@ -0,0 +1,56 @@
+package com.mikea.decompiler;
+
+import org.objectweb.asm.ClassReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-class throughput of the whole pipeline: {@link ClassReader}, {@link DecompileVisitor},
+ * the evaluator and {@link JavaSourceWriter}, without output I/O. Every invocation
+ * decompiles the next class of the corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecompileBenchmark {
+    @Param({"synthetic", "asm", "jdk"})
+    public String corpus;
+
+    private final SourceSink sink = new NullSink();
+    private byte[][] classes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<byte[]> loaded = Corpus.load(corpus);
+        classes = loaded.toArray(new byte[loaded.size()][]);
+    }
+
+    @Benchmark
+    public JavaSourceWriter decompileClass() throws IOException {
+        byte[] bytes = classes[next];
+        next = next + 1 == classes.length ? 0 : next + 1;
+
+        JavaSourceWriter writer = new JavaSourceWriter("Benchmark", sink);
+        new DecompileVisitor(writer).decompile(new ClassReader(bytes));
+        writer.close();
+        return writer;
+    }
+}
@@ -0,0 +1,66 @@
+package com.mikea.decompiler;
+
+import org.objectweb.asm.Type;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the operand stack bookkeeping done per instruction.
+ * Run with the GC profiler to see the allocation rate:
+ * <pre>
+ *   java -jar target/benchmarks.jar EvaluatorBenchmark -prof gc
+ * </pre>
+ * and compare {@code gc.alloc.rate.norm} between revisions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluatorBenchmark {
+    private static final int INSTRUCTIONS = 1000;
+
+    private static final Template ADD = Template.compile("{0} + {1}");
+    private static final Template ARRAY_LOAD = Template.compile("{0}[{1}]");
+    private static final Template MUL = Template.compile("{0} * {1}");
+    private static final Template STORE_DIFFERENCE = Template.compile("x = {0} - {1}");
+
+    private final SourceSink sink = new NullSink();
+
+    /**
+     * A straight-line method body: loads, arithmetic, array access, calls and stores.
+     * Scores are per evaluator operation.
+     */
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public Evaluator method() throws IOException {
+        JavaSourceWriter writer = new JavaSourceWriter("Benchmark", sink);
+        Evaluator evaluator = new Evaluator(writer);
+        for (int i = 0; i < INSTRUCTIONS; i += 10) {
+            evaluator.load("a", Type.INT_TYPE);
+            evaluator.load("b", Type.INT_TYPE);
+            evaluator.expr2(ADD, Type.INT_TYPE);
+            evaluator.load("array", Type.getType("[I"));
+            evaluator.load("i", Type.INT_TYPE);
+            evaluator.expr2(ARRAY_LOAD, Type.INT_TYPE);
+            evaluator.expr2(MUL, Type.INT_TYPE);
+            evaluator.dup();
+            evaluator.staticCall("java/lang/Math.abs", 1, Type.INT_TYPE);
+            evaluator.stmt2(STORE_DIFFERENCE);
+        }
+        writer.close();
+        return evaluator;
+    }
+}
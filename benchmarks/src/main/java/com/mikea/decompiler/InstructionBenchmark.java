@@ -0,0 +1,106 @@
+package com.mikea.decompiler;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link EvaluateMethodVisitor} and {@link Evaluator} per bytecode instruction.
+ * Methods are parsed once up front; each invocation replays one of them, and the
+ * {@code instructions} counter reports the instruction rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstructionBenchmark {
+    @Param({"synthetic", "asm", "jdk"})
+    public String corpus;
+
+    private final SourceSink sink = new NullSink();
+    private final List<MethodNode> methods = new ArrayList<MethodNode>();
+    private final List<MethodInfo> infos = new ArrayList<MethodInfo>();
+    private int next;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        for (byte[] bytes : Corpus.load(corpus)) {
+            ClassNode classNode = new ClassNode();
+            new ClassReader(bytes).accept(classNode, 0);
+            for (Object o : classNode.methods) {
+                MethodNode method = (MethodNode) o;
+                if (method.instructions.size() == 0) {
+                    continue;
+                }
+                MethodInfo info = new MethodInfo(classNode.name, method.maxLocals);
+                if (method.localVariables != null) {
+                    Map<LabelNode, Integer> positions = new IdentityHashMap<LabelNode, Integer>();
+                    int position = 0;
+                    for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+                        if (insn instanceof LabelNode) {
+                            positions.put((LabelNode) insn, ++position);
+                        }
+                    }
+                    for (Object local : method.localVariables) {
+                        LocalVariableNode variable = (LocalVariableNode) local;
+                        info.addVar(variable.index, variable.name, Type.getType(variable.desc),
+                                positions.get(variable.start), positions.get(variable.end));
+                    }
+                }
+                methods.add(method);
+                infos.add(info);
+            }
+        }
+    }
+
+    @Benchmark
+    public Evaluator evaluateMethod(Counters counters) throws IOException {
+        MethodNode method = methods.get(next);
+        MethodInfo info = infos.get(next);
+        next = next + 1 == methods.size() ? 0 : next + 1;
+
+        JavaSourceWriter writer = new JavaSourceWriter("Benchmark", sink);
+        Evaluator evaluator = new Evaluator(writer);
+        method.accept(new EvaluateMethodVisitor(evaluator, info, writer));
+        writer.close();
+        counters.instructions += method.instructions.size();
+        return evaluator;
+    }
+}
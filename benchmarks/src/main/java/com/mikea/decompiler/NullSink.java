@@ -0,0 +1,14 @@
+package com.mikea.decompiler;
+
+/**
+ * Discards everything, so benchmarks measure decompilation rather than I/O.
+ */
+class NullSink implements SourceSink {
+    @Override
+    public void write(String className, CharSequence source) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
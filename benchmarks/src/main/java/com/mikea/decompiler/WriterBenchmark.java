@@ -0,0 +1,106 @@
+package com.mikea.decompiler;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link JavaSourceWriter} and the sinks behind it. Each invocation writes
+ * one class of {@link #METHODS} methods; the {@code chars} counter reports the output rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriterBenchmark {
+    private static final int METHODS = 20;
+    private static final int STATEMENTS = 50;
+
+    @Param({"null", "zip", "directory"})
+    public String sinkType;
+
+    private File output;
+    private SourceSink sink;
+    private int classes;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long chars;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            chars = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (sinkType.equals("null")) {
+            sink = new NullSink();
+        } else if (sinkType.equals("zip")) {
+            output = File.createTempFile("writer-benchmark", ".jar");
+            sink = new ZipSink(output);
+        } else {
+            output = File.createTempFile("writer-benchmark", "");
+            output.delete();
+            sink = new DirectorySink(output, false);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sink.close();
+        if (output != null) {
+            delete(output);
+        }
+    }
+
+    @Benchmark
+    public JavaSourceWriter writeClass(Counters counters) throws IOException {
+        // Zip entries must be unique; directory output overwrites a bounded set of files.
+        String className = "benchmark.Class" + (sinkType.equals("zip") ? classes++ : classes++ % 100);
+        JavaSourceWriter writer = new JavaSourceWriter(className, sink);
+        writer.writePackage("benchmark");
+        writer.startClass(className);
+        writer.writeField("count", "I");
+        for (int m = 0; m < METHODS; ++m) {
+            writer.startMethod("method" + m);
+            for (int s = 0; s < STATEMENTS; ++s) {
+                writer.writeStatement("local1 = java.lang.Math.abs(local2 + values[local2] * 3)");
+            }
+            writer.endMethod();
+        }
+        writer.endClass();
+        counters.chars += writer.getSource().length();
+        writer.close();
+        return writer;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
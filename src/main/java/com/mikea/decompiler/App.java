@@ -2,35 +2,383 @@ package com.mikea.decompiler;
 
 import org.objectweb.asm.ClassReader;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 public class App {
     public static void main(String[] args) throws IOException {
-        JarFile jarFile = new JarFile(args[0]);
-        Enumeration<JarEntry> entries = jarFile.entries();
-        while (entries.hasMoreElements()) {
-            JarEntry jarEntry = entries.nextElement();
-            decompile(jarFile, jarEntry);
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> inputs = new ArrayList<String>();
+        String outDir = "out";
+        boolean nio = false;
+        boolean threadPerClass = false;
+        String cacheDir = null;
+        long cacheSize = 512;
+        int budgetInstructions = 30000;
+        long budgetMillis = 2000;
+        long memory = 256;
+        String metricsFile = null;
+        String failuresFile = null;
+        ClassFilter filter = new ClassFilter();
+        boolean daemon = false;
+        int port = 0;
+        long daemonMemory = 64;
+        String lookupClass = null;
+        String indexDir = new File(System.getProperty("java.io.tmpdir"), "decompiler-index").getPath();
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("-j") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-o") && i + 1 < args.length) {
+                outDir = args[++i];
+            } else if (args[i].equals("-cache") && i + 1 < args.length) {
+                cacheDir = args[++i];
+            } else if (args[i].equals("-cache-size") && i + 1 < args.length) {
+                cacheSize = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-method-budget-insns") && i + 1 < args.length) {
+                budgetInstructions = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-method-budget-ms") && i + 1 < args.length) {
+                budgetMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-memory") && i + 1 < args.length) {
+                memory = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-metrics") && i + 1 < args.length) {
+                metricsFile = args[++i];
+            } else if (args[i].equals("-failures") && i + 1 < args.length) {
+                failuresFile = args[++i];
+            } else if (args[i].equals("-include") && i + 1 < args.length) {
+                filter.includeGlob(args[++i]);
+            } else if (args[i].equals("-exclude") && i + 1 < args.length) {
+                filter.excludeGlob(args[++i]);
+            } else if (args[i].equals("-include-regex") && i + 1 < args.length) {
+                filter.includeRegex(args[++i]);
+            } else if (args[i].equals("-exclude-regex") && i + 1 < args.length) {
+                filter.excludeRegex(args[++i]);
+            } else if (args[i].equals("-references") && i + 1 < args.length) {
+                filter.referencing(args[++i]);
+            } else if (args[i].equals("-daemon")) {
+                daemon = true;
+            } else if (args[i].equals("-port") && i + 1 < args.length) {
+                daemon = true;
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-daemon-memory") && i + 1 < args.length) {
+                daemonMemory = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-class") && i + 1 < args.length) {
+                lookupClass = args[++i];
+            } else if (args[i].equals("-index") && i + 1 < args.length) {
+                indexDir = args[++i];
+            } else if (args[i].equals("-thread-per-class")) {
+                threadPerClass = true;
+            } else if (args[i].equals("-nio")) {
+                nio = true;
+            } else {
+                inputs.add(args[i]);
+            }
         }
+        if (inputs.isEmpty() && !daemon) {
+            System.err.println("usage: App [-j threads] [-thread-per-class] [-o dir|sources.jar] [-nio] [-cache dir]"
+                    + " [-cache-size MB] [-memory MB] [-method-budget-insns N] [-method-budget-ms N] [-metrics file.json]"
+                    + " [-failures file.json]"
+                    + " [-include glob] [-exclude glob] [-include-regex re] [-exclude-regex re] [-references class]"
+                    + " file.jar|dir...");
+            System.err.println("       App -daemon|-port N [-daemon-memory MB] [-cache dir] [-cache-size MB]"
+                    + " [-method-budget-insns N] [-method-budget-ms N] [file.jar|dir...]");
+            System.err.println("       App -class name [-index dir] [-cache dir] [-cache-size MB]"
+                    + " [-method-budget-insns N] [-method-budget-ms N] file.jar|dir...");
+            System.exit(1);
+        }
+        if (lookupClass != null) {
+            boolean found = runLookup(inputs, lookupClass, new File(indexDir),
+                    cacheDir == null ? null : new DecompileCache(new File(cacheDir), cacheSize * 1024 * 1024),
+                    new MethodBudget(budgetInstructions, budgetMillis));
+            System.exit(found ? 0 : 1);
+        }
+        if (daemon) {
+            runDaemon(inputs, port, daemonMemory,
+                    cacheDir == null ? null : new DecompileCache(new File(cacheDir), cacheSize * 1024 * 1024),
+                    new MethodBudget(budgetInstructions, budgetMillis));
+            return;
+        }
+
+        Metrics.register();
+        FailureReport failures = new FailureReport();
+        ClassPath classPath = new ClassPath();
+        classPath.setFailureReport(failures);
+        for (String input : inputs) {
+            classPath.add(new File(input));
+        }
+        // the hierarchy still sees every class, filtered out or not
+        List<ClassEntry> classEntries = filter.filter(classPath.entries());
+        ClassHierarchy hierarchy = new ClassHierarchy(classPath);
+
+        DecompileCache cache = cacheDir == null ? null : new DecompileCache(new File(cacheDir), cacheSize * 1024 * 1024);
+
+        MethodBudget budget = new MethodBudget(budgetInstructions, budgetMillis);
+
+        boolean zip = outDir.endsWith(".jar") || outDir.endsWith(".zip");
+        SourceSink sink = zip ? new ZipSink(new File(outDir)) : new DirectorySink(new File(outDir), nio);
+        long start = System.nanoTime();
+        try {
+            if (threads <= 1) {
+                for (ClassEntry classEntry : classEntries) {
+                    decompile(classEntry, sink, cache, budget, hierarchy, filter, failures);
+                }
+            } else {
+                ParallelDecompiler decompiler = new ParallelDecompiler(sink, threads, zip, cache, budget,
+                        hierarchy, memory * 1024 * 1024);
+                decompiler.setFilter(filter.needsBytes() ? filter : null);
+                decompiler.setFailureReport(failures);
+                decompiler.setThreadPerClass(threadPerClass);
+                if (threadPerClass) {
+                    System.err.println(ParallelDecompiler.hasVirtualThreads() ? "a virtual thread per class"
+                            : "a thread per class (no virtual threads in this runtime)");
+                }
+                decompiler.decompile(classEntries);
+                System.err.println(String.format("pipeline: at most %d KB of classes and sources in flight",
+                        decompiler.getPeakMemory() / 1024));
+            }
+        } finally {
+            sink.close();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double seconds = elapsed / 1e9;
+        int decompiled = classEntries.size() - filter.getSkippedByReference();
+        System.err.println(String.format("decompiled %d classes in %.3f s (%.1f classes/sec, %d threads)",
+                decompiled, seconds, decompiled / Math.max(seconds, 1e-9), Math.max(threads, 1)));
+        if (!filter.isEmpty()) {
+            System.err.println(String.format("filter: skipped %d classes by name, %d by references",
+                    filter.getSkippedByName(), filter.getSkippedByReference()));
+        }
+        if (cache != null) {
+            System.err.println(cache);
+        }
+        if (!budget.getOverruns().isEmpty()) {
+            System.err.println(budget.report());
+        }
+        if (!failures.isEmpty()) {
+            System.err.println(failures.report());
+        }
+        if (failuresFile != null) {
+            failures.writeJson(new File(failuresFile));
+        }
+        if (metricsFile != null) {
+            Metrics.writeJson(new File(metricsFile));
+        }
+        if (classPath.getDuplicateCount() > 0) {
+            System.err.println(String.format("skipped %d duplicate classes", classPath.getDuplicateCount()));
+        }
+        classPath.close();
+    }
+
+    /**
+     * Serves requests on stdin/stdout, or on {@code port} if not 0. The {@code inputs} are
+     * opened as one class path up front and a few of their classes decompiled, so that
+     * the first requests do not pay for JIT compilation.
+     */
+    private static void runDaemon(List<String> inputs, int port, long memory, DecompileCache cache,
+                                  MethodBudget budget) throws IOException {
+        // two bytes a char
+        Daemon daemon = new Daemon(cache, budget, memory * 1024 * 1024 / 2);
+        if (!inputs.isEmpty()) {
+            StringBuilder classPath = new StringBuilder();
+            for (String input : inputs) {
+                if (classPath.length() > 0) {
+                    classPath.append(File.pathSeparatorChar);
+                }
+                classPath.append(input);
+            }
+            long start = System.nanoTime();
+            daemon.warmUp(classPath.toString(), 200);
+            System.err.println(String.format("daemon: warmed up in %.3f s", (System.nanoTime() - start) / 1e9));
+        }
+        if (port != 0) {
+            daemon.serve(port);
+        } else {
+            daemon.serve(System.in, System.out);
+        }
+    }
+
+    /**
+     * Writes the source of {@code className} and of its nested classes to stdout.
+     *
+     * @return false if the class was not found
+     */
+    private static boolean runLookup(List<String> inputs, String className, File indexDir, DecompileCache cache,
+                                     MethodBudget budget) throws IOException {
+        List<File> files = new ArrayList<File>();
+        for (String input : inputs) {
+            files.add(new File(input));
+        }
+        ClassLookup lookup = new ClassLookup(files, indexDir);
+        try {
+            final PrintStream out = System.out;
+            SourceSink sink = new SourceSink() {
+                @Override
+                public void write(String className, CharSequence source) {
+                    out.print(source);
+                }
+
+                @Override
+                public void close() {
+                    out.flush();
+                }
+            };
+            FailureReport failures = new FailureReport();
+            int classes = decompileClass(lookup, className, sink, cache, budget, failures);
+            sink.close();
+            if (classes == 0) {
+                System.err.println("class not found: " + className);
+                return false;
+            }
+            if (!failures.isEmpty()) {
+                System.err.println(failures.report());
+            }
+            return true;
+        } finally {
+            lookup.close();
+        }
+    }
+
+    /**
+     * Decompiles one class and its nested classes, found through {@code lookup} rather than
+     * by listing the class path, see {@link ClassLookup#findWithNested(String)}.
+     *
+     * @param className dotted or internal class name
+     * @return the number of classes decompiled, 0 if the class was not found
+     */
+    static int decompileClass(ClassLookup lookup, String className, SourceSink sink, DecompileCache cache,
+                              MethodBudget budget, FailureReport failures) throws IOException {
+        ClassHierarchy hierarchy = new ClassHierarchy(lookup);
+        List<ClassEntry> entries = lookup.findWithNested(className.replace('.', '/'));
+        for (ClassEntry entry : entries) {
+            decompile(entry, sink, cache, budget, hierarchy, null, failures);
+        }
+        return entries.size();
     }
 
-    private static void decompile(JarFile jarFile, JarEntry jarEntry) throws IOException {
-        String name = jarEntry.getName();
+    /**
+     * Reads and decompiles one class file, see {@link #decompile(String, ClassBuffer, SourceSink, DecompileCache,
+     * MethodBudget, ClassHierarchy, FailureReport)}, unless {@code filter} turns it down.
+     *
+     * @param filter   checked against the class bytes, or null to decompile the class anyway
+     * @param failures where a class that can not be read is recorded and skipped, or null
+     *                 to throw
+     */
+    static void decompile(ClassEntry classEntry, SourceSink sink, DecompileCache cache, MethodBudget budget,
+                          ClassHierarchy hierarchy, ClassFilter filter, FailureReport failures) throws IOException {
+        String name = classEntry.getName();
         if (!name.endsWith(".class")) {
             return;
         }
 
-        String className = name.substring(0, name.length() - ".class".length()).replaceAll("/", ".");
+        ClassBuffer buffer = ClassBuffer.acquire();
+        try {
+            long start = System.nanoTime();
+            try {
+                classEntry.read(buffer);
+            } catch (IOException e) {
+                if (failures == null) {
+                    throw e;
+                }
+                failures.record(className(name), null, e);
+                return;
+            }
+            Metrics.time(Metrics.Phase.READ, System.nanoTime() - start);
 
-        JavaSourceWriter writer = new JavaSourceWriter(className);
+            if (filter != null && !filter.acceptsBytes(buffer.bytes(), buffer.length())) {
+                return;
+            }
+            decompile(className(name), buffer, sink, cache, budget, hierarchy, failures);
+        } finally {
+            ClassBuffer.release(buffer);
+        }
+    }
+
+    /**
+     * @return the dotted name of the class in class file {@code name}
+     */
+    static String className(String name) {
+        return name.substring(0, name.length() - ".class".length()).replaceAll("/", ".");
+    }
+
+    /**
+     * @param buffer the class bytes
+     * @param cache  cache of generated sources, or null; only classes that decompile
+     *               without errors or bytecode listings are stored, keyed by the class
+     *               bytes and the hierarchy they were decompiled against. Not used with a
+     *               hierarchy without a fingerprint. A source that can not be stored is
+     *               still written, and the error is recorded like a failing class.
+     * @param budget    limits on a single method, or null for none
+     * @param hierarchy supertypes of the classes being decompiled, or null if unknown
+     * @param failures  where failing classes and methods are recorded, or null to throw if
+     *                  the class fails; a failing class is written as an empty stub
+     */
+    static void decompile(String className, ClassBuffer buffer, SourceSink sink, DecompileCache cache,
+                          MethodBudget budget, ClassHierarchy hierarchy, FailureReport failures) throws IOException {
+        String key = null;
+        byte[] fingerprint = hierarchy != null ? hierarchy.getFingerprint() : null;
+        if (cache != null && (hierarchy == null || fingerprint != null)) {
+            key = cache.key(buffer.bytes(), buffer.length(), fingerprint);
+            String source = cache.get(key);
+            if (source != null) {
+                long start = System.nanoTime();
+                sink.write(className, source);
+                Metrics.time(Metrics.Phase.WRITE, System.nanoTime() - start);
+                return;
+            }
+        }
 
-        ClassReader reader = new ClassReader(jarFile.getInputStream(jarEntry));
-        DecompileVisitor decompileVisitor = new DecompileVisitor(writer);
-        decompileVisitor.decompile(reader);
+        JavaSourceWriter writer = new JavaSourceWriter(className, sink);
+        try {
+            ClassReader reader = new ClassReader(buffer.bytes(), 0, buffer.length());
+            DecompileVisitor decompileVisitor = new DecompileVisitor(writer, budget, hierarchy, failures);
+            decompileVisitor.decompile(reader);
+            if (key != null && decompileVisitor.getListingCount() == 0) {
+                try {
+                    cache.put(key, writer.getSource());
+                } catch (IOException e) {
+                    if (failures == null) {
+                        throw e;
+                    }
+                    failures.record(className, null, e);
+                }
+            }
+        } catch (RuntimeException e) {
+            if (failures == null) {
+                throw e;
+            }
+            writeStub(writer, className, e);
+            failures.record(className, null, e);
+        } catch (StackOverflowError e) {
+            if (failures == null) {
+                throw e;
+            }
+            writeStub(writer, className, e);
+            failures.record(className, null, e);
+        } finally {
+            long start = System.nanoTime();
+            writer.close();
+            Metrics.time(Metrics.Phase.WRITE, System.nanoTime() - start);
+        }
+    }
 
-        writer.close();
+    /**
+     * Replaces whatever was written for a failed class with an empty class saying why.
+     */
+    private static void writeStub(JavaSourceWriter writer, String className, Throwable cause) {
+        writer.clear();
+        int dot = className.lastIndexOf('.');
+        if (dot >= 0) {
+            writer.writePackage(className.substring(0, dot));
+        }
+        writer.writeComment("decompilation failed: " + cause);
+        StackTraceElement[] trace = cause.getStackTrace();
+        if (trace.length > 0) {
+            writer.writeComment("    at " + trace[0]);
+        }
+        writer.startClass(className.substring(dot + 1));
+        writer.endClass();
     }
 }
@@ -0,0 +1,85 @@
+package com.mikea.decompiler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reusable holder for the bytes of one class file, with the scratch space and
+ * {@link Inflater} needed to read it from a {@link MappedJar}. Buffers only grow, and are
+ * recycled through {@link #acquire()}/{@link #release(ClassBuffer)}, so steady-state reading
+ * does not allocate. A buffer must not be released while a ClassReader still uses its bytes.
+ */
+public class ClassBuffer {
+    private static final ConcurrentLinkedQueue<ClassBuffer> POOL = new ConcurrentLinkedQueue<ClassBuffer>();
+    private static final int INITIAL_SIZE = 16 * 1024;
+
+    private final byte[] header = new byte[30];
+    private final Inflater inflater = new Inflater(true);
+    private byte[] data = new byte[INITIAL_SIZE];
+    private byte[] input = new byte[INITIAL_SIZE];
+    private int length;
+
+    public static ClassBuffer acquire() {
+        ClassBuffer buffer = POOL.poll();
+        return buffer != null ? buffer : new ClassBuffer();
+    }
+
+    public static void release(ClassBuffer buffer) {
+        buffer.length = 0;
+        POOL.offer(buffer);
+    }
+
+    /**
+     * @return the class bytes; only the first {@link #length()} bytes are valid
+     */
+    public byte[] bytes() {
+        return data;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    void setLength(int length) {
+        this.length = length;
+    }
+
+    byte[] header() {
+        return header;
+    }
+
+    byte[] data(int size) {
+        if (data.length < size) {
+            data = new byte[Math.max(size, data.length * 2)];
+        }
+        return data;
+    }
+
+    /**
+     * Raw deflate needs one dummy byte after the compressed data, hence the extra slot.
+     */
+    byte[] input(int size) {
+        if (input.length < size + 1) {
+            input = new byte[Math.max(size + 1, input.length * 2)];
+        }
+        input[size] = 0;
+        return input;
+    }
+
+    void inflate(int compressedSize, int size) throws DataFormatException {
+        inflater.reset();
+        inflater.setInput(input, 0, compressedSize + 1);
+        int total = 0;
+        while (total < size) {
+            int n = inflater.inflate(data, total, size - total);
+            if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                break;
+            }
+            total += n;
+        }
+        if (total != size) {
+            throw new DataFormatException("Inflated " + total + " bytes, expected " + size);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.mikea.decompiler;
+
+import java.io.IOException;
+
+/**
+ * A class file to decompile, wherever it is stored: in a jar, in a jar nested in a jar,
+ * or in a directory. See {@link ClassPath}.
+ */
+public interface ClassEntry {
+    /**
+     * @return the class file name relative to the class path root, e.g. {@code java/lang/String.class}
+     */
+    String getName();
+
+    /**
+     * @return the size of the class file in bytes
+     */
+    long getSize();
+
+    /**
+     * Reads the class file into {@code buffer}. Safe to call from several threads at once.
+     */
+    void read(ClassBuffer buffer) throws IOException;
+}
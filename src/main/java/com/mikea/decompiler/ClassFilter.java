@@ -0,0 +1,251 @@
+package com.mikea.decompiler;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Chooses the classes to decompile. Name patterns are checked against the entry name
+ * alone, so classes they leave out are never read or inflated. Reference filters need the
+ * class bytes, but only walk the constant pool: a class references {@code X} if one of its
+ * constant pool strings is {@code X}'s internal name or mentions it as {@code LX;}, which
+ * covers class constants, descriptors and generic signatures.
+ * <p>
+ * A class is decompiled if it matches an include pattern (or there are none), matches no
+ * exclude pattern, and references one of the given classes (or none were given).
+ * <p>
+ * Globs match dotted class names: {@code *} and {@code ?} stay within a package,
+ * {@code **} crosses packages, so {@code com.foo.*} is the classes of {@code com.foo}
+ * and {@code com.foo.**} also those of its subpackages.
+ */
+public class ClassFilter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<Pattern> includes = new ArrayList<Pattern>();
+    private final List<Pattern> excludes = new ArrayList<Pattern>();
+    private final List<byte[]> references = new ArrayList<byte[]>();
+    private final List<byte[]> descriptors = new ArrayList<byte[]>();
+    private final AtomicInteger skippedByName = new AtomicInteger();
+    private final AtomicInteger skippedByReference = new AtomicInteger();
+
+    public ClassFilter includeGlob(String glob) {
+        includes.add(globToPattern(glob));
+        return this;
+    }
+
+    public ClassFilter excludeGlob(String glob) {
+        excludes.add(globToPattern(glob));
+        return this;
+    }
+
+    public ClassFilter includeRegex(String regex) {
+        includes.add(Pattern.compile(regex));
+        return this;
+    }
+
+    public ClassFilter excludeRegex(String regex) {
+        excludes.add(Pattern.compile(regex));
+        return this;
+    }
+
+    /**
+     * Only decompiles classes referencing {@code className}, or any other class given here.
+     */
+    public ClassFilter referencing(String className) {
+        String internalName = className.replace('.', '/');
+        references.add(internalName.getBytes(UTF8));
+        descriptors.add(("L" + internalName + ";").getBytes(UTF8));
+        return this;
+    }
+
+    /**
+     * @return whether the filter keeps every class
+     */
+    public boolean isEmpty() {
+        return includes.isEmpty() && excludes.isEmpty() && references.isEmpty();
+    }
+
+    /**
+     * @return whether {@link #acceptsBytes} can turn classes down
+     */
+    public boolean needsBytes() {
+        return !references.isEmpty();
+    }
+
+    /**
+     * @return the entries whose names pass the include and exclude patterns
+     */
+    public List<ClassEntry> filter(List<ClassEntry> entries) {
+        if (includes.isEmpty() && excludes.isEmpty()) {
+            return entries;
+        }
+        List<ClassEntry> result = new ArrayList<ClassEntry>();
+        for (ClassEntry entry : entries) {
+            if (acceptsName(App.className(entry.getName()))) {
+                result.add(entry);
+            } else {
+                skippedByName.incrementAndGet();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param className dotted class name
+     */
+    public boolean acceptsName(String className) {
+        if (!includes.isEmpty() && !matchesAny(includes, className)) {
+            return false;
+        }
+        return !matchesAny(excludes, className);
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String className) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(className).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the class in the first {@code length} bytes of {@code bytes}
+     * references one of the classes given to {@link #referencing}; true if none were given
+     * or the constant pool can not be walked
+     */
+    public boolean acceptsBytes(byte[] bytes, int length) {
+        if (references.isEmpty()) {
+            return true;
+        }
+        if (scanConstantPool(bytes, length)) {
+            return true;
+        }
+        skippedByReference.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return the number of classes left out by their names so far
+     */
+    public int getSkippedByName() {
+        return skippedByName.get();
+    }
+
+    /**
+     * @return the number of classes read and left out because they reference none of the
+     * classes asked for
+     */
+    public int getSkippedByReference() {
+        return skippedByReference.get();
+    }
+
+    private boolean scanConstantPool(byte[] b, int length) {
+        if (length < 10) {
+            return true;
+        }
+        int count = readUnsignedShort(b, 8);
+        int offset = 10;
+        for (int i = 1; i < count; ++i) {
+            if (offset >= length) {
+                return true;
+            }
+            int tag = b[offset] & 0xFF;
+            switch (tag) {
+                case 1: { // Utf8
+                    if (offset + 3 > length) {
+                        return true;
+                    }
+                    int size = readUnsignedShort(b, offset + 1);
+                    int start = offset + 3;
+                    if (start + size > length) {
+                        return true;
+                    }
+                    if (mentionsReference(b, start, size)) {
+                        return true;
+                    }
+                    offset = start + size;
+                    break;
+                }
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    offset += 3;
+                    break;
+                case 15: // MethodHandle
+                    offset += 4;
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    offset += 5;
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    offset += 9;
+                    ++i;
+                    break;
+                default:
+                    // not a constant pool we understand; let the decompiler have a look
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean mentionsReference(byte[] b, int start, int size) {
+        for (int i = 0; i < references.size(); ++i) {
+            byte[] name = references.get(i);
+            if (size == name.length && regionMatches(b, start, name)) {
+                return true;
+            }
+            byte[] descriptor = descriptors.get(i);
+            for (int at = start, end = start + size - descriptor.length; at <= end; ++at) {
+                if (b[at] == 'L' && regionMatches(b, at, descriptor)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionMatches(byte[] b, int start, byte[] expected) {
+        for (int i = 0; i < expected.length; ++i) {
+            if (b[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readUnsignedShort(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); ++i) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                ++i;
+            } else if (c == '*') {
+                regex.append("[^.]*");
+            } else if (c == '?') {
+                regex.append("[^.]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
@@ -0,0 +1,441 @@
+package com.mikea.decompiler;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Supertypes and member signatures of the classes on a {@link ClassPath} (or found by a
+ * {@link ClassLookup}), and of the platform classes they build on. A class is looked at
+ * the first time it is asked about, and then only its header: the class file is parsed
+ * without code, debug information or frames. Names are shared between all the classes
+ * that mention them, and every class gets an int id so that its supertypes can be kept as
+ * a sorted id array.
+ * <p>
+ * Safe for concurrent use. Two threads asking about the same new class may both parse
+ * it; one of the results is kept.
+ */
+public class ClassHierarchy {
+    private static final String OBJECT = "java/lang/Object";
+    private static final int READER_FLAGS = ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+    private static final String[] NONE = new String[0];
+    /**
+     * Ancestors of every array type besides {@code Object}.
+     */
+    private static final String[] ARRAY_SUPERTYPES = {"java/lang/Cloneable", "java/io/Serializable"};
+
+    private final Map<String, ClassEntry> entries = new HashMap<String, ClassEntry>();
+    /**
+     * Where classes are looked up instead of in {@link #entries}, or null.
+     */
+    private final ClassLookup lookup;
+    /**
+     * The class path the hierarchy was built from, or null.
+     */
+    private final ClassPath classPath;
+    private volatile byte[] fingerprint;
+    private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<String, String>();
+    private final ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Node missing = new Node(-1, null, 0, null, NONE, NONE, NONE, NONE);
+
+    public ClassHierarchy(ClassPath classPath) {
+        this.lookup = null;
+        this.classPath = classPath;
+        for (ClassEntry entry : classPath.entries()) {
+            String name = entry.getName();
+            entries.put(name.substring(0, name.length() - ".class".length()), entry);
+        }
+    }
+
+    /**
+     * A hierarchy that looks up each class it needs, for when only a few classes are
+     * decompiled.
+     */
+    public ClassHierarchy(ClassLookup lookup) {
+        this.lookup = lookup;
+        this.classPath = null;
+    }
+
+    /**
+     * @return a hash of everything the answers depend on, the class path and the platform,
+     * or null if that can not be told cheaply (a hierarchy built from a {@link ClassLookup})
+     */
+    public byte[] getFingerprint() {
+        if (classPath == null) {
+            return null;
+        }
+        byte[] result = fingerprint;
+        if (result == null) {
+            byte[] classPathFingerprint = classPath.getFingerprint();
+            byte[] platform = System.getProperty("java.version", "").getBytes(Charset.forName("UTF-8"));
+            result = Arrays.copyOf(classPathFingerprint, classPathFingerprint.length + platform.length);
+            System.arraycopy(platform, 0, result, classPathFingerprint.length, platform.length);
+            fingerprint = result;
+        }
+        return result;
+    }
+
+    /**
+     * @param name internal class name
+     * @return the class file on the class path, or null
+     */
+    ClassEntry getEntry(String name) {
+        return lookup != null ? lookup.find(name) : entries.get(name);
+    }
+
+    /**
+     * @param name internal class name, e.g. {@code java/lang/String}
+     * @return whether the class could be found, on the class path or in the platform
+     */
+    public boolean contains(String name) {
+        return node(name) != missing;
+    }
+
+    /**
+     * @return the internal name of the superclass, or null for {@code Object}, interfaces
+     * without a superclass and unknown classes
+     */
+    public String getSuperclass(String name) {
+        return node(name).superName;
+    }
+
+    /**
+     * @return the internal names of the directly implemented interfaces
+     */
+    public List<String> getInterfaces(String name) {
+        return Arrays.asList(node(name).interfaces.clone());
+    }
+
+    public boolean isInterface(String name) {
+        return (node(name).access & Opcodes.ACC_INTERFACE) != 0;
+    }
+
+    /**
+     * @return whether {@code name} is {@code superName}, or extends or implements it,
+     * possibly indirectly; false if that can not be told because a class is unknown
+     */
+    public boolean isSubtype(String name, String superName) {
+        if (name.equals(superName) || superName.equals(OBJECT)) {
+            return true;
+        }
+        Node node = node(name);
+        Node superNode = node(superName);
+        if (node == missing || superNode == missing) {
+            return false;
+        }
+        return Arrays.binarySearch(ancestors(node), superNode.id) >= 0;
+    }
+
+    /**
+     * @return whether a value of type {@code from} can be used as a {@code to} without a
+     * cast; false if that can not be told because a class is unknown
+     */
+    public boolean isAssignable(Type from, Type to) {
+        if (from.equals(to)) {
+            return true;
+        }
+        if (to.getSort() == Type.OBJECT && from.getSort() == Type.ARRAY) {
+            String toName = to.getInternalName();
+            return toName.equals(OBJECT) || Arrays.asList(ARRAY_SUPERTYPES).contains(toName);
+        }
+        if (to.getSort() == Type.ARRAY && from.getSort() == Type.ARRAY) {
+            Type fromElement = Type.getType(from.getDescriptor().substring(1));
+            Type toElement = Type.getType(to.getDescriptor().substring(1));
+            return isReference(fromElement) && isReference(toElement) && isAssignable(fromElement, toElement);
+        }
+        if (to.getSort() == Type.OBJECT && from.getSort() == Type.OBJECT) {
+            return isSubtype(from.getInternalName(), to.getInternalName());
+        }
+        return false;
+    }
+
+    /**
+     * @return the most specific type both reference types can be used as: one of them if
+     * it is a supertype of the other, else their nearest common superclass; interfaces,
+     * unknown classes and mismatched arrays give {@code Object}
+     */
+    public Type getCommonSupertype(Type a, Type b) {
+        if (isAssignable(a, b)) {
+            return b;
+        }
+        if (isAssignable(b, a)) {
+            return a;
+        }
+        if (a.getSort() == Type.ARRAY && b.getSort() == Type.ARRAY) {
+            Type aElement = Type.getType(a.getDescriptor().substring(1));
+            Type bElement = Type.getType(b.getDescriptor().substring(1));
+            if (isReference(aElement) && isReference(bElement)) {
+                return Type.getType("[" + getCommonSupertype(aElement, bElement).getDescriptor());
+            }
+        }
+        if (a.getSort() == Type.OBJECT && b.getSort() == Type.OBJECT && !isInterface(a.getInternalName())
+                && !isInterface(b.getInternalName())) {
+            String bName = b.getInternalName();
+            for (Node node : lineage(a.getInternalName())) {
+                if ((node.access & Opcodes.ACC_INTERFACE) == 0 && isSubtype(bName, node.name)) {
+                    return Type.getObjectType(node.name);
+                }
+            }
+        }
+        return Type.getObjectType(OBJECT);
+    }
+
+    private static boolean isReference(Type type) {
+        return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+    }
+
+    /**
+     * @return the descriptor of field {@code name} of {@code owner} or of its nearest
+     * supertype declaring it, or null if not found
+     */
+    public String getFieldDesc(String owner, String name) {
+        for (Node node : lineage(owner)) {
+            for (int i = 0; i < node.fieldNames.length; ++i) {
+                if (node.fieldNames[i].equals(name)) {
+                    return node.fieldDescs[i];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the internal name of {@code owner} or of its nearest supertype declaring
+     * method {@code name desc}, or null if not found
+     */
+    public String findMethodOwner(String owner, String name, String desc) {
+        String key = name + desc;
+        for (Node node : lineage(owner)) {
+            for (String method : node.methods) {
+                if (method.equals(key)) {
+                    return node.name;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of classes looked at so far
+     */
+    public int size() {
+        return nextId.get();
+    }
+
+    /**
+     * @return {@code name} and its known supertypes: its superclasses, nearest first, and
+     * then the interfaces, breadth first, which is the order members are looked up in
+     */
+    private List<Node> lineage(String name) {
+        List<Node> result = new ArrayList<Node>();
+        for (String superName = name; superName != null; ) {
+            Node node = node(superName);
+            if (node == missing || result.contains(node)) {
+                break;
+            }
+            result.add(node);
+            superName = node.superName;
+        }
+        for (int i = 0; i < result.size(); ++i) {
+            for (String interfaceName : result.get(i).interfaces) {
+                Node node = node(interfaceName);
+                if (node != missing && !result.contains(node)) {
+                    result.add(node);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return ids of the class and all its known supertypes, sorted
+     */
+    private int[] ancestors(Node node) {
+        int[] ancestors = node.ancestors;
+        if (ancestors == null) {
+            List<Node> lineage = lineage(node.name);
+            ancestors = new int[lineage.size()];
+            for (int i = 0; i < ancestors.length; ++i) {
+                ancestors[i] = lineage.get(i).id;
+            }
+            Arrays.sort(ancestors);
+            node.ancestors = ancestors;
+        }
+        return ancestors;
+    }
+
+    private Node node(String name) {
+        Node node = nodes.get(name);
+        if (node == null) {
+            node = load(name);
+            Node existing = nodes.putIfAbsent(intern(name), node);
+            if (existing != null) {
+                node = existing;
+            }
+        }
+        return node;
+    }
+
+    private String intern(String name) {
+        String existing = names.putIfAbsent(name, name);
+        return existing != null ? existing : name;
+    }
+
+    private Node load(String name) {
+        ClassEntry entry = getEntry(name);
+        if (entry != null) {
+            try {
+                return read(entry);
+            } catch (IOException e) {
+                return missing;
+            } catch (RuntimeException e) {
+                // not a class file ASM can read
+                return missing;
+            }
+        }
+        return loadPlatform(name);
+    }
+
+    private Node read(ClassEntry entry) throws IOException {
+        final List<String> fieldNames = new ArrayList<String>();
+        final List<String> fieldDescs = new ArrayList<String>();
+        final List<String> methods = new ArrayList<String>();
+        final Node[] result = new Node[1];
+        ClassBuffer buffer = ClassBuffer.acquire();
+        try {
+            entry.read(buffer);
+            ClassReader reader = new ClassReader(buffer.bytes(), 0, buffer.length());
+            reader.accept(new ClassVisitor(Opcodes.ASM4) {
+                private String name;
+                private String superName;
+                private String[] interfaces;
+                private int access;
+
+                @Override
+                public void visit(int version, int access, String name, String signature, String superName,
+                                  String[] interfaces) {
+                    this.name = name;
+                    this.superName = superName;
+                    this.interfaces = interfaces != null ? interfaces : NONE;
+                    this.access = access;
+                }
+
+                @Override
+                public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                    fieldNames.add(intern(name));
+                    fieldDescs.add(intern(desc));
+                    return null;
+                }
+
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                                 String[] exceptions) {
+                    methods.add(intern(name + desc));
+                    return null;
+                }
+
+                @Override
+                public void visitEnd() {
+                    result[0] = node(name, access, superName, interfaces, fieldNames, fieldDescs, methods);
+                }
+            }, READER_FLAGS);
+        } finally {
+            ClassBuffer.release(buffer);
+        }
+        return result[0] != null ? result[0] : missing;
+    }
+
+    /**
+     * Classes of the boot class loader, such as {@code java.lang.String}, looked at
+     * through reflection without initializing them.
+     */
+    private Node loadPlatform(String name) {
+        Class<?> type;
+        try {
+            type = Class.forName(name.replace('/', '.'), false, null);
+        } catch (ClassNotFoundException e) {
+            return missing;
+        } catch (LinkageError e) {
+            return missing;
+        }
+
+        Class<?>[] interfaceTypes = type.getInterfaces();
+        String[] interfaces = new String[interfaceTypes.length];
+        for (int i = 0; i < interfaces.length; ++i) {
+            interfaces[i] = Type.getInternalName(interfaceTypes[i]);
+        }
+        String superName = type.getSuperclass() != null ? Type.getInternalName(type.getSuperclass()) : null;
+
+        List<String> fieldNames = new ArrayList<String>();
+        List<String> fieldDescs = new ArrayList<String>();
+        List<String> methods = new ArrayList<String>();
+        try {
+            for (Field field : type.getDeclaredFields()) {
+                fieldNames.add(intern(field.getName()));
+                fieldDescs.add(intern(Type.getDescriptor(field.getType())));
+            }
+            for (Method method : type.getDeclaredMethods()) {
+                methods.add(intern(method.getName() + Type.getMethodDescriptor(method)));
+            }
+        } catch (LinkageError e) {
+            // members refer to a class that is not there; supertypes are still good
+        } catch (SecurityException e) {
+            // same
+        }
+        int access = type.isInterface() ? Opcodes.ACC_INTERFACE : 0;
+        return node(name, access, superName, interfaces, fieldNames, fieldDescs, methods);
+    }
+
+    private Node node(String name, int access, String superName, String[] interfaces, List<String> fieldNames,
+                      List<String> fieldDescs, List<String> methods) {
+        String[] internedInterfaces = new String[interfaces.length];
+        for (int i = 0; i < interfaces.length; ++i) {
+            internedInterfaces[i] = intern(interfaces[i]);
+        }
+        return new Node(nextId.getAndIncrement(), intern(name), access, superName != null ? intern(superName) : null,
+                internedInterfaces, fieldNames.toArray(NONE), fieldDescs.toArray(NONE), methods.toArray(NONE));
+    }
+
+    private static final class Node {
+        private final int id;
+        private final String name;
+        private final int access;
+        private final String superName;
+        private final String[] interfaces;
+        private final String[] fieldNames;
+        private final String[] fieldDescs;
+        /**
+         * Name and descriptor of each method, e.g. {@code toString()Ljava/lang/String;}.
+         */
+        private final String[] methods;
+        private volatile int[] ancestors;
+
+        Node(int id, String name, int access, String superName, String[] interfaces, String[] fieldNames,
+             String[] fieldDescs, String[] methods) {
+            this.id = id;
+            this.name = name;
+            this.access = access;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.fieldNames = fieldNames;
+            this.fieldDescs = fieldDescs;
+            this.methods = methods;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.mikea.decompiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds single classes in jars and class directories without going through all of them,
+ * for decompiling one class where {@link ClassPath} would list every class first. Jars
+ * are looked up through a {@link JarIndex}, directories by file name. As on a class
+ * path, the first input holding a class wins.
+ */
+public class ClassLookup {
+    private final List<JarIndex> jars = new ArrayList<JarIndex>();
+    /**
+     * Per input, its {@link JarIndex} or its directory.
+     */
+    private final List<Object> inputs = new ArrayList<Object>();
+    private int indexesBuilt = 0;
+
+    /**
+     * @param indexDir where jar indexes are kept
+     */
+    public ClassLookup(List<File> files, File indexDir) throws IOException {
+        try {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    inputs.add(file);
+                } else {
+                    JarIndex jar = JarIndex.open(file, indexDir);
+                    jars.add(jar);
+                    inputs.add(jar);
+                    if (jar.isBuilt()) {
+                        indexesBuilt++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param name internal class name, e.g. {@code java/lang/String}
+     * @return the class file, or null if no input has it
+     */
+    public ClassEntry find(String name) {
+        for (Object input : inputs) {
+            ClassEntry entry = find(input, name);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name internal class name
+     * @return the class file followed by those of its nested, inner, local and anonymous
+     * classes (by the {@code Outer$Inner} naming convention) from the same input, or an
+     * empty list if no input has the class
+     */
+    public List<ClassEntry> findWithNested(String name) {
+        List<ClassEntry> result = new ArrayList<ClassEntry>();
+        for (Object input : inputs) {
+            ClassEntry entry = find(input, name);
+            if (entry == null) {
+                continue;
+            }
+            result.add(entry);
+            if (input instanceof JarIndex) {
+                result.addAll(((JarIndex) input).findAll(name + "$"));
+            } else {
+                findNested((File) input, name, result);
+            }
+            break;
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of jar indexes that had to be built, rather than read from disk
+     */
+    public int getIndexesBuilt() {
+        return indexesBuilt;
+    }
+
+    public void close() throws IOException {
+        IOException failure = null;
+        for (JarIndex jar : jars) {
+            try {
+                jar.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static ClassEntry find(Object input, String name) {
+        String fileName = name + ".class";
+        if (input instanceof JarIndex) {
+            return ((JarIndex) input).find(fileName);
+        }
+        File file = new File((File) input, fileName);
+        return file.isFile() ? new ClassPath.FileEntry(fileName, file) : null;
+    }
+
+    private static void findNested(File dir, String name, List<ClassEntry> result) {
+        int slash = name.lastIndexOf('/');
+        String packagePrefix = slash >= 0 ? name.substring(0, slash + 1) : "";
+        String prefix = name.substring(slash + 1) + "$";
+        String[] children = new File(dir, packagePrefix).list();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (String child : children) {
+            if (child.startsWith(prefix) && child.endsWith(".class")) {
+                result.add(new ClassPath.FileEntry(packagePrefix + child, new File(dir, packagePrefix + child)));
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.mikea.decompiler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The class files of any number of jars and class directories, flattened into one list
+ * so that a single work queue can cover all of them. Jars nested in jars (such as
+ * {@code BOOT-INF/lib/*.jar} in a Spring Boot jar) and jars found in directories are
+ * included, and the {@code BOOT-INF/classes/} and {@code WEB-INF/classes/} prefixes are
+ * dropped from class names. As on a class path, the first class of a given name wins.
+ * With a {@link FailureReport}, a jar that can not be read, top-level or nested, is
+ * recorded under its path and left out instead of failing the whole class path.
+ */
+public class ClassPath {
+    private static final String[] CLASS_ROOTS = {"BOOT-INF/classes/", "WEB-INF/classes/"};
+
+    private final List<MappedJar> jars = new ArrayList<MappedJar>();
+    private final List<ClassEntry> entries = new ArrayList<ClassEntry>();
+    private final Set<String> names = new HashSet<String>();
+    private int duplicates = 0;
+    private byte[] fingerprint;
+    private FailureReport failures;
+
+    /**
+     * @param failures where jars that can not be read are recorded and skipped, or null
+     *                 to throw from {@link #add(File)}
+     */
+    public void setFailureReport(FailureReport failures) {
+        this.failures = failures;
+    }
+
+    /**
+     * Adds a jar, or every class file and jar under a directory, in name order.
+     */
+    public void add(File file) throws IOException {
+        if (file.isDirectory()) {
+            addDirectory(file, "");
+        } else {
+            addJar(file);
+        }
+    }
+
+    private void addDirectory(File dir, String prefix) throws IOException {
+        String[] children = dir.list();
+        if (children == null) {
+            throw new IOException("Can't list " + dir);
+        }
+        Arrays.sort(children);
+        for (String child : children) {
+            File file = new File(dir, child);
+            if (file.isDirectory()) {
+                addDirectory(file, prefix + child + "/");
+            } else if (child.endsWith(".class")) {
+                addEntry(new FileEntry(prefix + child, file));
+            } else if (child.endsWith(".jar")) {
+                addJar(file);
+            }
+        }
+    }
+
+    private void addJar(File file) throws IOException {
+        MappedJar jar;
+        try {
+            jar = new MappedJar(file);
+        } catch (IOException e) {
+            skip(file.getPath(), e);
+            return;
+        } catch (RuntimeException e) {
+            skip(file.getPath(), e);
+            return;
+        }
+        addJar(jar);
+    }
+
+    private void addJar(MappedJar jar) throws IOException {
+        jars.add(jar);
+        for (MappedJar.Entry entry : jar.entries()) {
+            String name = entry.getName();
+            if (entry.isDirectory()) {
+                continue;
+            }
+            if (name.endsWith(".class")) {
+                addEntry(new JarEntry(stripClassRoot(name), jar, entry));
+            } else if (name.endsWith(".jar")) {
+                MappedJar nested;
+                try {
+                    nested = jar.openNested(entry);
+                } catch (IOException e) {
+                    skip(jar.getPath() + "!/" + name, e);
+                    continue;
+                } catch (RuntimeException e) {
+                    skip(jar.getPath() + "!/" + name, e);
+                    continue;
+                }
+                addJar(nested);
+            }
+        }
+    }
+
+    /**
+     * Records a jar that can not be read, or rethrows if there is no report.
+     */
+    private void skip(String path, IOException e) throws IOException {
+        if (failures == null) {
+            throw e;
+        }
+        failures.record(path, null, e);
+    }
+
+    private void skip(String path, RuntimeException e) {
+        if (failures == null) {
+            throw e;
+        }
+        failures.record(path, null, e);
+    }
+
+    static String stripClassRoot(String name) {
+        for (String root : CLASS_ROOTS) {
+            if (name.startsWith(root)) {
+                return name.substring(root.length());
+            }
+        }
+        return name;
+    }
+
+    private void addEntry(ClassEntry entry) {
+        if (names.add(entry.getName())) {
+            entries.add(entry);
+        } else {
+            duplicates++;
+        }
+    }
+
+    /**
+     * @return the class files, jar by jar and directory by directory in the order they were added
+     */
+    public List<ClassEntry> entries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return the number of jars opened, nested ones included
+     */
+    public int getJarCount() {
+        return jars.size();
+    }
+
+    /**
+     * @return the number of class files left out because an earlier one has the same name
+     */
+    public int getDuplicateCount() {
+        return duplicates;
+    }
+
+    /**
+     * @return a hash of the inputs as they are now: the path, length and modification
+     * time of every jar and of every class file found in a directory; computed once
+     */
+    public synchronized byte[] getFingerprint() {
+        if (fingerprint != null) {
+            return fingerprint;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Charset utf8 = Charset.forName("UTF-8");
+        for (MappedJar jar : jars) {
+            // nested jars change with the outer one
+            if (jar.getFile() != null) {
+                digest.update(stamp(jar.getFile()).getBytes(utf8));
+            }
+        }
+        for (ClassEntry entry : entries) {
+            if (entry instanceof FileEntry) {
+                digest.update(stamp(((FileEntry) entry).file).getBytes(utf8));
+            }
+        }
+        fingerprint = digest.digest();
+        return fingerprint;
+    }
+
+    private static String stamp(File file) {
+        return file.getAbsolutePath() + '\n' + file.length() + '\n' + file.lastModified() + '\n';
+    }
+
+    public void close() throws IOException {
+        IOException failure = null;
+        for (MappedJar jar : jars) {
+            try {
+                jar.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static class JarEntry implements ClassEntry {
+        private final String name;
+        private final MappedJar jar;
+        private final MappedJar.Entry entry;
+
+        JarEntry(String name, MappedJar jar, MappedJar.Entry entry) {
+            this.name = name;
+            this.jar = jar;
+            this.entry = entry;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getSize() {
+            return entry.getSize();
+        }
+
+        @Override
+        public void read(ClassBuffer buffer) throws IOException {
+            jar.read(entry, buffer);
+        }
+
+        @Override
+        public String toString() {
+            return jar.getPath() + "!/" + entry.getName();
+        }
+    }
+
+    static class FileEntry implements ClassEntry {
+        private final String name;
+        private final File file;
+
+        FileEntry(String name, File file) {
+            this.name = name;
+            this.file = file;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getSize() {
+            return file.length();
+        }
+
+        @Override
+        public void read(ClassBuffer buffer) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                long size = getSize();
+                if (size > Integer.MAX_VALUE - 16) {
+                    throw new IOException("Class file too large: " + file);
+                }
+                byte[] data = buffer.data((int) size);
+                int length = 0;
+                while (length < size) {
+                    int n = in.read(data, length, (int) size - length);
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                    length += n;
+                }
+                buffer.setLength(length);
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return file.getPath();
+        }
+    }
+}
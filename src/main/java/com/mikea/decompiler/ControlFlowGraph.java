@@ -0,0 +1,666 @@
+package com.mikea.decompiler;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Basic blocks of a method with their dominator tree and loop nesting.
+ * <p>
+ * Blocks are numbered in code order. Edges are kept in flat arrays, dominators are
+ * computed with Lengauer-Tarjan and loops with a union-find pass over the back edges,
+ * so all of it is near-linear in the size of the method; nothing recurses on the graph.
+ * Exception handlers are reached through exceptional edges from every block of their
+ * protected range.
+ */
+final class ControlFlowGraph {
+    static final int NONE = -1;
+
+    private final AbstractInsnNode[] insns;
+    private final int blockCount;
+    /** first instruction index of each block, plus the instruction count at the end */
+    private final int[] blockStart;
+    /** number of labels before the first instruction of each block */
+    private final int[] blockPosition;
+    private final int[] blockOf;
+
+    private final int[] successorStart;
+    private final int[] successors;
+    private final int[] predecessorStart;
+    private final int[] predecessors;
+    private final boolean[] handler;
+    private final String[] handlerType;
+
+    private final int[] order;
+    private final int[] rpo;
+    private final int[] idom;
+    private final int[] childStart;
+    private final int[] children;
+    private final int[] domPre;
+    private final int[] domPost;
+
+    private final int[] loopOf;
+    private final int[] parentLoop;
+    private final int[] forwardPredecessors;
+    private boolean reducible = true;
+
+    private ControlFlowGraph(AbstractInsnNode[] insns, int blockCount, int[] blockStart, int[] blockPosition,
+                             int[] blockOf, int[] successorStart, int[] successors,
+                             boolean[] handler, String[] handlerType) {
+        this.insns = insns;
+        this.blockCount = blockCount;
+        this.blockStart = blockStart;
+        this.blockPosition = blockPosition;
+        this.blockOf = blockOf;
+        this.successorStart = successorStart;
+        this.successors = successors;
+        this.handler = handler;
+        this.handlerType = handlerType;
+
+        predecessorStart = new int[blockCount + 1];
+        predecessors = new int[successors.length];
+        for (int edge : successors) {
+            predecessorStart[edge + 1]++;
+        }
+        for (int b = 0; b < blockCount; ++b) {
+            predecessorStart[b + 1] += predecessorStart[b];
+        }
+        int[] fill = Arrays.copyOf(predecessorStart, blockCount);
+        for (int b = 0; b < blockCount; ++b) {
+            for (int i = successorStart[b]; i < successorStart[b + 1]; ++i) {
+                predecessors[fill[successors[i]]++] = b;
+            }
+        }
+
+        order = new int[blockCount];
+        rpo = new int[blockCount];
+        idom = new int[blockCount];
+        childStart = new int[blockCount + 1];
+        children = new int[blockCount];
+        domPre = new int[blockCount];
+        domPost = new int[blockCount];
+        loopOf = new int[blockCount];
+        parentLoop = new int[blockCount];
+        forwardPredecessors = new int[blockCount];
+
+        int reachable = computeDominators();
+        computeDominatorTree(reachable);
+        computeLoops(reachable);
+    }
+
+    /**
+     * @return the graph, or null if the method has no code or uses subroutines
+     */
+    static ControlFlowGraph build(MethodNode method) {
+        InsnList instructions = method.instructions;
+        int n = instructions.size();
+        if (n == 0) {
+            return null;
+        }
+        AbstractInsnNode[] insns = instructions.toArray();
+
+        boolean[] leader = new boolean[n + 1];
+        leader[0] = true;
+        leader[n] = true;
+        for (int i = 0; i < n; ++i) {
+            AbstractInsnNode insn = insns[i];
+            switch (insn.getType()) {
+                case AbstractInsnNode.JUMP_INSN: {
+                    if (insn.getOpcode() == Opcodes.JSR) {
+                        return null;
+                    }
+                    leader[instructions.indexOf(((JumpInsnNode) insn).label)] = true;
+                    leader[i + 1] = true;
+                    break;
+                }
+                case AbstractInsnNode.TABLESWITCH_INSN: {
+                    TableSwitchInsnNode node = (TableSwitchInsnNode) insn;
+                    leader[instructions.indexOf(node.dflt)] = true;
+                    for (Object label : node.labels) {
+                        leader[instructions.indexOf((LabelNode) label)] = true;
+                    }
+                    leader[i + 1] = true;
+                    break;
+                }
+                case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+                    LookupSwitchInsnNode node = (LookupSwitchInsnNode) insn;
+                    leader[instructions.indexOf(node.dflt)] = true;
+                    for (Object label : node.labels) {
+                        leader[instructions.indexOf((LabelNode) label)] = true;
+                    }
+                    leader[i + 1] = true;
+                    break;
+                }
+                default: {
+                    int opcode = insn.getOpcode();
+                    if (opcode == Opcodes.RET) {
+                        return null;
+                    }
+                    if (isExit(opcode)) {
+                        leader[i + 1] = true;
+                    }
+                }
+            }
+        }
+        List<TryCatchBlockNode> tryCatchBlocks = method.tryCatchBlocks;
+        for (TryCatchBlockNode tryCatch : tryCatchBlocks) {
+            leader[instructions.indexOf(tryCatch.start)] = true;
+            leader[instructions.indexOf(tryCatch.end)] = true;
+            leader[instructions.indexOf(tryCatch.handler)] = true;
+        }
+
+        int blockCount = 0;
+        for (int i = 0; i < n; ++i) {
+            if (leader[i]) {
+                blockCount++;
+            }
+        }
+        int[] blockStart = new int[blockCount + 1];
+        int[] blockPosition = new int[blockCount];
+        int[] blockOf = new int[n];
+        int labels = 0;
+        for (int i = 0, b = -1; i < n; ++i) {
+            if (leader[i]) {
+                b++;
+                blockStart[b] = i;
+                blockPosition[b] = labels;
+            }
+            blockOf[i] = b;
+            if (insns[i].getType() == AbstractInsnNode.LABEL) {
+                labels++;
+            }
+        }
+        blockStart[blockCount] = n;
+
+        IntList from = new IntList(blockCount * 2);
+        IntList to = new IntList(blockCount * 2);
+        for (int b = 0; b < blockCount; ++b) {
+            int last = lastInstruction(insns, blockStart[b], blockStart[b + 1]);
+            AbstractInsnNode insn = last >= 0 ? insns[last] : null;
+            int next = b + 1 < blockCount ? b + 1 : NONE;
+            if (insn instanceof JumpInsnNode) {
+                addEdge(from, to, b, blockOf[instructions.indexOf(((JumpInsnNode) insn).label)]);
+                if (insn.getOpcode() != Opcodes.GOTO) {
+                    addEdge(from, to, b, next);
+                }
+            } else if (insn instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode node = (TableSwitchInsnNode) insn;
+                addEdge(from, to, b, blockOf[instructions.indexOf(node.dflt)]);
+                for (Object label : node.labels) {
+                    addEdge(from, to, b, blockOf[instructions.indexOf((LabelNode) label)]);
+                }
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode node = (LookupSwitchInsnNode) insn;
+                addEdge(from, to, b, blockOf[instructions.indexOf(node.dflt)]);
+                for (Object label : node.labels) {
+                    addEdge(from, to, b, blockOf[instructions.indexOf((LabelNode) label)]);
+                }
+            } else if (insn == null || !isExit(insn.getOpcode())) {
+                addEdge(from, to, b, next);
+            }
+        }
+
+        boolean[] handler = new boolean[blockCount];
+        String[] handlerType = new String[blockCount];
+        for (TryCatchBlockNode tryCatch : tryCatchBlocks) {
+            int h = blockOf[instructions.indexOf(tryCatch.handler)];
+            int end = instructions.indexOf(tryCatch.end);
+            for (int b = blockOf[instructions.indexOf(tryCatch.start)]; b < blockCount && blockStart[b] < end; ++b) {
+                // javac protects the start of a finally handler with the handler itself
+                if (b != h) {
+                    addEdge(from, to, b, h);
+                }
+            }
+            if (!handler[h]) {
+                handler[h] = true;
+                handlerType[h] = tryCatch.type;
+            } else if (handlerType[h] != null && !handlerType[h].equals(tryCatch.type)) {
+                handlerType[h] = "java/lang/Throwable";
+            }
+        }
+
+        // counting sort by source block; stable, so normal successors stay first and in order
+        int[] successorStart = new int[blockCount + 1];
+        for (int i = 0; i < from.size(); ++i) {
+            successorStart[from.get(i) + 1]++;
+        }
+        for (int b = 0; b < blockCount; ++b) {
+            successorStart[b + 1] += successorStart[b];
+        }
+        int[] successors = new int[from.size()];
+        int[] fill = Arrays.copyOf(successorStart, blockCount);
+        for (int i = 0; i < from.size(); ++i) {
+            successors[fill[from.get(i)]++] = to.get(i);
+        }
+
+        return new ControlFlowGraph(insns, blockCount, blockStart, blockPosition, blockOf, successorStart,
+                successors, handler, handlerType);
+    }
+
+    private static void addEdge(IntList from, IntList to, int source, int target) {
+        if (target != NONE) {
+            from.add(source);
+            to.add(target);
+        }
+    }
+
+    private static int lastInstruction(AbstractInsnNode[] insns, int from, int to) {
+        for (int i = to - 1; i >= from; --i) {
+            if (insns[i].getOpcode() >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isExit(int opcode) {
+        return (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW;
+    }
+
+    /**
+     * Lengauer-Tarjan with path compression. Also numbers blocks in reverse postorder.
+     *
+     * @return the number of blocks reachable from the entry
+     */
+    private int computeDominators() {
+        int[] dfnum = new int[blockCount];
+        int[] vertex = new int[blockCount];
+        int[] parent = new int[blockCount];
+        Arrays.fill(dfnum, NONE);
+        Arrays.fill(rpo, NONE);
+        Arrays.fill(idom, NONE);
+
+        // iterative DFS giving preorder numbers, DFS tree parents and postorder
+        int[] stack = new int[blockCount];
+        int[] edge = new int[blockCount];
+        int sp = 0;
+        int count = 0;
+        int post = 0;
+        int[] postorder = new int[blockCount];
+        stack[sp++] = 0;
+        dfnum[0] = count;
+        vertex[count++] = 0;
+        parent[0] = NONE;
+        edge[0] = successorStart[0];
+        while (sp > 0) {
+            int v = stack[sp - 1];
+            if (edge[v] < successorStart[v + 1]) {
+                int w = successors[edge[v]++];
+                if (dfnum[w] == NONE) {
+                    dfnum[w] = count;
+                    vertex[count++] = w;
+                    parent[w] = v;
+                    edge[w] = successorStart[w];
+                    stack[sp++] = w;
+                }
+            } else {
+                postorder[post++] = v;
+                sp--;
+            }
+        }
+        for (int i = 0; i < count; ++i) {
+            int v = postorder[count - 1 - i];
+            order[i] = v;
+            rpo[v] = i;
+        }
+
+        int[] semi = new int[blockCount];
+        int[] label = new int[blockCount];
+        int[] ancestor = new int[blockCount];
+        int[] bucketHead = new int[blockCount];
+        int[] bucketNext = new int[blockCount];
+        Arrays.fill(ancestor, NONE);
+        Arrays.fill(bucketHead, NONE);
+        for (int v = 0; v < blockCount; ++v) {
+            semi[v] = dfnum[v];
+            label[v] = v;
+        }
+
+        for (int i = count - 1; i > 0; --i) {
+            int w = vertex[i];
+            for (int p = predecessorStart[w]; p < predecessorStart[w + 1]; ++p) {
+                int v = predecessors[p];
+                if (dfnum[v] == NONE) {
+                    continue;
+                }
+                int u = eval(v, ancestor, label, semi, stack);
+                if (semi[u] < semi[w]) {
+                    semi[w] = semi[u];
+                }
+            }
+            int s = vertex[semi[w]];
+            bucketNext[w] = bucketHead[s];
+            bucketHead[s] = w;
+
+            int pw = parent[w];
+            ancestor[w] = pw;
+            for (int v = bucketHead[pw]; v != NONE; v = bucketNext[v]) {
+                int u = eval(v, ancestor, label, semi, stack);
+                idom[v] = semi[u] < semi[v] ? u : pw;
+            }
+            bucketHead[pw] = NONE;
+        }
+        for (int i = 1; i < count; ++i) {
+            int w = vertex[i];
+            if (idom[w] != vertex[semi[w]]) {
+                idom[w] = idom[idom[w]];
+            }
+        }
+        return count;
+    }
+
+    private static int eval(int v, int[] ancestor, int[] label, int[] semi, int[] path) {
+        if (ancestor[v] == NONE) {
+            return v;
+        }
+        // compress the ancestor path of v, top down, without recursion
+        int length = 0;
+        for (int u = v; ancestor[ancestor[u]] != NONE; u = ancestor[u]) {
+            path[length++] = u;
+        }
+        for (int i = length - 1; i >= 0; --i) {
+            int u = path[i];
+            int a = ancestor[u];
+            if (semi[label[a]] < semi[label[u]]) {
+                label[u] = label[a];
+            }
+            ancestor[u] = ancestor[a];
+        }
+        return label[v];
+    }
+
+    private void computeDominatorTree(int reachable) {
+        for (int i = 1; i < reachable; ++i) {
+            childStart[idom[order[i]] + 1]++;
+        }
+        for (int b = 0; b < blockCount; ++b) {
+            childStart[b + 1] += childStart[b];
+        }
+        int[] fill = Arrays.copyOf(childStart, blockCount);
+        // children in reverse postorder
+        for (int i = 1; i < reachable; ++i) {
+            int b = order[i];
+            children[fill[idom[b]]++] = b;
+        }
+
+        int[] stack = new int[blockCount];
+        int[] next = new int[blockCount];
+        int sp = 0;
+        int counter = 0;
+        stack[sp++] = 0;
+        domPre[0] = counter++;
+        next[0] = childStart[0];
+        while (sp > 0) {
+            int v = stack[sp - 1];
+            if (next[v] < childStart[v + 1]) {
+                int c = children[next[v]++];
+                domPre[c] = counter++;
+                next[c] = childStart[c];
+                stack[sp++] = c;
+            } else {
+                domPost[v] = counter++;
+                sp--;
+            }
+        }
+    }
+
+    /**
+     * Natural loops from back edges, innermost headers first; blocks of an inner loop
+     * are collapsed into its header with union-find so that every block is walked once.
+     */
+    private void computeLoops(int reachable) {
+        Arrays.fill(loopOf, NONE);
+        Arrays.fill(parentLoop, NONE);
+
+        int[] representative = new int[blockCount];
+        int[] mark = new int[blockCount];
+        for (int b = 0; b < blockCount; ++b) {
+            representative[b] = b;
+            mark[b] = NONE;
+        }
+        int[] worklist = new int[blockCount];
+
+        // headers by decreasing reverse postorder: inner loops come before outer ones
+        for (int i = reachable - 1; i >= 0; --i) {
+            int h = order[i];
+            int size = 0;
+            for (int p = predecessorStart[h]; p < predecessorStart[h + 1]; ++p) {
+                int u = predecessors[p];
+                if (rpo[u] == NONE) {
+                    continue;
+                }
+                if (rpo[u] < rpo[h]) {
+                    forwardPredecessors[h]++;
+                    continue;
+                }
+                if (!dominates(h, u)) {
+                    reducible = false;
+                    continue;
+                }
+                int x = find(representative, u);
+                if (x != h && mark[x] != h) {
+                    mark[x] = h;
+                    worklist[size++] = x;
+                }
+                loopOf[h] = h;
+            }
+            if (loopOf[h] != h) {
+                continue;
+            }
+
+            int collected = 0;
+            while (collected < size) {
+                int x = worklist[collected++];
+                for (int p = predecessorStart[x]; p < predecessorStart[x + 1]; ++p) {
+                    int y = predecessors[p];
+                    if (rpo[y] == NONE) {
+                        continue;
+                    }
+                    int z = find(representative, y);
+                    if (z != h && mark[z] != h) {
+                        if (!dominates(h, z)) {
+                            reducible = false;
+                            continue;
+                        }
+                        mark[z] = h;
+                        worklist[size++] = z;
+                    }
+                }
+            }
+            for (int k = 0; k < size; ++k) {
+                int x = worklist[k];
+                if (loopOf[x] == x) {
+                    parentLoop[x] = h;
+                } else {
+                    loopOf[x] = h;
+                }
+                representative[x] = h;
+            }
+        }
+    }
+
+    private static int find(int[] representative, int v) {
+        int root = v;
+        while (representative[root] != root) {
+            root = representative[root];
+        }
+        while (representative[v] != root) {
+            int next = representative[v];
+            representative[v] = root;
+            v = next;
+        }
+        return root;
+    }
+
+    int getBlockCount() {
+        return blockCount;
+    }
+
+    AbstractInsnNode[] getInstructions() {
+        return insns;
+    }
+
+    int getBlockStart(int block) {
+        return blockStart[block];
+    }
+
+    int getBlockEnd(int block) {
+        return blockStart[block + 1];
+    }
+
+    /**
+     * @return the number of labels before the first instruction of the block
+     */
+    int getBlockPosition(int block) {
+        return blockPosition[block];
+    }
+
+    int getBlockOf(int insn) {
+        return blockOf[insn];
+    }
+
+    /**
+     * @return the last real instruction of the block, or null if it has none
+     */
+    AbstractInsnNode getTerminator(int block) {
+        int last = lastInstruction(insns, blockStart[block], blockStart[block + 1]);
+        return last >= 0 ? insns[last] : null;
+    }
+
+    int getSuccessorStart(int block) {
+        return successorStart[block];
+    }
+
+    int getSuccessorEnd(int block) {
+        return successorStart[block + 1];
+    }
+
+    int getSuccessor(int index) {
+        return successors[index];
+    }
+
+    boolean isHandler(int block) {
+        return handler[block];
+    }
+
+    /**
+     * @return the internal name of the caught type, null for a finally handler
+     */
+    String getHandlerType(int block) {
+        return handlerType[block];
+    }
+
+    boolean isReachable(int block) {
+        return rpo[block] != NONE;
+    }
+
+    int getReversePostorder(int block) {
+        return rpo[block];
+    }
+
+    int getBlockAt(int reversePostorder) {
+        return order[reversePostorder];
+    }
+
+    int getIdom(int block) {
+        return idom[block];
+    }
+
+    /**
+     * Dominator tree children are ordered by reverse postorder.
+     */
+    int getChildStart(int block) {
+        return childStart[block];
+    }
+
+    int getChildEnd(int block) {
+        return childStart[block + 1];
+    }
+
+    int getChild(int index) {
+        return children[index];
+    }
+
+    boolean dominates(int a, int b) {
+        return domPre[a] <= domPre[b] && domPost[b] <= domPost[a];
+    }
+
+    boolean isLoopHeader(int block) {
+        return loopOf[block] == block;
+    }
+
+    /**
+     * @return whether {@code block} is in the loop headed by {@code header}
+     */
+    boolean isInLoop(int block, int header) {
+        for (int h = loopOf[block]; h != NONE; h = parentLoop[h]) {
+            if (h == header) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of non-back edges entering the block, exceptional ones included
+     */
+    int getForwardPredecessors(int block) {
+        return forwardPredecessors[block];
+    }
+
+    /**
+     * @return whether every cycle is entered through a single header, so that the method
+     * can be written with loops and labeled blocks
+     */
+    boolean isReducible() {
+        return reducible;
+    }
+
+    /**
+     * A growable int array.
+     */
+    static final class IntList {
+        private int[] values;
+        private int size;
+
+        IntList(int capacity) {
+            values = new int[Math.max(capacity, 4)];
+        }
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        void set(int index, int value) {
+            values[index] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void truncate(int size) {
+            this.size = size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
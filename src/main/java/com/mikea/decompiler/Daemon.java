@@ -0,0 +1,406 @@
+package com.mikea.decompiler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A resident decompiler answering requests for single classes, so that an IDE pays for
+ * JVM startup and JIT warm-up once rather than per class. Opened class paths, with their
+ * {@link ClassHierarchy}, stay open between requests and are reopened when a jar or
+ * directory changes on disk; recent sources are kept in memory, least recently used
+ * first out.
+ * <p>
+ * The protocol is line based, over stdin/stdout or a loopback socket. Requests:
+ * <pre>
+ * decompile &lt;path&gt;[&lt;path separator&gt;&lt;path&gt;...] &lt;class&gt;
+ * stats
+ * forget &lt;path&gt;[&lt;path separator&gt;&lt;path&gt;...]
+ * quit
+ * shutdown
+ * </pre>
+ * A class is named with dots or slashes, e.g. {@code java.lang.String}. A successful
+ * answer is {@code ok <n>} followed by the {@code n} lines of the source or of the
+ * statistics; a failed one is a single {@code error <message>} line. A class that could
+ * not be decompiled is answered with its stub, and a method with its bytecode listing;
+ * {@code stats} counts both. {@code quit} ends
+ * the session, {@code shutdown} also stops accepting connections.
+ */
+public class Daemon {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final DecompileCache cache;
+    private final MethodBudget budget;
+    private final long maxSourceChars;
+    private final Map<String, Workspace> workspaces = new HashMap<String, Workspace>();
+    private final LinkedHashMap<String, String> sources = new LinkedHashMap<String, String>(64, 0.75f, true);
+    private long sourceChars = 0;
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+    private final AtomicLong stubbedClasses = new AtomicLong();
+    private final AtomicLong listedMethods = new AtomicLong();
+
+    /**
+     * @param cache          persistent cache of generated sources, or null
+     * @param budget         limits on a single method, or null for none
+     * @param maxSourceChars characters of recent sources to keep in memory
+     */
+    public Daemon(DecompileCache cache, MethodBudget budget, long maxSourceChars) {
+        this.cache = cache;
+        this.budget = budget;
+        this.maxSourceChars = maxSourceChars;
+    }
+
+    /**
+     * @param classPath paths of jars and class directories separated by
+     *                  {@link File#pathSeparator}
+     * @param className dotted or internal class name
+     * @return the source of the class
+     * @throws IOException if the class is not on the class path or can not be read
+     */
+    public String decompile(String classPath, String className) throws IOException {
+        long start = System.nanoTime();
+        requests.incrementAndGet();
+        try {
+            Workspace workspace = workspace(classPath);
+            String internalName = className.replace('.', '/');
+            if (internalName.endsWith("/class")) {
+                internalName = internalName.substring(0, internalName.length() - "/class".length());
+            }
+            String key = workspace.key + "!" + internalName;
+            String source = getSource(key);
+            if (source != null) {
+                hits.incrementAndGet();
+                return source;
+            }
+            source = workspace.decompile(internalName);
+            putSource(key, source);
+            return source;
+        } finally {
+            nanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Decompiles the first {@code classes} classes of the class path without keeping the
+     * sources, so that the code paths used by later requests are compiled by the JIT.
+     */
+    public void warmUp(String classPath, int classes) throws IOException {
+        Workspace workspace = workspace(classPath);
+        int n = 0;
+        for (ClassEntry entry : workspace.classPath.entries()) {
+            if (n++ >= classes) {
+                break;
+            }
+            String name = entry.getName();
+            workspace.decompile(name.substring(0, name.length() - ".class".length()));
+        }
+    }
+
+    /**
+     * Closes the class path and drops its sources from memory.
+     */
+    public void forget(String classPath) throws IOException {
+        Workspace workspace;
+        synchronized (this) {
+            workspace = workspaces.remove(canonical(classPath));
+        }
+        if (workspace != null) {
+            dropSources(workspace.key);
+            workspace.classPath.close();
+        }
+    }
+
+    public String stats() {
+        long n = requests.get();
+        synchronized (this) {
+            StringBuilder sb = new StringBuilder(String.format("requests: %d, memory hits: %d, average %.2f ms%n"
+                            + "class paths: %d%nsources in memory: %d, %d KB%n"
+                            + "failures: %d classes stubbed, %d methods listed", n, hits.get(),
+                    n > 0 ? nanos.get() / 1e6 / n : 0.0, workspaces.size(), sources.size(), sourceChars * 2 / 1024,
+                    stubbedClasses.get(), listedMethods.get()));
+            for (Workspace workspace : workspaces.values()) {
+                for (FailureReport.Failure failure : workspace.skippedJars.getFailures()) {
+                    sb.append(String.format("%nskipped jar: ")).append(failure);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Answers requests from {@code in} on {@code out} until {@code quit}, {@code shutdown}
+     * or the end of the input.
+     */
+    public void serve(InputStream in, OutputStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF8));
+        Writer writer = new OutputStreamWriter(out, UTF8);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.equals("quit")) {
+                break;
+            }
+            if (line.equals("shutdown")) {
+                shutdown = true;
+                break;
+            }
+            answer(line, writer);
+            writer.flush();
+        }
+        writer.flush();
+    }
+
+    /**
+     * Serves connections to {@code port} on the loopback interface, each on its own
+     * thread, until a client sends {@code shutdown}.
+     */
+    public void serve(int port) throws IOException {
+        final ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        System.err.println("daemon: listening on " + server.getLocalSocketAddress());
+        try {
+            while (!shutdown) {
+                final Socket socket = server.accept();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket.getInputStream(), socket.getOutputStream());
+                        } catch (IOException e) {
+                            // the client went away
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // nothing left to do
+                            }
+                            if (shutdown) {
+                                try {
+                                    server.close();
+                                } catch (IOException e) {
+                                    // nothing left to do
+                                }
+                            }
+                        }
+                    }
+                }, "decompiler-daemon-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            if (!shutdown) {
+                throw e;
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private void answer(String line, Writer writer) throws IOException {
+        String[] words = line.split("\\s+");
+        String text;
+        try {
+            if (words[0].equals("decompile") && words.length == 3) {
+                text = decompile(words[1], words[2]);
+            } else if (words[0].equals("stats") && words.length == 1) {
+                text = stats();
+            } else if (words[0].equals("forget") && words.length == 2) {
+                forget(words[1]);
+                text = "";
+            } else {
+                writer.write("error unknown request: " + line + "\n");
+                return;
+            }
+        } catch (IOException e) {
+            writer.write("error " + firstLine(e.toString()) + "\n");
+            return;
+        } catch (RuntimeException e) {
+            writer.write("error " + firstLine(e.toString()) + "\n");
+            return;
+        }
+        String[] lines = text.isEmpty() ? new String[0] : text.split("\r?\n", -1);
+        int count = lines.length > 0 && lines[lines.length - 1].isEmpty() ? lines.length - 1 : lines.length;
+        writer.write("ok " + count + "\n");
+        for (int i = 0; i < count; ++i) {
+            writer.write(lines[i]);
+            writer.write('\n');
+        }
+    }
+
+    private static String firstLine(String s) {
+        int newline = s.indexOf('\n');
+        return newline >= 0 ? s.substring(0, newline) : s;
+    }
+
+    /**
+     * @return the open class path for {@code classPath}, reopened if any of its files changed
+     */
+    private Workspace workspace(String classPath) throws IOException {
+        String canonical = canonical(classPath);
+        Workspace stale;
+        synchronized (this) {
+            Workspace workspace = workspaces.get(canonical);
+            if (workspace != null && workspace.isCurrent()) {
+                return workspace;
+            }
+            stale = workspace;
+        }
+        if (stale != null) {
+            dropSources(stale.key);
+            // mapped entries stay readable for requests still using the old class path
+            stale.classPath.close();
+        }
+        Workspace workspace = new Workspace(canonical);
+        synchronized (this) {
+            Workspace existing = workspaces.get(canonical);
+            if (existing != null && existing != stale && existing.isCurrent()) {
+                workspace.classPath.close();
+                return existing;
+            }
+            workspaces.put(canonical, workspace);
+        }
+        return workspace;
+    }
+
+    private static String canonical(String classPath) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String path : classPath.split(File.pathSeparator)) {
+            if (path.isEmpty()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparatorChar);
+            }
+            sb.append(new File(path).getCanonicalPath());
+        }
+        return sb.toString();
+    }
+
+    private synchronized String getSource(String key) {
+        return sources.get(key);
+    }
+
+    private synchronized void putSource(String key, String source) {
+        String previous = sources.put(key, source);
+        if (previous != null) {
+            sourceChars -= previous.length();
+        }
+        sourceChars += source.length();
+        Iterator<String> eldest = sources.values().iterator();
+        while (sourceChars > maxSourceChars && eldest.hasNext()) {
+            sourceChars -= eldest.next().length();
+            eldest.remove();
+        }
+    }
+
+    private synchronized void dropSources(String workspaceKey) {
+        String prefix = workspaceKey + "!";
+        Iterator<Map.Entry<String, String>> it = sources.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, String> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                sourceChars -= entry.getValue().length();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * An open class path and what was learnt about it.
+     */
+    private class Workspace {
+        private final String key;
+        private final File[] files;
+        private final long[] stamps;
+        private final ClassPath classPath = new ClassPath();
+        /**
+         * Jars of the class path that could not be read and were left out.
+         */
+        private final FailureReport skippedJars = new FailureReport();
+        private final ClassHierarchy hierarchy;
+
+        Workspace(String canonical) throws IOException {
+            this.key = canonical;
+            String[] paths = canonical.split(File.pathSeparator);
+            files = new File[paths.length];
+            stamps = new long[paths.length];
+            classPath.setFailureReport(skippedJars);
+            try {
+                for (int i = 0; i < paths.length; ++i) {
+                    files[i] = new File(paths[i]);
+                    stamps[i] = stamp(files[i]);
+                    if (!files[i].exists()) {
+                        throw new IOException("No such file: " + files[i]);
+                    }
+                    classPath.add(files[i]);
+                }
+            } catch (IOException e) {
+                classPath.close();
+                throw e;
+            }
+            hierarchy = new ClassHierarchy(classPath);
+        }
+
+        /**
+         * Only the jars and directories named in the request are checked, not the files
+         * under a directory: a rebuilt directory is picked up through its own timestamp
+         * changing, or with {@code forget}.
+         */
+        boolean isCurrent() {
+            for (int i = 0; i < files.length; ++i) {
+                if (stamp(files[i]) != stamps[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long stamp(File file) {
+            return file.lastModified() * 31 + file.length();
+        }
+
+        String decompile(String internalName) throws IOException {
+            ClassEntry entry = hierarchy.getEntry(internalName);
+            if (entry == null) {
+                throw new IOException("Class not found: " + internalName.replace('/', '.'));
+            }
+            final StringBuilder result = new StringBuilder();
+            SourceSink sink = new SourceSink() {
+                @Override
+                public void write(String className, CharSequence source) {
+                    result.append(source);
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            FailureReport failures = new FailureReport();
+            App.decompile(entry, sink, cache, budget, hierarchy, null, failures);
+            int classes = failures.getClassFailureCount();
+            stubbedClasses.addAndGet(classes);
+            listedMethods.addAndGet(failures.getFailures().size() - classes);
+            return result.toString();
+        }
+    }
+}
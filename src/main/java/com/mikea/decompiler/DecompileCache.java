@@ -0,0 +1,311 @@
+package com.mikea.decompiler;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent cache of generated sources, keyed by the SHA-1 of the class bytes and of the
+ * decompiler itself (its own classes and the ASM version), so unchanged classes skip
+ * parsing and evaluation entirely and a new decompiler build never sees stale output.
+ * <p>
+ * Entries live in {@code dir/xx/xxxxxxxx...java}. The cache is bounded by size: once it
+ * grows past the limit, least recently used entries (by modification time, which is
+ * refreshed on every hit) are evicted down to 80% of the limit. Safe for concurrent use,
+ * also by several processes sharing the directory.
+ */
+public class DecompileCache {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File dir;
+    private final long maxBytes;
+    private final MessageDigest prototype;
+
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public DecompileCache(File dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Can't create cache directory " + dir);
+        }
+        try {
+            prototype = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        prototype.update(decompilerFingerprint());
+
+        long total = 0;
+        for (File file : listEntries()) {
+            total += file.length();
+        }
+        size.set(total);
+    }
+
+    /**
+     * @return the cache key of a class file decompiled without a {@link ClassHierarchy}
+     */
+    public String key(byte[] bytes, int length) {
+        return key(bytes, length, null);
+    }
+
+    /**
+     * @param context anything else the source depends on, such as the
+     *                {@link ClassHierarchy#getFingerprint() fingerprint} of the hierarchy
+     *                the class is decompiled against, or null for nothing
+     * @return the cache key of a class file
+     */
+    public String key(byte[] bytes, int length, byte[] context) {
+        MessageDigest digest;
+        try {
+            digest = (MessageDigest) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        if (context != null) {
+            digest.update(context);
+        }
+        // keeps a context from running into the class bytes
+        digest.update((byte) (context != null ? 1 : 0));
+        digest.update(bytes, 0, length);
+        byte[] hash = digest.digest();
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; ++i) {
+            chars[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return the cached source, or null on a miss
+     */
+    public String get(String key) {
+        File file = file(key);
+        byte[] bytes;
+        try {
+            bytes = readFully(file);
+        } catch (IOException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return new String(bytes, UTF8);
+    }
+
+    public void put(String key, CharSequence source) throws IOException {
+        File file = file(key);
+        File parent = file.getParentFile();
+        if (!parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Can't create cache directory " + parent);
+        }
+
+        byte[] bytes = source.toString().getBytes(UTF8);
+        File temp = File.createTempFile(key, ".tmp", parent);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        long previous = file.length();
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (size.addAndGet(bytes.length - previous) > maxBytes) {
+            evict();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cache: %d hits, %d misses, %d evictions, %.1f MB",
+                getHits(), getMisses(), getEvictions(), getSize() / (1024.0 * 1024.0));
+    }
+
+    private synchronized void evict() {
+        if (size.get() <= maxBytes) {
+            return;
+        }
+        List<File> files = listEntries();
+        final long[] lastModified = new long[files.size()];
+        for (int i = 0; i < lastModified.length; ++i) {
+            lastModified[i] = files.get(i).lastModified();
+        }
+        Integer[] order = new Integer[files.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastModified[a], lastModified[b]);
+            }
+        });
+
+        long lowWatermark = maxBytes / 10 * 8;
+        for (Integer index : order) {
+            if (size.get() <= lowWatermark) {
+                break;
+            }
+            File file = files.get(index);
+            long length = file.length();
+            if (file.delete()) {
+                size.addAndGet(-length);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private List<File> listEntries() {
+        List<File> result = new ArrayList<File>();
+        File[] buckets = dir.listFiles();
+        if (buckets == null) {
+            return result;
+        }
+        for (File bucket : buckets) {
+            File[] files = bucket.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.getName().endsWith(".java")) {
+                    result.add(file);
+                }
+            }
+        }
+        return result;
+    }
+
+    private File file(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key.substring(2) + ".java");
+    }
+
+    /**
+     * Hash of the decompiler's own classes (or jar) and of the ASM build in use.
+     */
+    private static byte[] decompilerFingerprint() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(asmStamp().getBytes(UTF8));
+
+        File location = codeSourceFile(DecompileCache.class);
+        if (location == null) {
+            return digest.digest();
+        }
+        if (location.isFile()) {
+            digest.update(readFully(location));
+        } else {
+            File packageDir = new File(location, DecompileCache.class.getPackage().getName().replace('.', '/'));
+            File[] classes = packageDir.listFiles();
+            if (classes != null) {
+                Arrays.sort(classes);
+                for (File file : classes) {
+                    if (file.getName().endsWith(".class")) {
+                        digest.update(file.getName().getBytes(UTF8));
+                        digest.update(readFully(file));
+                    }
+                }
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Location, version and, for a jar, length and modification time of the ASM build, so
+     * that replacing the jar in place changes the fingerprint.
+     */
+    private static String asmStamp() {
+        StringBuilder stamp = new StringBuilder(codeSourceName(ClassReader.class)).append('\n');
+        Package asm = ClassReader.class.getPackage();
+        if (asm != null && asm.getImplementationVersion() != null) {
+            stamp.append(asm.getImplementationVersion()).append('\n');
+        }
+        File jar = codeSourceFile(ClassReader.class);
+        if (jar != null && jar.isFile()) {
+            stamp.append(jar.length()).append('\n').append(jar.lastModified()).append('\n');
+        }
+        return stamp.toString();
+    }
+
+    private static String codeSourceName(Class<?> type) {
+        CodeSource codeSource = type.getProtectionDomain().getCodeSource();
+        return codeSource != null && codeSource.getLocation() != null ? codeSource.getLocation().toString() : "";
+    }
+
+    private static File codeSourceFile(Class<?> type) {
+        CodeSource codeSource = type.getProtectionDomain().getCodeSource();
+        if (codeSource == null) {
+            return null;
+        }
+        URL location = codeSource.getLocation();
+        if (location == null || !"file".equals(location.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(location.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(32, file.length()));
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -9,24 +9,69 @@ import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceMethodVisitor;
 
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  */
 public class DecompileVisitor extends ClassVisitor {
     private final JavaSourceWriter writer;
-    private Map<String, MethodInfo> methodInfos = new HashMap<String, MethodInfo>();
+    private final Evaluator evaluator;
+    private final MethodBudget budget;
+    private final ClassHierarchy hierarchy;
+    private final FailureReport failures;
+    private String className;
+    private int listings = 0;
+    /**
+     * Time spent in method bodies, reported as {@link Metrics.Phase#PREPASS} and
+     * {@link Metrics.Phase#EVALUATE} rather than as parsing.
+     */
+    private long methodNanos = 0;
 
     public DecompileVisitor(JavaSourceWriter writer) {
+        this(writer, null, null, null);
+    }
+
+    public DecompileVisitor(JavaSourceWriter writer, MethodBudget budget, ClassHierarchy hierarchy) {
+        this(writer, budget, hierarchy, null);
+    }
+
+    /**
+     * @param budget    limits on a single method, or null for none
+     * @param hierarchy supertypes of the classes being decompiled, or null if unknown
+     * @param failures  where methods that fail to decompile are recorded, or null; either
+     *                  way they are written as bytecode listings
+     */
+    public DecompileVisitor(JavaSourceWriter writer, MethodBudget budget, ClassHierarchy hierarchy,
+                            FailureReport failures) {
         super(Opcodes.ASM4);
         this.writer = writer;
+        this.evaluator = new Evaluator(writer);
+        this.budget = budget;
+        this.hierarchy = hierarchy;
+        this.failures = failures;
+    }
+
+    /**
+     * @return the number of methods written as bytecode listings, because they were over
+     * the budget or failed to decompile
+     */
+    public int getListingCount() {
+        return listings;
     }
 
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        this.className = name;
         String className = name;
         if (name.indexOf("/") >= 0) {
             String packageName = name.substring(0, name.lastIndexOf("/")).replaceAll("/", ".");
@@ -59,8 +104,7 @@ public class DecompileVisitor extends ClassVisitor {
 
     @Override
     public void visitAttribute(Attribute attribute) {
-        throw new UnsupportedOperationException("Method visitAttribute not implemented in com.mikea.decompiler.DecompileVisitor .");
-
+        writer.writeComment(String.format("visitAttribute: type=%s", attribute.type));
     }
 
     @Override
@@ -78,15 +122,14 @@ public class DecompileVisitor extends ClassVisitor {
 
         return new FieldVisitor(Opcodes.ASM4) {
             @Override
-            public AnnotationVisitor visitAnnotation(String s, boolean b) {
-                throw new UnsupportedOperationException("Method visitAnnotation not implemented in  .");
-
+            public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                writer.writeComment(String.format("visitAnnotation: desc=%s, visible=%b", desc, visible));
+                return null;
             }
 
             @Override
             public void visitAttribute(Attribute attribute) {
-                throw new UnsupportedOperationException("Method visitAttribute not implemented in  .");
-
+                writer.writeComment(String.format("visitAttribute: type=%s", attribute.type));
             }
 
             @Override
@@ -97,10 +140,16 @@ public class DecompileVisitor extends ClassVisitor {
 
     public static String toJavaType(Type type) {
         switch (type.getSort()) {
-            case Type.DOUBLE:
-                return "double";
+            case Type.VOID:
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
             case Type.INT:
-                return "int";
+            case Type.FLOAT:
+            case Type.LONG:
+            case Type.DOUBLE:
+                return type.getClassName();
             case Type.ARRAY:
                 return toJavaType(type.getElementType()) + "[]";
             case Type.OBJECT: {
@@ -117,11 +166,144 @@ public class DecompileVisitor extends ClassVisitor {
         writer.writeComment("todo: access, desc, signature, exceptions");
         writer.startMethod(name);
 
-        final MethodInfo methodInfo = methodInfos.get(MethodInfo.getMethodTag(access, name, desc, signature, exceptions));
+        return new MethodNode(Opcodes.ASM4, access, name, desc, signature, exceptions) {
+            @Override
+            public void visitEnd() {
+                decompileMethod(this);
+            }
+        };
+    }
+
+    /**
+     * Methods are buffered into a {@link MethodNode} so that the local variable table
+     * (which the class file stores after the code) is known before the body is evaluated,
+     * and so that the body can be written in structured order, see {@link Structurer}.
+     */
+    private void decompileMethod(MethodNode method) {
+        long start = System.nanoTime();
+        MethodInfo methodInfo = new MethodInfo(className, method.maxLocals);
+        if (method.localVariables != null && !method.localVariables.isEmpty()) {
+            Map<LabelNode, Integer> positions = new IdentityHashMap<LabelNode, Integer>();
+            int position = 0;
+            for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+                if (insn instanceof LabelNode) {
+                    positions.put((LabelNode) insn, ++position);
+                }
+            }
+            for (LocalVariableNode local : method.localVariables) {
+                methodInfo.addVar(local.index, local.name, Type.getType(local.desc),
+                        positions.get(local.start), positions.get(local.end));
+            }
+        }
+
+        long prepassEnd = System.nanoTime();
+        Metrics.time(Metrics.Phase.PREPASS, prepassEnd - start);
+        Metrics.methodDecompiled();
+        try {
+            evaluateMethod(method, methodInfo, start);
+        } finally {
+            long end = System.nanoTime();
+            Metrics.time(Metrics.Phase.EVALUATE, end - prepassEnd);
+            methodNanos += end - start;
+        }
+    }
+
+    private void evaluateMethod(MethodNode method, MethodInfo methodInfo, long start) {
+        if (budget != null && !budget.allows(method.instructions.size())) {
+            overBudget(method, start, false);
+            return;
+        }
+
+        writer.mark();
+        evaluator.reset();
+        EvaluateMethodVisitor visitor = new EvaluateMethodVisitor(evaluator, methodInfo, writer);
+        visitor.setHierarchy(hierarchy);
+        if (budget != null) {
+            visitor.setDeadline(budget.deadline(start));
+        }
+        try {
+            ControlFlowGraph cfg = ControlFlowGraph.build(method);
+            if (cfg != null) {
+                methodInfo.setLocalTypes(new LocalTypes(method, className, cfg, hierarchy));
+            }
+            Structurer structurer = Structurer.create(method, cfg, visitor, evaluator, writer);
+            if (structurer != null) {
+                structurer.accept();
+            } else {
+                method.accept(visitor);
+            }
+        } catch (MethodBudget.Exceeded e) {
+            writer.reset();
+            evaluator.reset();
+            overBudget(method, start, true);
+        } catch (RuntimeException e) {
+            writer.reset();
+            evaluator.reset();
+            failed(method, e);
+        } catch (StackOverflowError e) {
+            writer.reset();
+            evaluator.reset();
+            failed(method, e);
+        }
+    }
+
+    private void overBudget(MethodNode method, long start, boolean timedOut) {
+        int instructions = method.instructions.size();
+        writeListing(method, String.format("over budget (%d instructions%s)", instructions,
+                timedOut ? String.format(", %.1f ms", (System.nanoTime() - start) / 1e6) : ""));
+        budget.record(className, new MethodKey(method.name, method.desc), instructions, System.nanoTime() - start,
+                timedOut);
+    }
+
+    private void failed(MethodNode method, Throwable cause) {
+        writeListing(method, "decompilation failed (" + cause + ")");
+        if (failures != null) {
+            failures.record(className.replace('/', '.'), new MethodKey(method.name, method.desc), cause);
+        }
+    }
 
-        final Evaluator evaluator = new Evaluator(writer);
+    /**
+     * Writes the method body as commented-out bytecode, which costs next to nothing
+     * however large or tangled the method is.
+     */
+    private void writeListing(MethodNode method, String reason) {
+        Textifier textifier = new Textifier();
+        try {
+            method.accept(new TraceMethodVisitor(textifier));
+        } catch (RuntimeException e) {
+            // code even the listing chokes on
+            writer.writeComment(reason + ", no bytecode listing (" + e + ")");
+            writer.endMethod();
+            listings++;
+            return;
+        }
+        writer.writeComment(reason + ", bytecode listing follows");
+        StringBuilder line = new StringBuilder();
+        writeText(textifier.getText(), line);
+        writer.endMethod();
+        listings++;
+    }
 
-        return new EvaluateMethodVisitor(evaluator, methodInfo, writer);
+    /**
+     * {@link Textifier} text is a tree of strings holding any number of lines each.
+     */
+    private void writeText(List<?> text, StringBuilder line) {
+        for (Object item : text) {
+            if (item instanceof List) {
+                writeText((List<?>) item, line);
+                continue;
+            }
+            String s = item.toString();
+            for (int i = 0; i < s.length(); ++i) {
+                char ch = s.charAt(i);
+                if (ch == '\n') {
+                    writer.writeComment(line.toString());
+                    line.setLength(0);
+                } else {
+                    line.append(ch);
+                }
+            }
+        }
     }
 
     @Override
@@ -131,27 +313,11 @@ public class DecompileVisitor extends ClassVisitor {
     }
 
     public void decompile(ClassReader reader) {
-        reader.accept(new ClassVisitor(Opcodes.ASM4) {
-            public String className;
-
-            @Override
-            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-                this.className = name;
-            }
-
-            @Override
-            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-                final MethodInfo methodInfo = new MethodInfo(className, access, name, desc, signature, exceptions);
-                methodInfos.put(methodInfo.getTag(), methodInfo);
-                return new MethodVisitor(Opcodes.ASM4) {
-                    @Override
-                    public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
-                        methodInfo.addVar(index, name, Type.getType(desc));
-                    }
-                };
-            }
-        }, 0);
+        long start = System.nanoTime();
+        methodNanos = 0;
         reader.accept(this, 0);
+        Metrics.time(Metrics.Phase.PARSE, System.nanoTime() - start - methodNanos);
+        Metrics.classDecompiled();
     }
 
 }
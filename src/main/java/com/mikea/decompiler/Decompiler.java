@@ -0,0 +1,221 @@
+package com.mikea.decompiler;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The decompiler as a library: sources are handed to the caller in memory instead of being
+ * written to files.
+ * <pre>
+ * Decompiler decompiler = new Decompiler();
+ * CharSequence source = decompiler.decompile(classBytes);
+ * decompiler.decompile(classBytes, 0, classBytes.length, reusedStringBuilder);
+ * decompiler.decompile(Arrays.asList(new File("app.jar")), new SourceSink() { ... });
+ * </pre>
+ * A single class is decompiled on the calling thread; jars and directories are
+ * decompiled in parallel and streamed to a {@link SourceSink} as each class is done, so
+ * only the classes in flight are ever held. Classes and methods that fail are stubbed and
+ * recorded in {@link #getFailures()} rather than thrown; {@link #takeFailures()} hands
+ * them over and starts a new report, so a long-lived instance does not pile them up.
+ * Once configured, an instance may be used by several threads at once.
+ */
+public class Decompiler {
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean threadPerClass;
+    private long memoryBytes = 256L * 1024 * 1024;
+    private DecompileCache cache;
+    private MethodBudget budget = new MethodBudget(30000, 2000);
+    private ClassHierarchy hierarchy;
+    private ClassFilter filter;
+    private volatile FailureReport failures = new FailureReport();
+
+    /**
+     * @param threads decompiling threads for jars and directories; 1 decompiles them on
+     *                the calling thread
+     */
+    public Decompiler threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param threadPerClass whether jars and directories are decompiled with a task per
+     *                       class, see {@link ParallelDecompiler#setThreadPerClass(boolean)};
+     *                       for inputs on slow storage
+     */
+    public Decompiler threadPerClass(boolean threadPerClass) {
+        this.threadPerClass = threadPerClass;
+        return this;
+    }
+
+    /**
+     * @param memoryBytes bytes of class files and sources to hold at most while decompiling
+     *                    jars and directories in parallel, or 0 for no limit
+     */
+    public Decompiler memory(long memoryBytes) {
+        this.memoryBytes = memoryBytes;
+        return this;
+    }
+
+    /**
+     * @param cache persistent cache of generated sources, or null
+     */
+    public Decompiler cache(DecompileCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * @param budget limits on a single method, or null for none
+     */
+    public Decompiler budget(MethodBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    /**
+     * @param hierarchy supertypes of single classes passed as bytes, or null if unknown;
+     *                  jars and directories get a hierarchy of their own classes
+     */
+    public Decompiler hierarchy(ClassHierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+        return this;
+    }
+
+    /**
+     * @param filter which classes of jars and directories to decompile, or null for all
+     */
+    public Decompiler filter(ClassFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * @return the failures since the last {@link #takeFailures()}
+     */
+    public FailureReport getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the failures since the last call, which are no longer kept; failures of
+     * calls still running may end up in either report
+     */
+    public synchronized FailureReport takeFailures() {
+        FailureReport taken = failures;
+        failures = new FailureReport();
+        return taken;
+    }
+
+    public CharSequence decompile(byte[] classFile) throws IOException {
+        StringBuilder source = new StringBuilder();
+        decompile(classFile, 0, classFile.length, source);
+        return source;
+    }
+
+    /**
+     * Decompiles the class file between the position and the limit of {@code classFile},
+     * leaving its position unchanged.
+     */
+    public CharSequence decompile(ByteBuffer classFile) throws IOException {
+        StringBuilder source = new StringBuilder();
+        decompile(classFile, source);
+        return source;
+    }
+
+    /**
+     * Appends the source of a class to {@code target}. The source is built in a pooled
+     * buffer and appended in one call, without a {@link String} in between, so a target
+     * that is reused (such as a cleared {@link StringBuilder}) costs nothing once it has
+     * grown.
+     */
+    public void decompile(byte[] classFile, int offset, int length, Appendable target) throws IOException {
+        ClassBuffer buffer = ClassBuffer.acquire();
+        try {
+            System.arraycopy(classFile, offset, buffer.data(length), 0, length);
+            buffer.setLength(length);
+            decompile(buffer, target);
+        } finally {
+            ClassBuffer.release(buffer);
+        }
+    }
+
+    /**
+     * See {@link #decompile(byte[], int, int, Appendable)}.
+     */
+    public void decompile(ByteBuffer classFile, Appendable target) throws IOException {
+        ClassBuffer buffer = ClassBuffer.acquire();
+        try {
+            int length = classFile.remaining();
+            classFile.duplicate().get(buffer.data(length), 0, length);
+            buffer.setLength(length);
+            decompile(buffer, target);
+        } finally {
+            ClassBuffer.release(buffer);
+        }
+    }
+
+    private void decompile(ClassBuffer buffer, final Appendable target) throws IOException {
+        byte[] bytes = buffer.bytes();
+        // a recycled buffer holds stale bytes past the length, which ClassReader would read
+        if (buffer.length() < 10 || (bytes[0] & 0xff) != 0xCA || (bytes[1] & 0xff) != 0xFE
+                || (bytes[2] & 0xff) != 0xBA || (bytes[3] & 0xff) != 0xBE) {
+            throw new IllegalArgumentException("Not a class file");
+        }
+        String className;
+        try {
+            className = new ClassReader(buffer.bytes(), 0, buffer.length()).getClassName().replace('/', '.');
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Not a class file", e);
+        }
+        SourceSink sink = new SourceSink() {
+            @Override
+            public void write(String className, CharSequence source) throws IOException {
+                target.append(source);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        App.decompile(className, buffer, sink, cache, budget, hierarchy, getFailures());
+    }
+
+    /**
+     * Decompiles the classes of jars and class directories, see {@link ClassPath}, handing
+     * each source to {@code sink} as soon as it is generated. Sources arrive in no
+     * particular order and, with more than one thread, from several threads at once. The
+     * sink is not closed.
+     */
+    public void decompile(List<File> inputs, SourceSink sink) throws IOException {
+        FailureReport failures = getFailures();
+        ClassPath classPath = new ClassPath();
+        classPath.setFailureReport(failures);
+        try {
+            for (File input : inputs) {
+                classPath.add(input);
+            }
+            List<ClassEntry> entries = filter != null ? filter.filter(classPath.entries()) : classPath.entries();
+            ClassHierarchy hierarchy = new ClassHierarchy(classPath);
+            ClassFilter bytesFilter = filter != null && filter.needsBytes() ? filter : null;
+            if (threads <= 1) {
+                for (ClassEntry entry : entries) {
+                    App.decompile(entry, sink, cache, budget, hierarchy, bytesFilter, failures);
+                }
+            } else {
+                ParallelDecompiler decompiler = new ParallelDecompiler(sink, threads, false, cache, budget,
+                        hierarchy, memoryBytes);
+                decompiler.setFilter(bytesFilter);
+                decompiler.setFailureReport(failures);
+                decompiler.setThreadPerClass(threadPerClass);
+                decompiler.decompile(entries);
+            }
+        } finally {
+            classPath.close();
+        }
+    }
+}
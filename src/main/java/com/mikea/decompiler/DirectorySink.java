@@ -0,0 +1,91 @@
+package com.mikea.decompiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes every class to {@code root/package/path/ClassName.java}.
+ * <p>
+ * Each source is encoded into a pooled byte buffer and written with a single call,
+ * either through a {@link FileOutputStream} or, when {@code useChannel} is set, through a
+ * {@link FileChannel} from a direct buffer. Package directories are created once per run.
+ */
+public class DirectorySink implements SourceSink {
+    private final File root;
+    private final Charset charset;
+    private final boolean useChannel;
+    private final Set<String> createdDirs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentLinkedQueue<SourceEncoder> encoders = new ConcurrentLinkedQueue<SourceEncoder>();
+
+    public DirectorySink(File root, boolean useChannel) {
+        this(root, Charset.defaultCharset(), useChannel);
+    }
+
+    public DirectorySink(File root, Charset charset, boolean useChannel) {
+        this.root = root;
+        this.charset = charset;
+        this.useChannel = useChannel;
+    }
+
+    @Override
+    public void write(String className, CharSequence source) throws IOException {
+        String path = className.replace('.', '/');
+        int slash = path.lastIndexOf('/');
+        if (slash >= 0) {
+            ensureDirectory(path.substring(0, slash));
+        } else {
+            ensureDirectory("");
+        }
+
+        SourceEncoder encoder = encoders.poll();
+        if (encoder == null) {
+            encoder = new SourceEncoder(charset, useChannel);
+        }
+        int length;
+        try {
+            ByteBuffer bytes = encoder.encode(source);
+            length = bytes.remaining();
+            FileOutputStream out = new FileOutputStream(new File(root, path + ".java"));
+            try {
+                if (bytes.hasArray()) {
+                    out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                } else {
+                    FileChannel channel = out.getChannel();
+                    while (bytes.hasRemaining()) {
+                        channel.write(bytes);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            // the bytes belong to the encoder until written
+            encoders.offer(encoder);
+        }
+        Metrics.bytesWritten(length);
+    }
+
+    private void ensureDirectory(String dir) throws IOException {
+        if (createdDirs.contains(dir)) {
+            return;
+        }
+        File file = new File(root, dir);
+        if (!file.mkdirs() && !file.isDirectory()) {
+            throw new IOException("Can't create directory " + file);
+        }
+        createdDirs.add(dir);
+    }
+
+    @Override
+    public void close() {
+        createdDirs.clear();
+    }
+}
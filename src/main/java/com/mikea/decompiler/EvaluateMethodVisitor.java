@@ -7,27 +7,133 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  */
 class EvaluateMethodVisitor extends MethodVisitor {
+    private static final Template ARRAY_LENGTH = Template.compile("{0}.length");
+    private static final Template TO_LONG = Template.compile("((long){0})");
+    private static final Template TO_CHAR = Template.compile("((char){0})");
+    private static final Template TO_BYTE = Template.compile("((byte){0})");
+    private static final Template TO_DOUBLE = Template.compile("((double){0})");
+    private static final Template TO_INT = Template.compile("((int){0})");
+    private static final Template TO_FLOAT = Template.compile("((float){0})");
+    private static final Template INT_OR = Template.compile("{0} | {1}");
+    private static final Template AND = Template.compile("{0} & {1}");
+    private static final Template ADD = Template.compile("{0} + {1}");
+    private static final Template SUB = Template.compile("{0} - {1}");
+    private static final Template DIV = Template.compile("{0} / {1}");
+    private static final Template REM = Template.compile("{0} % {1}");
+    private static final Template XOR = Template.compile("{0} ^ {1}");
+    private static final Template MUL = Template.compile("{0} * {1}");
+    private static final Template NEG = Template.compile("-{0}");
+    private static final Template OR = Template.compile("{0} | {1}");
+    private static final Template ARRAY_LOAD = Template.compile("{0}[{1}]", Evaluator.READS_HEAP);
+    private static final Template USHR = Template.compile("{0} >>> {1}");
+    private static final Template SHR = Template.compile("{0} >> {1}");
+    private static final Template SHL = Template.compile("{0} << {1}");
+    private static final Template DCMP = Template.compile("{0} > {1} ? 1 : ({0} == {1} ? 0 : -1) /* TODO */");
+    private static final Template LCMP = Template.compile("{0} > {1} ? 1 : ({0} == {1} ? 0 : -1)");
+    private static final Template ARRAY_STORE = Template.compile("{0}[{1}] = {2}", Evaluator.WRITES_HEAP);
+    private static final Template RETURN_VALUE = Template.compile("return {0}");
+    private static final Template THROW = Template.compile("throw {0}");
+    private static final Template RETURN = Template.compile("return");
+    private static final Template NEW_ARRAY = Template.compile("new {1}[{0}]", Evaluator.SIDE_EFFECTS);
+    private static final Template NEW = Template.compile("new {0}", Evaluator.UNINITIALIZED);
+    private static final Template CHECKCAST = Template.compile("({1}) {0}");
+    private static final Template INSTANCEOF = Template.compile("{0} instanceof {1}");
+    private static final Template STORE = Template.compile("{1} = {0}", Evaluator.WRITES_LOCAL);
+    private static final Template PUTFIELD = Template.compile("{0}.{2} = {1}", Evaluator.WRITES_HEAP);
+    private static final Template PUTSTATIC = Template.compile("{1}.{2} = {0}", Evaluator.WRITES_HEAP);
+    private static final Template IINC = Template.compile("{0}+={1}", Evaluator.WRITES_LOCAL);
+    /**
+     * The value switched on, then the cases.
+     */
+    private static final Template SWITCH = Template.compile("switch ({0}) '{'{1}}");
+    /**
+     * By number of dimensions: their sizes, then the element type.
+     */
+    private static final Template[] MULTI_NEW_ARRAYS = new Template[256];
+
+    static {
+        for (int dims = 1; dims < MULTI_NEW_ARRAYS.length; ++dims) {
+            StringBuilder pattern = new StringBuilder("new {").append(dims).append('}');
+            for (int i = 0; i < dims; ++i) {
+                pattern.append("[{").append(i).append("}]");
+            }
+            MULTI_NEW_ARRAYS[dims] = Template.compile(pattern.toString(), Evaluator.SIDE_EFFECTS);
+        }
+    }
+
     private final Evaluator evaluator;
     private final MethodInfo methodInfo;
     private final JavaSourceWriter writer;
+    private final Map<Label, String> labelNames = new HashMap<Label, String>();
+    /**
+     * Number of labels visited so far, the position used for local variable scopes.
+     */
+    private int position = 0;
+    /**
+     * Whether a {@link Structurer} replays the code block by block and passes the stack
+     * between blocks itself. Otherwise no expression is left pending across a label.
+     */
+    private boolean structured = false;
+    /**
+     * {@link System#nanoTime()} after which visiting throws {@link MethodBudget.Exceeded}, or 0.
+     */
+    private long deadline = 0;
+    private int visited = 0;
+    private ClassHierarchy hierarchy;
 
     public EvaluateMethodVisitor(Evaluator evaluator, MethodInfo methodInfo, JavaSourceWriter writer) {
         super(Opcodes.ASM4);
         this.evaluator = evaluator;
         this.methodInfo = methodInfo;
         this.writer = writer;
+    }
 
-        if (methodInfo.className.equals("com/numericalmethod/suanshu/stats/timeseries/linear/multivariate/stationaryprocess/InnovationAlgorithmImpl")) {
-            System.out.println("");
+    /**
+     * @param hierarchy supertypes of the classes being decompiled, or null if unknown
+     */
+    void setHierarchy(ClassHierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+    }
+
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Counts the instruction and looks at the clock every 64 of them.
+     */
+    private void instruction(int opcode) {
+        Metrics.opcode(opcode);
+        checkDeadline();
+    }
+
+    private void checkDeadline() {
+        if (deadline != 0 && (++visited & 63) == 0 && System.nanoTime() - deadline > 0) {
+            throw new MethodBudget.Exceeded();
         }
     }
 
+    void setStructured(boolean structured) {
+        this.structured = structured;
+    }
+
+    /**
+     * Sets the position for code that is not visited in order, see {@link Structurer}.
+     */
+    void setPosition(int position) {
+        this.position = position;
+    }
+
     @Override
     public AnnotationVisitor visitAnnotationDefault() {
-        throw new UnsupportedOperationException("Method visitAnnotationDefault not implemented in  .");
+        writer.writeComment("visitAnnotationDefault");
+        return null;
     }
 
     @Override
@@ -38,17 +144,16 @@ class EvaluateMethodVisitor extends MethodVisitor {
     }
 
     @Override
-    public AnnotationVisitor visitParameterAnnotation(int i, String s, boolean b) {
+    public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
         evaluator.flush();
-        throw new UnsupportedOperationException("Method visitParameterAnnotation not implemented in  .");
-
+        writer.writeComment("visitParameterAnnotation: " + parameter + " - " + desc + " - " + visible);
+        return null;
     }
 
     @Override
     public void visitAttribute(Attribute attribute) {
         evaluator.flush();
-        throw new UnsupportedOperationException("Method visitAttribute not implemented in  .");
-
+        writer.writeComment("visitAttribute: " + attribute.type);
     }
 
     @Override
@@ -56,13 +161,13 @@ class EvaluateMethodVisitor extends MethodVisitor {
     }
 
     @Override
-    public void visitFrame(int i, int i1, Object[] objects, int i2, Object[] objects1) {
-        evaluator.flush();
-        throw new UnsupportedOperationException("Method visitFrame not implemented in  .");
+    public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+        // frames only restate types, which LocalTypes has already read
     }
 
     @Override
     public void visitInsn(int opcode) {
+        instruction(opcode);
         switch (opcode) {
             case Opcodes.ACONST_NULL: {
                 evaluator.load("null", Type.getType(Object.class));
@@ -145,193 +250,196 @@ class EvaluateMethodVisitor extends MethodVisitor {
                 break;
             }
             case Opcodes.ARRAYLENGTH: {
-                evaluator.expr1("{0}.length", Type.INT_TYPE);
+                evaluator.expr1(ARRAY_LENGTH, Type.INT_TYPE);
                 break;
             }
             case Opcodes.I2L: {
-                evaluator.expr1("((long){0})", Type.LONG_TYPE);
+                evaluator.expr1(TO_LONG, Type.LONG_TYPE);
                 break;
             }
             case Opcodes.I2C: {
-                evaluator.expr1("((char){0})", Type.CHAR_TYPE);
+                evaluator.expr1(TO_CHAR, Type.CHAR_TYPE);
                 break;
             }
             case Opcodes.I2B: {
-                evaluator.expr1("((byte){0})", Type.BYTE_TYPE);
+                evaluator.expr1(TO_BYTE, Type.BYTE_TYPE);
                 break;
             }
             case Opcodes.F2D:
             case Opcodes.L2D:
             case Opcodes.I2D: {
-                evaluator.expr1("((double){0})", Type.DOUBLE_TYPE);
+                evaluator.expr1(TO_DOUBLE, Type.DOUBLE_TYPE);
                 break;
             }
             case Opcodes.D2I:
             case Opcodes.L2I: {
-                evaluator.expr1("((int){0})", Type.INT_TYPE);
+                evaluator.expr1(TO_INT, Type.INT_TYPE);
                 break;
             }
             case Opcodes.D2F:
             case Opcodes.I2F:
             case Opcodes.L2F: {
-                evaluator.expr1("((float){0})", Type.FLOAT_TYPE);
+                evaluator.expr1(TO_FLOAT, Type.FLOAT_TYPE);
                 break;
             }
             case Opcodes.IOR: {
-                evaluator.expr2("{0} } {1}", Type.INT_TYPE);
+                evaluator.expr2(INT_OR, Type.INT_TYPE);
                 break;
             }
             case Opcodes.IAND: {
-                evaluator.expr2("{0} & {1}", Type.INT_TYPE);
+                evaluator.expr2(AND, Type.INT_TYPE);
                 break;
             }
             case Opcodes.IADD: {
-                evaluator.expr2("{0} + {1}", Type.INT_TYPE);
+                evaluator.expr2(ADD, Type.INT_TYPE);
                 break;
             }
             case Opcodes.ISUB: {
-                evaluator.expr2("{0} - {1}", Type.INT_TYPE);
+                evaluator.expr2(SUB, Type.INT_TYPE);
                 break;
             }
             case Opcodes.IDIV: {
-                evaluator.expr2("{0} / {1}", Type.INT_TYPE);
+                evaluator.expr2(DIV, Type.INT_TYPE);
                 break;
             }
             case Opcodes.IREM: {
-                evaluator.expr2("{0} % {1}", Type.INT_TYPE);
+                evaluator.expr2(REM, Type.INT_TYPE);
                 break;
             }
             case Opcodes.IXOR: {
-                evaluator.expr2("{0} ^ {1}", Type.INT_TYPE);
+                evaluator.expr2(XOR, Type.INT_TYPE);
                 break;
             }
             case Opcodes.LREM: {
-                evaluator.expr2("{0} % {1}", Type.LONG_TYPE);
+                evaluator.expr2(REM, Type.LONG_TYPE);
                 break;
             }
             case Opcodes.IMUL: {
-                evaluator.expr2("{0} * {1}", Type.INT_TYPE);
+                evaluator.expr2(MUL, Type.INT_TYPE);
                 break;
             }
             case Opcodes.FMUL: {
-                evaluator.expr2("{0} * {1}", Type.FLOAT_TYPE);
+                evaluator.expr2(MUL, Type.FLOAT_TYPE);
                 break;
             }
             case Opcodes.FDIV: {
-                evaluator.expr2("{0} / {1}", Type.FLOAT_TYPE);
+                evaluator.expr2(DIV, Type.FLOAT_TYPE);
                 break;
             }
             case Opcodes.DNEG: {
-                evaluator.expr1("-{0}", Type.DOUBLE_TYPE);
+                evaluator.expr1(NEG, Type.DOUBLE_TYPE);
                 break;
             }
             case Opcodes.FNEG: {
-                evaluator.expr1("-{0}", Type.FLOAT_TYPE);
+                evaluator.expr1(NEG, Type.FLOAT_TYPE);
                 break;
             }
             case Opcodes.INEG: {
-                evaluator.expr1("-{0}", Type.INT_TYPE);
+                evaluator.expr1(NEG, Type.INT_TYPE);
                 break;
             }
             case Opcodes.LNEG: {
-                evaluator.expr1("-{0}", Type.LONG_TYPE);
+                evaluator.expr1(NEG, Type.LONG_TYPE);
                 break;
             }
             case Opcodes.DSUB: {
-                evaluator.expr2("{0} - {1}", Type.DOUBLE_TYPE);
+                evaluator.expr2(SUB, Type.DOUBLE_TYPE);
                 break;
             }
             case Opcodes.DDIV: {
-                evaluator.expr2("{0} / {1}", Type.DOUBLE_TYPE);
+                evaluator.expr2(DIV, Type.DOUBLE_TYPE);
                 break;
             }
             case Opcodes.DMUL: {
-                evaluator.expr2("{0} * {1}", Type.DOUBLE_TYPE);
+                evaluator.expr2(MUL, Type.DOUBLE_TYPE);
                 break;
             }
             case Opcodes.DADD: {
-                evaluator.expr2("{0} + {1}", Type.DOUBLE_TYPE);
+                evaluator.expr2(ADD, Type.DOUBLE_TYPE);
                 break;
             }
             case Opcodes.LXOR: {
-                evaluator.expr2("{0} ^ {1}", Type.LONG_TYPE);
+                evaluator.expr2(XOR, Type.LONG_TYPE);
                 break;
             }
             case Opcodes.LAND: {
-                evaluator.expr2("{0} & {1}", Type.LONG_TYPE);
+                evaluator.expr2(AND, Type.LONG_TYPE);
                 break;
             }
             case Opcodes.LADD: {
-                evaluator.expr2("{0} + {1}", Type.LONG_TYPE);
+                evaluator.expr2(ADD, Type.LONG_TYPE);
                 break;
             }
             case Opcodes.LSUB: {
-                evaluator.expr2("{0} - {1}", Type.LONG_TYPE);
+                evaluator.expr2(SUB, Type.LONG_TYPE);
                 break;
             }
             case Opcodes.LDIV: {
-                evaluator.expr2("{0} / {1}", Type.LONG_TYPE);
+                evaluator.expr2(DIV, Type.LONG_TYPE);
                 break;
             }
             case Opcodes.LMUL: {
-                evaluator.expr2("{0} * {1}", Type.LONG_TYPE);
+                evaluator.expr2(MUL, Type.LONG_TYPE);
                 break;
             }
             case Opcodes.LOR: {
-                evaluator.expr2("{0} | {1}", Type.LONG_TYPE);
+                evaluator.expr2(OR, Type.LONG_TYPE);
                 break;
             }
             case Opcodes.DALOAD: {
-                evaluator.expr2("{0}[{1}]", Type.DOUBLE_TYPE);
+                evaluator.expr2(ARRAY_LOAD, Type.DOUBLE_TYPE);
                 break;
             }
             case Opcodes.BALOAD: {
-                evaluator.expr2("{0}[{1}]", Type.BYTE_TYPE);
+                evaluator.expr2(ARRAY_LOAD, Type.BYTE_TYPE);
                 break;
             }
             case Opcodes.LALOAD: {
-                evaluator.expr2("{0}[{1}]", Type.LONG_TYPE);
+                evaluator.expr2(ARRAY_LOAD, Type.LONG_TYPE);
                 break;
             }
             case Opcodes.IALOAD: {
-                evaluator.expr2("{0}[{1}]", Type.INT_TYPE);
+                evaluator.expr2(ARRAY_LOAD, Type.INT_TYPE);
                 break;
             }
             case Opcodes.CALOAD: {
-                evaluator.expr2("{0}[{1}]", Type.CHAR_TYPE);
+                evaluator.expr2(ARRAY_LOAD, Type.CHAR_TYPE);
                 break;
             }
             case Opcodes.AALOAD: {
-                evaluator.expr2("{0}[{1}]", Type.getType(Object.class));
+                Type array = evaluator.peekType(1);
+                Type element = array != null && array.getSort() == Type.ARRAY
+                        ? Type.getType(array.getDescriptor().substring(1)) : Type.getType(Object.class);
+                evaluator.expr2(ARRAY_LOAD, element);
                 break;
             }
             case Opcodes.LUSHR: {
-                evaluator.expr2("{0} >>> {1}", Type.LONG_TYPE);
+                evaluator.expr2(USHR, Type.LONG_TYPE);
                 break;
             }
             case Opcodes.IUSHR: {
-                evaluator.expr2("{0} >>> {1}", Type.INT_TYPE);
+                evaluator.expr2(USHR, Type.INT_TYPE);
                 break;
             }
             case Opcodes.LSHR: {
-                evaluator.expr2("{0} >> {1}", Type.LONG_TYPE);
+                evaluator.expr2(SHR, Type.LONG_TYPE);
                 break;
             }
             case Opcodes.ISHL: {
-                evaluator.expr2("{0} << {1}", Type.INT_TYPE);
+                evaluator.expr2(SHL, Type.INT_TYPE);
                 break;
             }
             case Opcodes.ISHR: {
-                evaluator.expr2("{0} >> {1}", Type.INT_TYPE);
+                evaluator.expr2(SHR, Type.INT_TYPE);
                 break;
             }
             case Opcodes.DCMPL:
             case Opcodes.DCMPG: {
-                evaluator.expr2("{0} > {1} ? 1 : ({0} == {1} ? 0 : -1) /* TODO */", Type.INT_TYPE);
+                evaluator.expr2(DCMP, Type.INT_TYPE);
                 break;
             }
             case Opcodes.LCMP: {
-                evaluator.expr2("{0} > {1} ? 1 : ({0} == {1} ? 0 : -1)", Type.INT_TYPE);
+                evaluator.expr2(LCMP, Type.INT_TYPE);
                 break;
             }
             case Opcodes.BASTORE:
@@ -341,7 +449,7 @@ class EvaluateMethodVisitor extends MethodVisitor {
             case Opcodes.LASTORE:
             case Opcodes.IASTORE:
             case Opcodes.AASTORE: {
-                evaluator.stmt3("({0})[{1}]={2}");
+                evaluator.stmt3(ARRAY_STORE);
                 break;
             }
             case Opcodes.ARETURN:
@@ -349,15 +457,15 @@ class EvaluateMethodVisitor extends MethodVisitor {
             case Opcodes.LRETURN:
             case Opcodes.FRETURN:
             case Opcodes.IRETURN: {
-                evaluator.stmt1("return {0}");
+                evaluator.stmt1(RETURN_VALUE);
                 break;
             }
             case Opcodes.ATHROW: {
-                evaluator.stmt1("throw {0}");
+                evaluator.stmt1(THROW);
                 break;
             }
             case Opcodes.RETURN: {
-                evaluator.stmt0("return");
+                evaluator.stmt0(RETURN);
                 break;
             }
             default: {
@@ -370,6 +478,7 @@ class EvaluateMethodVisitor extends MethodVisitor {
 
     @Override
     public void visitIntInsn(int opcode, int operand) {
+        instruction(opcode);
         switch (opcode) {
             case Opcodes.SIPUSH: {
                 evaluator.load(String.valueOf(operand), Type.INT_TYPE);
@@ -403,10 +512,10 @@ class EvaluateMethodVisitor extends MethodVisitor {
                         t = Type.LONG_TYPE;
                         break;
                     default: {
-                        throw new IllegalArgumentException();
+                        throw new IllegalArgumentException("Unknown NEWARRAY type " + operand);
                     }
                 }
-                evaluator.expr1("new " + DecompileVisitor.toJavaType(t) + "[{0}]", Type.getType("[" + t.toString()));
+                evaluator.expr(NEW_ARRAY, Type.getType("[" + t.toString()), 1, DecompileVisitor.toJavaType(t));
                 break;
             }
             case Opcodes.BIPUSH: {
@@ -423,25 +532,27 @@ class EvaluateMethodVisitor extends MethodVisitor {
 
     @Override
     public void visitVarInsn(int opcode, int var) {
+        instruction(opcode);
         switch (opcode) {
             case Opcodes.ILOAD: {
-                evaluator.load(methodInfo.getVarName(var), Type.INT_TYPE);
+                evaluator.load(methodInfo.getVarName(var, position), Type.INT_TYPE, Evaluator.READS_LOCALS);
                 break;
             }
             case Opcodes.DLOAD: {
-                evaluator.load(methodInfo.getVarName(var), Type.DOUBLE_TYPE);
+                evaluator.load(methodInfo.getVarName(var, position), Type.DOUBLE_TYPE, Evaluator.READS_LOCALS);
                 break;
             }
             case Opcodes.LLOAD: {
-                evaluator.load(methodInfo.getVarName(var), Type.LONG_TYPE);
+                evaluator.load(methodInfo.getVarName(var, position), Type.LONG_TYPE, Evaluator.READS_LOCALS);
                 break;
             }
             case Opcodes.FLOAD: {
-                evaluator.load(methodInfo.getVarName(var), Type.FLOAT_TYPE);
+                evaluator.load(methodInfo.getVarName(var, position), Type.FLOAT_TYPE, Evaluator.READS_LOCALS);
                 break;
             }
             case Opcodes.ALOAD: {
-                evaluator.load(methodInfo.getVarName(var), methodInfo.getVarType(var));
+                evaluator.load(methodInfo.getVarName(var, position), methodInfo.getVarType(var, position),
+                        Evaluator.READS_LOCALS);
                 break;
             }
             case Opcodes.ASTORE:
@@ -449,7 +560,7 @@ class EvaluateMethodVisitor extends MethodVisitor {
             case Opcodes.LSTORE:
             case Opcodes.ISTORE:
             case Opcodes.DSTORE: {
-                evaluator.stmt1(methodInfo.getVarName(var) + " = {0}");
+                evaluator.stmt(STORE, 1, methodInfo.getStoredVarName(var, position));
                 break;
             }
             default: {
@@ -462,23 +573,29 @@ class EvaluateMethodVisitor extends MethodVisitor {
 
     @Override
     public void visitTypeInsn(int opcode, String type) {
+        instruction(opcode);
         switch (opcode) {
             case Opcodes.ANEWARRAY: {
-                evaluator.expr1("new " + type + "[{0}]", Type.getType("[" + type));
+                evaluator.expr(NEW_ARRAY, Type.getType("[" + Type.getObjectType(type).getDescriptor()), 1, type);
                 return;
             }
             case Opcodes.NEW: {
-                evaluator.expr0("new " + type, Type.getType(type));
+                evaluator.expr(NEW, Type.getType(type), 0, type);
                 return;
             }
             case Opcodes.CHECKCAST: {
-                Type t = Type.getType(type);
-                evaluator.expr1("({0} instanceof " + DecompileVisitor.toJavaType(t) + ") ? {0} : throw new ClassCastException()", t);
+                Type t = Type.getObjectType(type);
+                Type operand = evaluator.peekType(0);
+                if (hierarchy != null && operand != null && hierarchy.isAssignable(operand, t)) {
+                    // a no-op, the value already has the type
+                    return;
+                }
+                evaluator.expr(CHECKCAST, t, 1, DecompileVisitor.toJavaType(t));
                 return;
             }
             case Opcodes.INSTANCEOF: {
-                Type t = Type.getType(type);
-                evaluator.expr1("{0} instanceof " + DecompileVisitor.toJavaType(t), t);
+                Type t = Type.getObjectType(type);
+                evaluator.expr(INSTANCEOF, Type.BOOLEAN_TYPE, 1, DecompileVisitor.toJavaType(t));
                 return;
             }
             default: {
@@ -490,21 +607,22 @@ class EvaluateMethodVisitor extends MethodVisitor {
 
     @Override
     public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+        instruction(opcode);
         switch (opcode) {
             case Opcodes.GETFIELD: {
                 evaluator.getField(owner, name, Type.getType(desc));
                 return;
             }
             case Opcodes.GETSTATIC: {
-                evaluator.load(owner + "." + name, Type.getType(desc));
+                evaluator.load(owner + "." + name, Type.getType(desc), Evaluator.READS_HEAP);
                 return;
             }
             case Opcodes.PUTFIELD: {
-                evaluator.stmt2("{0}." + name + " = {1}");
+                evaluator.stmt(PUTFIELD, 2, name);
                 return;
             }
             case Opcodes.PUTSTATIC: {
-                evaluator.stmt1(owner + "." + name + " = {0}");
+                evaluator.stmt(PUTSTATIC, 1, owner, name);
                 return;
             }
             default: {
@@ -517,6 +635,7 @@ class EvaluateMethodVisitor extends MethodVisitor {
 
     @Override
     public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+        instruction(opcode);
         switch (opcode) {
             case Opcodes.INVOKESTATIC: {
                 Type returnType = Type.getReturnType(desc);
@@ -539,7 +658,11 @@ class EvaluateMethodVisitor extends MethodVisitor {
             case Opcodes.INVOKESPECIAL: {
                 Type returnType = Type.getReturnType(desc);
                 Type[] types = Type.getArgumentTypes(desc);
-                evaluator.staticCall(name, types.length, returnType);
+                if (name.equals("<init>")) {
+                    evaluator.constructorCall(owner.equals(methodInfo.className) ? "this" : "super", types.length);
+                } else {
+                    evaluator.virtualCall(name, types.length, returnType);
+                }
                 return;
             }
             default: {
@@ -551,89 +674,110 @@ class EvaluateMethodVisitor extends MethodVisitor {
 
     @Override
     public void visitJumpInsn(int opcode, Label label) {
+        instruction(opcode);
         switch (opcode) {
             case Opcodes.IF_ACMPNE: {
-                evaluator.condJump2("!=", label);
+                evaluator.condJump2("!=", getLabelName(label));
                 break;
             }
             case Opcodes.IF_ACMPEQ: {
-                evaluator.condJump2("==", label);
+                evaluator.condJump2("==", getLabelName(label));
                 break;
             }
             case Opcodes.IF_ICMPEQ: {
-                evaluator.condJump2("==", label);
+                evaluator.condJump2("==", getLabelName(label));
                 break;
             }
             case Opcodes.IF_ICMPGE: {
-                evaluator.condJump2(">=", label);
+                evaluator.condJump2(">=", getLabelName(label));
                 break;
             }
             case Opcodes.IF_ICMPLE: {
-                evaluator.condJump2("<=", label);
+                evaluator.condJump2("<=", getLabelName(label));
                 break;
             }
             case Opcodes.IF_ICMPGT: {
-                evaluator.condJump2(">", label);
+                evaluator.condJump2(">", getLabelName(label));
                 break;
             }
             case Opcodes.IF_ICMPLT: {
-                evaluator.condJump2("<", label);
+                evaluator.condJump2("<", getLabelName(label));
                 break;
             }
             case Opcodes.IF_ICMPNE: {
-                evaluator.condJump2("!=", label);
+                evaluator.condJump2("!=", getLabelName(label));
                 break;
             }
             case Opcodes.IFGE: {
-                evaluator.condJump1(">=0", label);
+                evaluator.condJump1(">=0", getLabelName(label));
                 break;
             }
             case Opcodes.IFGT: {
-                evaluator.condJump1(">0", label);
+                evaluator.condJump1(">0", getLabelName(label));
                 break;
             }
             case Opcodes.IFLE: {
-                evaluator.condJump1("<=0", label);
+                evaluator.condJump1("<=0", getLabelName(label));
                 break;
             }
             case Opcodes.IFLT: {
-                evaluator.condJump1("<0", label);
+                evaluator.condJump1("<0", getLabelName(label));
                 break;
             }
             case Opcodes.IFNE: {
-                evaluator.condJump1("!=0", label);
+                evaluator.condJump1("!=0", getLabelName(label));
                 break;
             }
             case Opcodes.IFEQ: {
-                evaluator.condJump1("==0", label);
+                evaluator.condJump1("==0", getLabelName(label));
                 break;
             }
             case Opcodes.GOTO: {
-                writer.writeComment("GOTO " + label);
+                evaluator.materialize();
+                writer.writeComment("GOTO " + getLabelName(label));
                 break;
             }
             case Opcodes.IFNULL: {
-                evaluator.condJump1(" == null", label);
+                evaluator.condJump1(" == null", getLabelName(label));
                 break;
             }
             case Opcodes.IFNONNULL: {
-                evaluator.condJump1(" != null", label);
+                evaluator.condJump1(" != null", getLabelName(label));
                 break;
             }
             default: {
                 evaluator.flush();
-                writer.writeComment("visitJumpInsn: " + opcode + " - " + label);
+                writer.writeComment("visitJumpInsn: " + opcode + " - " + getLabelName(label));
             }
         }
     }
 
     @Override
     public void visitLabel(Label label) {
-        writer.writeComment("visitLabel: " + label);
+        checkDeadline();
+        position++;
+        if (!structured) {
+            evaluator.materialize();
+        }
+        writer.writeComment("visitLabel: " + getLabelName(label));
+    }
+
+    /**
+     * Labels are numbered in the order they are first seen, so the output does
+     * not depend on identity hash codes.
+     */
+    private String getLabelName(Label label) {
+        String name = labelNames.get(label);
+        if (name == null) {
+            name = "L" + labelNames.size();
+            labelNames.put(label, name);
+        }
+        return name;
     }
 
     @Override
     public void visitLdcInsn(Object cst) {
+        instruction(Opcodes.LDC);
         if (cst instanceof String) {
             evaluator.load("\"" + cst.toString() + "\"", Type.getType(cst.getClass()));
         } else if (cst instanceof Double) {
@@ -652,45 +796,44 @@ class EvaluateMethodVisitor extends MethodVisitor {
 
     @Override
     public void visitIincInsn(int var, int increment) {
-        evaluator.stmt0(methodInfo.getVarName(var) + "+=" + increment);
+        instruction(Opcodes.IINC);
+        evaluator.stmt(IINC, 0, methodInfo.getVarName(var, position), String.valueOf(increment));
     }
 
     @Override
     public void visitTableSwitchInsn(int min, int max, Label dflt, Label[] labels) {
-        String expr = "switch ({0}) '{'";
+        instruction(Opcodes.TABLESWITCH);
+        StringBuilder cases = new StringBuilder();
         for (int i = 0; i < max - min + 1; ++i) {
-            expr += "case " + (i + min) + ": GOTO " + labels[i] + "\n";
+            cases.append("case ").append(i + min).append(": GOTO ").append(getLabelName(labels[i])).append('\n');
         }
-        expr += "default: " + ": GOTO " + dflt + "\n";
-        expr += "}";
-        evaluator.stmt1(expr);
+        cases.append("default: : GOTO ").append(getLabelName(dflt)).append('\n');
+        evaluator.stmt(SWITCH, 1, cases.toString());
     }
 
     @Override
     public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
-        String expr = "switch ({0}) '{'";
+        instruction(Opcodes.LOOKUPSWITCH);
+        StringBuilder cases = new StringBuilder();
         for (int i = 0; i < keys.length; ++i) {
-            expr += "case " + keys[i] + ": GOTO " + labels[i] + "\n";
+            cases.append("case ").append(keys[i]).append(": GOTO ").append(getLabelName(labels[i])).append('\n');
         }
-        expr += "default: " + ": GOTO " + dflt + "\n";
-        expr += "}";
-        evaluator.stmt1(expr);
+        cases.append("default: : GOTO ").append(getLabelName(dflt)).append('\n');
+        evaluator.stmt(SWITCH, 1, cases.toString());
     }
 
     @Override
     public void visitMultiANewArrayInsn(String desc, int dims) {
-        String expr = "";
-        for (int i = 0; i < dims; i++) {
-            expr += "[{" + i + "}]";
-        }
-        Type elementType = Type.getType(desc).getElementType();
-        evaluator.expr("new " + DecompileVisitor.toJavaType(elementType) + expr, Type.getType(desc), dims);
+        instruction(Opcodes.MULTIANEWARRAY);
+        Type type = Type.getType(desc);
+        evaluator.expr(MULTI_NEW_ARRAYS[dims], type, dims, DecompileVisitor.toJavaType(type.getElementType()));
     }
 
     @Override
     public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
         evaluator.flush();
-        writer.writeComment("visitTryCatchBlock: " + start + " - " + end + " - " + handler + " - " + type);
+        writer.writeComment("visitTryCatchBlock: " + getLabelName(start) + " - " + getLabelName(end) + " - "
+                + getLabelName(handler) + " - " + type);
     }
 
     @Override
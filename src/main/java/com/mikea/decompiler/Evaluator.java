@@ -1,28 +1,123 @@
 package com.mikea.decompiler;
 
-import org.objectweb.asm.Label;
 import org.objectweb.asm.Type;
 
-import java.text.FieldPosition;
-import java.text.MessageFormat;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Stack;
-
 /**
+ * Keeps the operand stack as expressions rather than temporaries. An expression is
+ * written out only when something could change what it evaluates to or when it
+ * evaluates, see {@link #materialize()}.
  */
 public class Evaluator {
+    /**
+     * The expression reads local variables.
+     */
+    static final int READS_LOCALS = 1;
+    /**
+     * The expression reads fields or array elements.
+     */
+    static final int READS_HEAP = 2;
+    /**
+     * Evaluating the expression has effects of its own: a call or an allocation.
+     */
+    static final int SIDE_EFFECTS = 4;
+    /**
+     * The expression reads the values a predecessor block left on the stack, see {@link #spill()}.
+     */
+    static final int READS_STACK = 8;
+    /**
+     * The expression is an object allocated by NEW whose constructor has not run yet.
+     */
+    static final int UNINITIALIZED = 16;
+    /**
+     * Bits holding how much looser than {@link Template#PRIMARY} the expression binds;
+     * none are set if it never needs parentheses.
+     */
+    static final int COMPOUND = 0xf << 8;
+    /**
+     * Template flag: the statement only stores the local variable named by its first immediate.
+     */
+    static final int WRITES_LOCAL = 32;
+    /**
+     * Template flag: the statement only stores a field or an array element.
+     */
+    static final int WRITES_HEAP = 64;
+
+    /**
+     * Flags of the expressions that must be evaluated before the next statement.
+     */
+    private static final int PENDING = READS_LOCALS | READS_HEAP | SIDE_EFFECTS;
+
+    private static final String[] TEMP_NAMES = new String[256];
+    private static final String[] SLOT_NAMES = new String[16];
+    private static final String[] PLACEHOLDERS = new String[16];
+
+    private static final int[] SWAP = {1, 0};
+    private static final int[] DUP_X1 = {1, 0, 1};
+    private static final int[] DUP_X2 = {2, 0, 1, 2};
+    private static final int[] DUP2 = {0, 1, 0, 1};
+    private static final int[] DUP2_WIDE = {0, 0};
+    private static final int[] DUP2_X1 = {1, 2, 0, 1, 2};
+
+    static {
+        for (int i = 0; i < TEMP_NAMES.length; ++i) {
+            TEMP_NAMES[i] = "__temp_" + i;
+        }
+        for (int i = 0; i < SLOT_NAMES.length; ++i) {
+            SLOT_NAMES[i] = "__stack_" + i;
+        }
+        for (int i = 0; i < PLACEHOLDERS.length; ++i) {
+            PLACEHOLDERS[i] = "{" + i + "}";
+        }
+    }
+
     private final JavaSourceWriter writer;
 
-    private Stack<Value> stack = new Stack<Value>();
+    private final ValueStack stack = new ValueStack();
+    private String[] args = new String[8];
+    private int[] argPrecedences = new int[8];
+    private int argsFlags;
+    private final StringBuilder line = new StringBuilder();
+    private final String[] shuffledExprs = new String[3];
+    private final Type[] shuffledTypes = new Type[3];
+    private final int[] shuffledFlags = new int[3];
+    /**
+     * Temporaries are numbered per method and each is assigned once per evaluation of
+     * its block, so no pending expression ever sees one change.
+     */
+    private int temps = 0;
 
     public Evaluator(JavaSourceWriter writer) {
         this.writer = writer;
     }
 
+    /**
+     * Prepares the evaluator for the next method. Buffers are kept.
+     */
+    public void reset() {
+        stack.clear();
+        temps = 0;
+    }
+
+    /**
+     * Pushes a constant.
+     */
     public void load(String expr, Type type) {
-        writer.writeStatement(getTempName() + " = " + expr);
-        stack.push(new Value(getTempName(), type));
+        load(expr, type, 0);
+    }
+
+    /**
+     * @param flags what {@code expr} depends on, e.g. {@link #READS_LOCALS} for a variable
+     */
+    public void load(String expr, Type type, int flags) {
+        stack.push(expr, type, flags);
+    }
+
+    /**
+     * @param depth 0 for the top of the stack, 1 for the value below it, etc.
+     * @return the type of the value at {@code depth}, or null if the stack is not that deep
+     */
+    public Type peekType(int depth) {
+        return depth < stack.size() ? stack.typeAt(depth) : null;
     }
 
     public void flush() {
@@ -37,277 +132,619 @@ public class Evaluator {
         writer.flush();
 
         if (failOnError) {
-            throw new IllegalStateException();
+            throw new IllegalStateException("Values left on the stack: " + stack);
+        }
+    }
+
+    /**
+     * Assigns every pending expression on the stack to a temporary, bottom first, so
+     * that they are evaluated in bytecode order before whatever is written next.
+     */
+    public void materialize() {
+        materialize(0, PENDING, null);
+    }
+
+    /**
+     * Materializes the values from the bottom of the stack up to {@code depth} that are
+     * pending or have any of {@code flags}.
+     */
+    private void materialize(int depth, int flags) {
+        materialize(depth, PENDING | flags, null);
+    }
+
+    /**
+     * Materializes the values from the bottom of the stack up to {@code depth} that have
+     * any of {@code mask} or read {@code variable}.
+     */
+    private void materialize(int depth, int mask, String variable) {
+        for (int d = stack.size() - 1; d >= depth; --d) {
+            int valueFlags = stack.flagsAt(d);
+            if ((valueFlags & UNINITIALIZED) != 0) {
+                continue;
+            }
+            if ((valueFlags & mask) != 0
+                    || (variable != null && (valueFlags & READS_LOCALS) != 0 && mentions(stack.exprAt(d), variable))) {
+                String name = tempName(temps++);
+                line.setLength(0);
+                line.append(name).append(" = ").append(stack.exprAt(d));
+                writer.writeStatement(line);
+                stack.set(d, name, 0);
+            }
         }
     }
 
     public void dup() {
-        Value v = stack.peek();
-        writer.writeStatement(getTempName() + " = " + v.expr);
-        stack.push(new Value(getTempName(), v.type));
+        shuffle("dup", 1, DUP2_WIDE, true);
     }
 
     public void dupx1() {
-        Value v1 = stack.pop();
-        Value v2 = stack.pop();
-        writer.writeStatement(getTempName() + " = " + v1.expr);
-        writer.writeStatement(getTempName() + " = " + v2.expr);
-        writer.writeStatement(getTempName() + " = " + v1.expr);
-        stack.push(new Value(getTempName(), v1.type));
-        stack.push(new Value(getTempName(), v2.type));
-        stack.push(new Value(getTempName(), v1.type));
+        shuffle("dup_x1", 2, DUP_X1, true);
     }
 
-
     public void pop2() {
-        Value value = stack.peek();
-        if (value.type == Type.DOUBLE_TYPE || value.type == Type.LONG_TYPE) {
-            stack.pop();
+        Type type = stack.peekType();
+        if (type == Type.DOUBLE_TYPE || type == Type.LONG_TYPE) {
+            pop();
         } else {
-            stack.pop();
-            stack.pop();
+            pop();
+            pop();
         }
     }
 
     public void dup2() {
-        Value value = stack.peek();
-        if (value.type == Type.DOUBLE_TYPE || value.type == Type.LONG_TYPE) {
-            writer.writeStatement(getTempName() + " = " + value.expr);
-            stack.push(value);
+        Type type = stack.peekType();
+        if (type == Type.DOUBLE_TYPE || type == Type.LONG_TYPE) {
+            shuffle("dup2", 1, DUP2_WIDE, true);
         } else {
-            Value v1 = stack.pop();
-            Value v2 = stack.pop();
-            writer.writeStatement(getTempName() + " = " + v2.expr);
-            stack.push(v2);
-            writer.writeStatement(getTempName() + " = " + v1.expr);
-            stack.push(v1);
-            writer.writeStatement(getTempName() + " = " + v2.expr);
-            stack.push(v2);
-            writer.writeStatement(getTempName() + " = " + v1.expr);
-            stack.push(v1);
+            shuffle("dup2", 2, DUP2, true);
         }
     }
 
     public void dupx2() {
-        Value value = stack.peek();
-        if (value.type == Type.DOUBLE_TYPE || value.type == Type.LONG_TYPE) {
-            Value v1 = stack.pop();
-            Value v2 = stack.pop();
-            writer.writeStatement(getTempName() + " = " + v1.expr);
-            stack.push(v1);
-            writer.writeStatement(getTempName() + " = " + v2.expr);
-            stack.push(v2);
-            writer.writeStatement(getTempName() + " = " + v1.expr);
-            stack.push(v1);
+        Type type = stack.size() > 1 ? stack.typeAt(1) : null;
+        if (type == Type.DOUBLE_TYPE || type == Type.LONG_TYPE) {
+            shuffle("dup_x2", 2, DUP_X1, true);
         } else {
-            Value v1 = stack.pop();
-            Value v2 = stack.pop();
-            Value v3 = stack.pop();
-
-            writer.writeStatement(getTempName() + " = " + v1.expr);
-            stack.push(v1);
-            writer.writeStatement(getTempName() + " = " + v3.expr);
-            stack.push(v3);
-            writer.writeStatement(getTempName() + " = " + v2.expr);
-            stack.push(v2);
-            writer.writeStatement(getTempName() + " = " + v1.expr);
-            stack.push(v1);
+            shuffle("dup_x2", 3, DUP_X2, true);
         }
     }
 
     public void dup2x1() {
-        Value value = stack.peek();
-        if (value.type == Type.DOUBLE_TYPE || value.type == Type.LONG_TYPE) {
-            Value v1 = stack.pop();
-            Value v2 = stack.pop();
-            writer.writeStatement(getTempName() + " = " + v1.expr);
-            stack.push(v1);
-            writer.writeStatement(getTempName() + " = " + v2.expr);
-            stack.push(v2);
-            writer.writeStatement(getTempName() + " = " + v1.expr);
-            stack.push(v1);
+        Type type = stack.peekType();
+        if (type == Type.DOUBLE_TYPE || type == Type.LONG_TYPE) {
+            shuffle("dup2_x1", 2, DUP_X1, true);
         } else {
-            Value v1 = stack.pop();
-            Value v2 = stack.pop();
-            Value v3 = stack.pop();
-
-            writer.writeStatement(getTempName() + " = " + v2.expr);
-            stack.push(v2);
-            writer.writeStatement(getTempName() + " = " + v1.expr);
-            stack.push(v1);
-            writer.writeStatement(getTempName() + " = " + v3.expr);
-            stack.push(v3);
-            writer.writeStatement(getTempName() + " = " + v2.expr);
-            stack.push(v2);
-            writer.writeStatement(getTempName() + " = " + v1.expr);
-            stack.push(v1);
+            shuffle("dup2_x1", 3, DUP2_X1, true);
         }
     }
 
+    public void swap() {
+        shuffle("swap", 2, SWAP, false);
+    }
 
-    public void pop() {
-        stack.pop();
+    /**
+     * Replaces the top {@code count} values, numbered from 0 for the deepest, with the
+     * values listed in {@code order}. Values with effects are materialized first since
+     * the new order would evaluate them differently, and so are compound ones that get
+     * duplicated. Objects awaiting their constructor are left alone.
+     */
+    private void shuffle(String instruction, int count, int[] order, boolean duplicates) {
+        if (stack.size() < count) {
+            Metrics.stackUnderflow();
+            writer.writeComment("e: " + instruction);
+            flush();
+            return;
+        }
+
+        int mask = duplicates ? SIDE_EFFECTS | COMPOUND : SIDE_EFFECTS;
+        for (int d = 0; d < count; ++d) {
+            int flags = stack.flagsAt(d);
+            if ((flags & mask) != 0 && (flags & UNINITIALIZED) == 0) {
+                materialize(0, mask);
+                break;
+            }
+        }
+        for (int i = count - 1; i >= 0; --i) {
+            shuffledTypes[i] = stack.peekType();
+            shuffledFlags[i] = stack.peekFlags();
+            shuffledExprs[i] = stack.pop();
+        }
+        for (int index : order) {
+            stack.push(shuffledExprs[index], shuffledTypes[index], shuffledFlags[index]);
+        }
     }
 
+    /**
+     * Drops the top value, writing it as a statement if evaluating it has effects.
+     */
+    public void pop() {
+        int flags = stack.peekFlags();
+        String expr = stack.pop();
+        if ((flags & SIDE_EFFECTS) != 0) {
+            materialize();
+            writer.writeStatement(expr);
+        }
+    }
 
     public void getField(String owner, String name, Type type) {
-        if (stack.empty()) {
+        if (stack.isEmpty()) {
+            Metrics.stackUnderflow();
             flush();
             writer.writeComment("e: GETFIELD " + owner + " - " + name + " - " + type);
             return;
         }
 
-        Value value = stack.pop();
-        writer.writeStatement(getTempName() + " = " + value.expr + "." + name);
-        stack.push(new Value(getTempName(), type));
+        int flags = stack.peekFlags();
+        String value = stack.pop();
+        line.setLength(0);
+        appendOperand(value, precedence(flags), Template.PRIMARY);
+        line.append('.').append(name);
+        stack.push(line.toString(), type, (flags & ~COMPOUND) | READS_HEAP);
     }
 
-    public void condJump2(String operation, Label label) {
+    public void condJump2(String operation, String label) {
         if (stack.size() < 2) {
+            Metrics.stackUnderflow();
             flush();
             writer.writeComment("e: Condjump " + operation + " - " + label);
             return;
         }
 
-        Value value2 = stack.pop();
-        Value value1 = stack.pop();
-        writer.writeStatement("if (" + value1 + " " + operation + " " + value2 + ") jump " + label);
+        popArgs(2);
+        materialize();
+        line.setLength(0);
+        line.append("if (");
+        appendOperand(args[0], argPrecedences[0], Template.RELATIONAL + 1);
+        line.append(' ').append(operation).append(' ');
+        appendOperand(args[1], argPrecedences[1], Template.RELATIONAL + 1);
+        line.append(") jump ").append(label);
+        writer.writeStatement(line);
+    }
+
+    /**
+     * Pops the operands of a conditional jump and renders its condition. Values below them
+     * stay pending for {@link #spill()}, which writes them out ahead of the condition.
+     *
+     * @param operation an operator, followed by its right operand if {@code operands} is 1 ({@code "== 0"})
+     * @return the condition, or null if the stack holds fewer than {@code operands} values
+     */
+    public String condition(int operands, String operation) {
+        if (stack.size() < operands) {
+            Metrics.stackUnderflow();
+            writer.writeComment("e: condition " + operation);
+            flush();
+            return null;
+        }
+
+        protectFromSpill(operands);
+        popArgs(operands);
+        line.setLength(0);
+        appendOperand(args[0], argPrecedences[0], Template.RELATIONAL + 1);
+        line.append(' ').append(operation);
+        if (operands == 2) {
+            line.append(' ');
+            appendOperand(args[1], argPrecedences[1], Template.RELATIONAL + 1);
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return whether evaluating any of the top {@code operands} values has effects, so
+     * that a condition on them can not be dropped
+     */
+    public boolean hasEffects(int operands) {
+        for (int d = 0; d < operands && d < stack.size(); ++d) {
+            if ((stack.flagsAt(d) & SIDE_EFFECTS) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the popped value, or null if the stack is empty
+     */
+    public String popValue() {
+        if (stack.isEmpty()) {
+            Metrics.stackUnderflow();
+            writer.writeComment("e: popValue");
+            return null;
+        }
+        protectFromSpill(1);
+        return stack.pop();
+    }
+
+    /**
+     * Materializes the top {@code operands} values if they read stack slots that
+     * {@link #spill()} is about to reassign for the values below them.
+     */
+    private void protectFromSpill(int operands) {
+        if (stack.size() == operands) {
+            return;
+        }
+        for (int d = 0; d < operands; ++d) {
+            if ((stack.flagsAt(d) & READS_STACK) != 0) {
+                materialize(0, READS_STACK);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves every value on the stack into the slot named after its depth, where the
+     * blocks that follow expect it.
+     *
+     * @return the types on the stack, bottom first, or null if it is empty
+     */
+    public Type[] spill() {
+        int size = stack.size();
+        if (size == 0) {
+            return null;
+        }
+        // a value reading a slot must not see it assigned for a value below
+        for (int i = 0; i < size; ++i) {
+            int depth = size - 1 - i;
+            if ((stack.flagsAt(depth) & READS_STACK) != 0 && !stack.exprAt(depth).equals(slotName(i))) {
+                materialize(0, READS_STACK);
+                break;
+            }
+        }
+        Type[] types = new Type[size];
+        for (int i = 0; i < size; ++i) {
+            int depth = size - 1 - i;
+            String expr = stack.exprAt(depth);
+            String name = slotName(i);
+            if (!expr.equals(name)) {
+                line.setLength(0);
+                line.append(name).append(" = ").append(expr);
+                writer.writeStatement(line);
+            }
+            types[i] = stack.typeAt(depth);
+        }
+        restore(types);
+        return types;
+    }
+
+    /**
+     * Starts a block with the values a predecessor left by {@link #spill()}.
+     *
+     * @param types the types on the stack, bottom first, or null for an empty stack
+     */
+    public void restore(Type[] types) {
+        stack.clear();
+        if (types == null) {
+            return;
+        }
+        for (int i = 0; i < types.length; ++i) {
+            stack.push(slotName(i), types[i], READS_STACK);
+        }
     }
 
-    public void condJump1(String operation, Label label) {
+    public void condJump1(String operation, String label) {
         if (stack.size() < 1) {
+            Metrics.stackUnderflow();
             flush();
             writer.writeComment("e: Condjump " + operation + " - " + label);
             return;
         }
 
-        Value value = stack.pop();
-        writer.writeStatement("if (" + value + " " + operation + ") jump " + label);
+        popArgs(1);
+        materialize();
+        line.setLength(0);
+        line.append("if (");
+        appendOperand(args[0], argPrecedences[0], Template.RELATIONAL + 1);
+        line.append(' ').append(operation).append(") jump ").append(label);
+        writer.writeStatement(line);
     }
 
 
     public void staticCall(String method, int argsCount, Type returnType) {
         if (stack.size() < argsCount) {
+            Metrics.stackUnderflow();
             writer.writeComment("e: staticCall " + method + " - " + argsCount + " - " + returnType);
             return;
         }
+        call(false, method, argsCount, returnType);
+    }
 
-        List<Value> args = new ArrayList<Value>();
-        for (int i = 0; i < argsCount; ++i) {
-            args.add(0, stack.pop());
+    public void virtualCall(String method, int argsCount, Type returnType) {
+        if (stack.size() < argsCount + 1) {
+            Metrics.stackUnderflow();
+            writer.writeComment("e: virtualCall: " + method + " - " + argsCount + " - " + returnType);
+            flush();
+            return;
+        }
+        call(true, method, argsCount, returnType);
+    }
+
+    /**
+     * Runs a constructor. Called on an object pushed by NEW, it turns the copy of the
+     * object below into the instance creation expression; otherwise it is a
+     * {@code this(...)} or {@code super(...)} call named {@code name}.
+     */
+    public void constructorCall(String name, int argsCount) {
+        if (stack.size() < argsCount + 1) {
+            Metrics.stackUnderflow();
+            writer.writeComment("e: constructorCall: " + name + " - " + argsCount);
+            flush();
+            return;
         }
-        String argList = "";
+
+        popArgs(argsCount);
+        int receiverFlags = stack.peekFlags();
+        String receiver = stack.pop();
+        boolean creation = (receiverFlags & UNINITIALIZED) != 0;
+        line.setLength(0);
+        line.append(creation ? receiver : name).append('(');
         for (int i = 0; i < argsCount; ++i) {
             if (i > 0) {
-                argList += ", ";
+                line.append(", ");
             }
-            argList += args.get(i).expr;
+            line.append(args[i]);
         }
+        line.append(')');
+        String call = line.toString();
 
-        if (returnType.getSort() != Type.VOID) {
-            writer.writeStatement(getTempName() + " = " + method + "(" + argList + ")");
-            stack.push(new Value(getTempName(), returnType));
+        if (creation && !stack.isEmpty() && (stack.peekFlags() & UNINITIALIZED) != 0 && stack.peekExpr().equals(receiver)) {
+            stack.set(0, call, argsFlags | SIDE_EFFECTS);
         } else {
-            writer.writeStatement(method + "(" + argList + ")");
+            materialize();
+            writer.writeStatement(call);
         }
     }
 
-    public void virtualCall(String method, int argsCount, Type returnType) {
-        if (stack.size() < 1) {
-            writer.writeComment("e: virtualCall: " + method + " - " + argsCount + " - " + returnType);
-            flush();
-            return;
+    /**
+     * Pushes the call if it returns a value, so it is evaluated where the value is used;
+     * writes it otherwise.
+     */
+    private void call(boolean virtual, String method, int argsCount, Type returnType) {
+        popArgs(argsCount);
+        int flags = argsFlags | SIDE_EFFECTS;
+        String receiver = null;
+        int receiverPrecedence = Template.PRIMARY;
+        if (virtual) {
+            int receiverFlags = stack.peekFlags();
+            receiver = stack.pop();
+            receiverPrecedence = precedence(receiverFlags);
+            flags |= receiverFlags & ~COMPOUND;
+        }
+
+        boolean returnsValue = returnType.getSort() != Type.VOID;
+        if (!returnsValue) {
+            materialize();
+        }
+        line.setLength(0);
+        if (receiver != null) {
+            appendOperand(receiver, receiverPrecedence, Template.PRIMARY);
+            line.append('.');
         }
+        line.append(method).append('(');
+        for (int i = 0; i < argsCount; ++i) {
+            if (i > 0) {
+                line.append(", ");
+            }
+            line.append(args[i]);
+        }
+        line.append(')');
+
+        if (returnsValue) {
+            stack.push(line.toString(), returnType, flags);
+        } else {
+            writer.writeStatement(line);
+        }
+    }
+
+    public void stmt3(Template template) {
+        stmt(template, 3);
+    }
+
+    public void stmt2(Template template) {
+        stmt(template, 2);
+    }
+
+    public void stmt1(Template template) {
+        stmt(template, 1);
+    }
+
+    public void stmt0(Template template) {
+        stmt(template, 0);
+    }
+
+    void stmt(Template template, int argsCount) {
+        stmt(template, argsCount, 0, null, null);
+    }
 
-        Value ref = stack.pop();
-        staticCall(ref.expr + "." + method, argsCount, returnType);
+    /**
+     * Like {@link #stmt(Template, int)}, with {@code immediate} filling the slot after the popped arguments.
+     */
+    void stmt(Template template, int argsCount, String immediate) {
+        stmt(template, argsCount, 1, immediate, null);
     }
 
-    public void stmt3(String s) {
-        stmt(s, 3);
+    void stmt(Template template, int argsCount, String immediate1, String immediate2) {
+        stmt(template, argsCount, 2, immediate1, immediate2);
     }
 
-    void stmt(String s, int argsCount) {
+    private void stmt(Template template, int argsCount, int immediates, String immediate1, String immediate2) {
         if (stack.size() < argsCount) {
-            writer.writeComment("e: stmt: " + s);
+            Metrics.stackUnderflow();
+            writer.writeComment("e: stmt: " + describe(template, argsCount, immediates, immediate1, immediate2));
             flush();
             return;
         }
 
-        List<String> args = new ArrayList<String>();
-        for (int i = 0; i < argsCount; ++i) {
-            args.add(0, stack.pop().expr);
+        prepareArgs(template, argsCount);
+        popArgs(argsCount, immediates, immediate1, immediate2);
+        materializeBefore(template.getFlags(), immediate1);
+
+        line.setLength(0);
+        template.render(line, args, argsCount + immediates, argPrecedences);
+        writer.writeStatement(line);
+    }
+
+    /**
+     * Materializes the values below the operands of a statement that it could change,
+     * or that must be evaluated before it because one of them or the statement has effects.
+     */
+    private void materializeBefore(int writes, String variable) {
+        if ((writes & (WRITES_LOCAL | WRITES_HEAP)) == 0) {
+            materialize();
+            return;
+        }
+        int mask = 0;
+        if ((writes & WRITES_HEAP) != 0 || (argsFlags & SIDE_EFFECTS) != 0) {
+            mask |= READS_HEAP | SIDE_EFFECTS;
+        }
+        if ((argsFlags & READS_HEAP) != 0) {
+            mask |= SIDE_EFFECTS;
+        }
+        materialize(0, mask, (writes & WRITES_LOCAL) != 0 ? variable : null);
+    }
+
+    /**
+     * @return whether {@code expr} refers to the local variable {@code name}; fields of
+     * the same name do not count
+     */
+    private static boolean mentions(String expr, String name) {
+        for (int i = expr.indexOf(name); i >= 0; i = expr.indexOf(name, i + 1)) {
+            int end = i + name.length();
+            if ((i == 0 || !Character.isJavaIdentifierPart(expr.charAt(i - 1)) && expr.charAt(i - 1) != '.')
+                    && (end == expr.length() || !Character.isJavaIdentifierPart(expr.charAt(end)))) {
+                return true;
+            }
         }
+        return false;
+    }
+
+    private static String tempName(int index) {
+        return index < TEMP_NAMES.length ? TEMP_NAMES[index] : "__temp_" + index;
+    }
+
+    private static String slotName(int index) {
+        return index < SLOT_NAMES.length ? SLOT_NAMES[index] : "__stack_" + index;
+    }
+
+    public void expr2(Template template, Type type) {
+        expr(template, type, 2);
+    }
 
-        String stmt = new MessageFormat(s).format(args.toArray(), new StringBuffer(), new FieldPosition(0)).toString();
-        writer.writeStatement(stmt);
+    public void expr1(Template template, Type type) {
+        expr(template, type, 1);
     }
 
-    public String getTempName() {
-        return "__temp_" + stack.size();
+    public void expr0(Template template, Type type) {
+        expr(template, type, 0);
     }
 
-    public void expr2(String format, Type type) {
-        expr(format, type, 2);
+    public void expr(Template template, Type type, int argsCount) {
+        expr(template, type, argsCount, 0, null);
     }
 
-    public void expr1(String format, Type type) {
-        expr(format, type, 1);
+    /**
+     * Like {@link #expr(Template, Type, int)}, with {@code immediate} filling the slot after the popped arguments.
+     */
+    public void expr(Template template, Type type, int argsCount, String immediate) {
+        expr(template, type, argsCount, 1, immediate);
     }
 
-    public void expr(String format, Type type, int argsCount) {
+    private void expr(Template template, Type type, int argsCount, int immediates, String immediate) {
         if (stack.size() < argsCount) {
-            writer.writeComment("e: expr: " + format + " - " + type);
+            Metrics.stackUnderflow();
+            writer.writeComment("e: expr: " + describe(template, argsCount, immediates, immediate, null) + " - " + type);
             flush();
             return;
         }
 
-        List<String> args = new ArrayList<String>();
-        for (int i = 0; i < argsCount; ++i) {
-            args.add(0, stack.pop().expr);
-        }
+        prepareArgs(template, argsCount);
+        popArgs(argsCount, immediates, immediate, null);
 
-        String e = new MessageFormat(format).format(args.toArray(), new StringBuffer(), new FieldPosition(0)).toString();
-        writer.writeStatement(getTempName() + " = " + e);
-        stack.push(new Value(getTempName(), type));
+        line.setLength(0);
+        template.render(line, args, argsCount + immediates, argPrecedences);
+        stack.push(line.toString(), type, argsFlags | template.getFlags() | precedenceFlags(template.getPrecedence()));
     }
 
-    public void stmt1(String format) {
-        stmt(format, 1);
+    /**
+     * Materializes the arguments if {@code template} would evaluate them out of order
+     * or more than once.
+     */
+    private void prepareArgs(Template template, int argsCount) {
+        if (template.isOrdered(argsCount)) {
+            return;
+        }
+        for (int d = 0; d < argsCount; ++d) {
+            if ((stack.flagsAt(d) & (SIDE_EFFECTS | COMPOUND)) != 0) {
+                materialize(0, SIDE_EFFECTS | COMPOUND);
+                return;
+            }
+        }
     }
 
-    public void stmt0(String format) {
-        stmt(format, 0);
+    /**
+     * Pops the top {@code argsCount} values into {@link #args}, first argument first.
+     */
+    private void popArgs(int argsCount) {
+        popArgs(argsCount, 0, null, null);
     }
 
-    public void stmt2(String format) {
-        stmt(format, 2);
+    private void popArgs(int argsCount, int immediates, String immediate1, String immediate2) {
+        if (args.length < argsCount + immediates) {
+            args = new String[Math.max(argsCount + immediates, args.length * 2)];
+            argPrecedences = new int[args.length];
+        }
+        argsFlags = 0;
+        for (int i = argsCount - 1; i >= 0; --i) {
+            int flags = stack.peekFlags();
+            argPrecedences[i] = precedence(flags);
+            argsFlags |= flags & ~COMPOUND;
+            args[i] = stack.pop();
+        }
+        if (immediates > 0) {
+            args[argsCount] = immediate1;
+            argPrecedences[argsCount] = Template.PRIMARY;
+        }
+        if (immediates > 1) {
+            args[argsCount + 1] = immediate2;
+            argPrecedences[argsCount + 1] = Template.PRIMARY;
+        }
     }
 
-    public void expr0(String s, Type type) {
-        expr(s, type, 0);
+    /**
+     * Appends {@code expr}, parenthesized if its precedence is below {@code required}.
+     */
+    private void appendOperand(String expr, int precedence, int required) {
+        if (precedence < required) {
+            line.append('(').append(expr).append(')');
+        } else {
+            line.append(expr);
+        }
     }
 
-    public void swap() {
-        Value v1 = stack.pop();
-        Value v2 = stack.pop();
-        stack.push(v1);
-        stack.push(v2);
+    private static int precedence(int flags) {
+        return Template.PRIMARY - ((flags & COMPOUND) >>> 8);
     }
 
+    private static int precedenceFlags(int precedence) {
+        return (Template.PRIMARY - precedence) << 8;
+    }
 
-    private static class Value {
-        private final String expr;
-        private final Type type;
-
-        public Value(String expr, Type type) {
-            this.expr = expr;
-            this.type = type;
+    /**
+     * The pattern as the instruction would have spelled it, for error comments:
+     * argument slots are left as {@code {n}} and immediates are substituted.
+     */
+    private String describe(Template template, int argsCount, int immediates, String immediate1, String immediate2) {
+        if (immediates == 0) {
+            return template.toString();
         }
-
-        @Override
-        public String toString() {
-            return expr;
+        String[] placeholders = new String[argsCount + immediates];
+        for (int i = 0; i < argsCount; ++i) {
+            placeholders[i] = i < PLACEHOLDERS.length ? PLACEHOLDERS[i] : "{" + i + "}";
+        }
+        placeholders[argsCount] = immediate1;
+        if (immediates > 1) {
+            placeholders[argsCount + 1] = immediate2;
         }
+        StringBuilder sb = new StringBuilder();
+        template.render(sb, placeholders, placeholders.length);
+        return sb.toString();
     }
 }
@@ -0,0 +1,186 @@
+package com.mikea.decompiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Classes and methods that could not be decompiled. A failing method is written as a
+ * bytecode listing and a failing class as an empty stub, so one bad unit costs only
+ * itself and the run goes on; this report says which ones to look at. One report is
+ * shared by all workers.
+ */
+public class FailureReport {
+    private final List<Failure> failures = new ArrayList<Failure>();
+
+    /**
+     * @param className dotted class name, or the path of a jar that could not be read
+     * @param method    the failing method, or null if the whole class (or jar) failed
+     */
+    void record(String className, MethodKey method, Throwable cause) {
+        synchronized (failures) {
+            failures.add(new Failure(className, method, cause));
+        }
+    }
+
+    /**
+     * @return the failures so far, by class name and then method, whole classes first
+     */
+    public List<Failure> getFailures() {
+        List<Failure> result;
+        synchronized (failures) {
+            result = new ArrayList<Failure>(failures);
+        }
+        Collections.sort(result, new Comparator<Failure>() {
+            @Override
+            public int compare(Failure a, Failure b) {
+                int c = a.className.compareTo(b.className);
+                if (c != 0) {
+                    return c;
+                }
+                String aMethod = a.method != null ? a.method.toString() : "";
+                String bMethod = b.method != null ? b.method.toString() : "";
+                return aMethod.compareTo(bMethod);
+            }
+        });
+        return result;
+    }
+
+    public boolean isEmpty() {
+        synchronized (failures) {
+            return failures.isEmpty();
+        }
+    }
+
+    /**
+     * @return the number of classes written as stubs or not cached, and of jars left out
+     */
+    public int getClassFailureCount() {
+        int count = 0;
+        for (Failure failure : getFailures()) {
+            if (failure.method == null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return one line per failure
+     */
+    public String report() {
+        List<Failure> list = getFailures();
+        int classes = getClassFailureCount();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("failures: %d classes, %d methods", classes, list.size() - classes));
+        for (Failure failure : list) {
+            sb.append("\n  ").append(failure);
+        }
+        return sb.toString();
+    }
+
+    public String toJson() {
+        List<Failure> list = getFailures();
+        int classes = getClassFailureCount();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"classes\": ").append(classes).append(",\n");
+        sb.append("  \"methods\": ").append(list.size() - classes).append(",\n");
+        sb.append("  \"failures\": [");
+        boolean first = true;
+        for (Failure failure : list) {
+            sb.append(first ? "\n    {" : ",\n    {");
+            first = false;
+            sb.append("\"class\": ");
+            appendString(sb, failure.className);
+            sb.append(", \"method\": ");
+            appendString(sb, failure.method != null ? failure.method.toString() : null);
+            sb.append(", \"exception\": ");
+            appendString(sb, failure.exception);
+            sb.append(", \"message\": ");
+            appendString(sb, failure.message);
+            sb.append(", \"at\": ");
+            appendString(sb, failure.location);
+            sb.append('}');
+        }
+        sb.append(first ? "]" : "\n  ]");
+        sb.append("\n}\n");
+        return sb.toString();
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char ch = s.charAt(i);
+            if (ch == '"' || ch == '\\') {
+                sb.append('\\').append(ch);
+            } else if (ch < 0x20) {
+                sb.append(String.format("\\u%04x", (int) ch));
+            } else {
+                sb.append(ch);
+            }
+        }
+        sb.append('"');
+    }
+
+    public void writeJson(File file) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+        try {
+            out.write(toJson());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * A class or method that could not be decompiled.
+     */
+    public static class Failure {
+        private final String className;
+        private final MethodKey method;
+        private final String exception;
+        private final String message;
+        private final String location;
+
+        Failure(String className, MethodKey method, Throwable cause) {
+            this.className = className;
+            this.method = method;
+            this.exception = cause.getClass().getName();
+            this.message = cause.getMessage();
+            StackTraceElement[] trace = cause.getStackTrace();
+            this.location = trace.length > 0 ? trace[0].toString() : null;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * @return the failing method, or null if the whole class or its caching failed
+         */
+        public MethodKey getMethod() {
+            return method;
+        }
+
+        public String getException() {
+            return exception;
+        }
+
+        @Override
+        public String toString() {
+            return className + (method != null ? "." + method : "") + ": " + exception
+                    + (message != null ? ": " + message : "") + (location != null ? " at " + location : "");
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.mikea.decompiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The class files of one jar, sorted by name, for finding a single class without reading
+ * the central directory.
+ * <p>
+ * The first time a jar is opened its central directory is read as usual and the class
+ * entries are written to {@code dir/<hash of the jar path>.idx}: a header, fixed-size
+ * records sorted by the UTF-8 bytes of the name, then the names. Later opens map that
+ * file and binary search it, touching a handful of pages whatever the size of the jar. An
+ * index is rebuilt when the jar's length or modification time no longer match. Class
+ * roots such as {@code BOOT-INF/classes/} are dropped from names as in {@link ClassPath};
+ * classes in nested jars are not indexed.
+ */
+public class JarIndex {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int MAGIC = 0x4a494458;
+    private static final int VERSION = 1;
+    /**
+     * magic, version, jar length, jar modification time, record count
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+    /**
+     * name offset, name length, compression method, compressed size, size, local header offset
+     */
+    private static final int RECORD_SIZE = 4 + 4 + 4 + 8 + 8 + 8;
+
+    private final MappedJar jar;
+    private final ByteBuffer index;
+    private final int count;
+    private final boolean built;
+
+    private JarIndex(MappedJar jar, ByteBuffer index, boolean built) {
+        this.jar = jar;
+        this.index = index;
+        this.count = index.getInt(HEADER_SIZE - 4);
+        this.built = built;
+    }
+
+    /**
+     * Opens {@code file} with the index kept in {@code dir}, building the index if it is
+     * missing or stale. A failure to write the index is not an error; the jar is opened
+     * all the same.
+     */
+    public static JarIndex open(File file, File dir) throws IOException {
+        File indexFile = new File(dir, hash(file.getCanonicalPath()) + ".idx");
+        ByteBuffer index = mapIndex(indexFile, file);
+        if (index != null) {
+            return new JarIndex(new MappedJar(file, false), index, false);
+        }
+
+        MappedJar jar = new MappedJar(file);
+        try {
+            byte[] bytes = buildIndex(jar, file);
+            try {
+                writeIndex(indexFile, bytes);
+            } catch (IOException e) {
+                // a read-only directory costs the next open the central directory, nothing more
+            }
+            return new JarIndex(jar, ByteBuffer.wrap(bytes), true);
+        } catch (RuntimeException e) {
+            jar.close();
+            throw e;
+        }
+    }
+
+    public MappedJar getJar() {
+        return jar;
+    }
+
+    /**
+     * @return whether the index was built by this open rather than read from disk
+     */
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * @return the number of class files in the jar
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param name class file name, e.g. {@code java/lang/String.class}
+     * @return the class file, or null if the jar has none of that name
+     */
+    public ClassEntry find(String name) {
+        byte[] key = name.getBytes(UTF8);
+        int i = lowerBound(key);
+        return i < count && compare(i, key, false) == 0 ? entry(i) : null;
+    }
+
+    /**
+     * @param prefix start of class file names, e.g. {@code java/util/Map$}
+     * @return the class files whose names start with {@code prefix}, in name order
+     */
+    public List<ClassEntry> findAll(String prefix) {
+        byte[] key = prefix.getBytes(UTF8);
+        List<ClassEntry> result = new ArrayList<ClassEntry>();
+        for (int i = lowerBound(key); i < count && compare(i, key, true) == 0; ++i) {
+            result.add(entry(i));
+        }
+        return result;
+    }
+
+    public void close() throws IOException {
+        jar.close();
+    }
+
+    /**
+     * @return the first record whose name is not less than {@code key}
+     */
+    private int lowerBound(byte[] key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(mid, key, false) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compares the name of record {@code i} with {@code key}, or with a prefix of the name
+     * as long as {@code key} if {@code prefix}.
+     */
+    private int compare(int i, byte[] key, boolean prefix) {
+        int record = HEADER_SIZE + i * RECORD_SIZE;
+        int offset = index.getInt(record);
+        int length = index.getInt(record + 4);
+        int n = Math.min(length, key.length);
+        for (int j = 0; j < n; ++j) {
+            int c = (index.get(offset + j) & 0xff) - (key[j] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return prefix && length >= key.length ? 0 : length - key.length;
+    }
+
+    private ClassEntry entry(int i) {
+        int record = HEADER_SIZE + i * RECORD_SIZE;
+        int offset = index.getInt(record);
+        byte[] nameBytes = new byte[index.getInt(record + 4)];
+        for (int j = 0; j < nameBytes.length; ++j) {
+            nameBytes[j] = index.get(offset + j);
+        }
+        String name = new String(nameBytes, UTF8);
+        MappedJar.Entry entry = new MappedJar.Entry(name, index.getInt(record + 8), index.getLong(record + 12),
+                index.getLong(record + 20), index.getLong(record + 28));
+        return new IndexedEntry(jar, entry);
+    }
+
+    /**
+     * @return the index in {@code indexFile} if it is an index of {@code jarFile} as it is now, or null
+     */
+    private static ByteBuffer mapIndex(File indexFile, File jarFile) throws IOException {
+        if (!indexFile.isFile() || indexFile.length() < HEADER_SIZE) {
+            return null;
+        }
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        ByteBuffer index;
+        try {
+            // the mapping outlives the file
+            index = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+        if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION
+                || index.getLong(8) != jarFile.length() || index.getLong(16) != jarFile.lastModified()) {
+            return null;
+        }
+        long count = index.getInt(HEADER_SIZE - 4) & 0xffffffffL;
+        if (HEADER_SIZE + count * RECORD_SIZE > index.capacity()) {
+            return null;
+        }
+        return index;
+    }
+
+    private static byte[] buildIndex(MappedJar jar, File file) {
+        List<MappedJar.Entry> classes = new ArrayList<MappedJar.Entry>();
+        final List<byte[]> names = new ArrayList<byte[]>();
+        for (MappedJar.Entry entry : jar.entries()) {
+            if (!entry.isDirectory() && entry.getName().endsWith(".class")) {
+                classes.add(entry);
+                names.add(ClassPath.stripClassRoot(entry.getName()).getBytes(UTF8));
+            }
+        }
+        // a stable sort, so that of two entries of the same name the first one is kept
+        Integer[] order = new Integer[classes.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareBytes(names.get(a), names.get(b));
+            }
+        });
+        List<Integer> kept = new ArrayList<Integer>(order.length);
+        int namesSize = 0;
+        for (Integer i : order) {
+            if (kept.isEmpty() || compareBytes(names.get(kept.get(kept.size() - 1)), names.get(i)) != 0) {
+                kept.add(i);
+                namesSize += names.get(i).length;
+            }
+        }
+
+        int namesOffset = HEADER_SIZE + kept.size() * RECORD_SIZE;
+        ByteBuffer index = ByteBuffer.allocate(namesOffset + namesSize);
+        index.putInt(MAGIC).putInt(VERSION).putLong(file.length()).putLong(file.lastModified()).putInt(kept.size());
+        int nameOffset = namesOffset;
+        for (Integer i : kept) {
+            MappedJar.Entry entry = classes.get(i);
+            byte[] name = names.get(i);
+            index.putInt(nameOffset).putInt(name.length).putInt(entry.getMethod())
+                    .putLong(entry.getCompressedSize()).putLong(entry.getSize()).putLong(entry.getLocalHeaderOffset());
+            nameOffset += name.length;
+        }
+        for (Integer i : kept) {
+            index.put(names.get(i));
+        }
+        return index.array();
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; ++i) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static void writeIndex(File indexFile, byte[] bytes) throws IOException {
+        File dir = indexFile.getParentFile();
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Can't create index directory " + dir);
+        }
+        File temp = File.createTempFile(indexFile.getName(), ".tmp", dir);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String hash(String s) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-1").digest(s.getBytes(UTF8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; ++i) {
+            chars[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static class IndexedEntry implements ClassEntry {
+        private final MappedJar jar;
+        private final MappedJar.Entry entry;
+
+        IndexedEntry(MappedJar jar, MappedJar.Entry entry) {
+            this.jar = jar;
+            this.entry = entry;
+        }
+
+        @Override
+        public String getName() {
+            return entry.getName();
+        }
+
+        @Override
+        public long getSize() {
+            return entry.getSize();
+        }
+
+        @Override
+        public void read(ClassBuffer buffer) throws IOException {
+            jar.read(entry, buffer);
+        }
+
+        @Override
+        public String toString() {
+            return jar.getPath() + "!/" + entry.getName();
+        }
+    }
+}
@@ -1,47 +1,134 @@
 package com.mikea.decompiler;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Accumulates the source of one class in a char buffer and hands it to a {@link SourceSink}
+ * on {@link #close()}. Buffers are pooled, not kept per thread, so steady-state writing
+ * does not allocate even when every class runs on a thread of its own. The pool keeps a
+ * couple of buffers per processor, and a buffer grown by a huge class is dropped rather than
+ * kept for the rest of the run.
  */
 public class JavaSourceWriter {
+    private static final ConcurrentLinkedQueue<StringBuilder> BUFFERS = new ConcurrentLinkedQueue<StringBuilder>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+    private static final int MAX_POOLED = 2 * Runtime.getRuntime().availableProcessors();
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
     private final String className;
-    private final PrintWriter printWriter;
+    private final SourceSink sink;
+    private StringBuilder buffer;
     private int block = 0;
+    private int markLength = 0;
+    private int markBlock = 0;
 
-    public JavaSourceWriter(String className) throws FileNotFoundException {
+    public JavaSourceWriter(String className, SourceSink sink) {
         this.className = className;
+        this.sink = sink;
+
+        buffer = BUFFERS.poll();
+        if (buffer != null) {
+            POOLED.decrementAndGet();
+        } else {
+            buffer = new StringBuilder(INITIAL_BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Writes the buffered source to the sink and recycles the buffer.
+     */
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            sink.write(className, buffer);
+        } finally {
+            release(buffer);
+            buffer = null;
+        }
+    }
+
+    private static void release(StringBuilder buffer) {
+        if (buffer.capacity() > MAX_POOLED_BUFFER_SIZE) {
+            return;
+        }
+        if (POOLED.incrementAndGet() > MAX_POOLED) {
+            POOLED.decrementAndGet();
+            return;
+        }
+        buffer.setLength(0);
+        BUFFERS.offer(buffer);
+    }
+
+    /**
+     * @return the number of buffers waiting in the pool
+     */
+    static int pooledBuffers() {
+        return POOLED.get();
+    }
+
+    /**
+     * @return the source written so far; only valid until {@link #close()}
+     */
+    public CharSequence getSource() {
+        return buffer;
+    }
 
-        String filename = "out/" + className.replaceAll("\\.", "/") + ".java";
-        new File(filename).getParentFile().mkdirs();
-        printWriter = new PrintWriter(filename);
+    /**
+     * Remembers the current position, see {@link #reset()}.
+     */
+    void mark() {
+        markLength = buffer.length();
+        markBlock = block;
     }
 
-    public void close() {
-        printWriter.close();
+    /**
+     * Discards everything written since the last {@link #mark()}.
+     */
+    void reset() {
+        buffer.setLength(markLength);
+        block = markBlock;
+    }
+
+    /**
+     * Discards everything written so far.
+     */
+    void clear() {
+        buffer.setLength(0);
+        block = 0;
+        markLength = 0;
+        markBlock = 0;
     }
 
     public void writeComment(String format) {
-        printWriter.write("// " + format + "\n");
+        buffer.append("// ").append(format).append('\n');
     }
 
     public void writePackage(String packageName) {
         writeStatement("package " + packageName);
     }
 
-    void writeStatement(String statement) {
-        printWriter.write(statement);
-        printWriter.write(";\n");
+    void writeStatement(CharSequence statement) {
+        buffer.append(statement).append(";\n");
+    }
+
+    /**
+     * Writes a line that is not a statement, such as a {@code case} label.
+     */
+    void writeLine(CharSequence line) {
+        buffer.append(line).append('\n');
     }
 
     public void startClass(String className) {
         startBlock("class " + className);
     }
 
-    private void startBlock(String s) {
-        printWriter.write(s + " {\n");
+    void startBlock(CharSequence s) {
+        buffer.append(s).append(" {\n");
         block++;
     }
 
@@ -49,13 +136,13 @@ public class JavaSourceWriter {
         endBlock();
     }
 
-    private void endBlock() {
-        printWriter.write("}\n");
+    void endBlock() {
+        buffer.append("}\n");
         block--;
     }
 
     public void writeField(String name, String desc) {
-        writeStatement(desc + " " + name);
+        buffer.append(desc).append(' ').append(name).append(";\n");
     }
 
     public void startMethod(String name) {
@@ -66,7 +153,9 @@ public class JavaSourceWriter {
         endBlock();
     }
 
+    /**
+     * Output is buffered until {@link #close()}, so there is nothing to flush.
+     */
     public void flush() {
-        printWriter.flush();
     }
 }
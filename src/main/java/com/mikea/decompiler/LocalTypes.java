@@ -0,0 +1,458 @@
+package com.mikea.decompiler;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Types of locals inferred from the code, for methods compiled without a local
+ * variable table. A forward dataflow pass runs over the blocks of the
+ * {@link ControlFlowGraph} with a worklist in reverse postorder, keeping one frame per
+ * block entry; values merge to their nearest common superclass through the
+ * {@link ClassHierarchy}.
+ * <p>
+ * Where the class file has a StackMapTable, the frame it declares at a block entry is
+ * taken as is and never merged into. Every branch target has such a frame, so back
+ * edges change nothing and each block is interpreted once.
+ * <p>
+ * The pass runs the first time a type is asked for. If the code can not be interpreted,
+ * no types are known.
+ */
+final class LocalTypes {
+    private static final BasicValue NULL_VALUE = new BasicValue(Type.getObjectType("null"));
+    /**
+     * Marks a local loaded as different kinds at one position, such as a slot reused for
+     * an {@code int} and a reference.
+     */
+    private static final Type UNKNOWN = Type.VOID_TYPE;
+
+    private final MethodNode method;
+    private final String className;
+    private final ControlFlowGraph cfg;
+    private final ClassHierarchy hierarchy;
+    /**
+     * Type of each local read by a load, by position and slot; rows are only there for
+     * positions that read a local.
+     */
+    private Type[][] types;
+
+    /**
+     * @param className internal name of the class declaring {@code method}
+     * @param hierarchy used to merge types, or null to merge different classes to {@code Object}
+     */
+    LocalTypes(MethodNode method, String className, ControlFlowGraph cfg, ClassHierarchy hierarchy) {
+        this.method = method;
+        this.className = className;
+        this.cfg = cfg;
+        this.hierarchy = hierarchy;
+    }
+
+    /**
+     * @param position position of a load of {@code var}, see {@link MethodInfo#addVar}
+     * @return the type of the local read there, {@code int} for any of the smaller integral
+     * types, or null if not known
+     */
+    Type getType(int var, int position) {
+        if (types == null) {
+            types = infer();
+        }
+        if (position >= types.length || types[position] == null || var >= types[position].length) {
+            return null;
+        }
+        Type type = types[position][var];
+        return type != UNKNOWN ? type : null;
+    }
+
+    private Type[][] infer() {
+        AbstractInsnNode[] insns = cfg.getInstructions();
+        Type[] loads = new Type[insns.length];
+        try {
+            analyze(insns, loads);
+        } catch (AnalyzerException e) {
+            return new Type[0][];
+        } catch (IndexOutOfBoundsException e) {
+            // stack or locals overflowing maxStack/maxLocals
+            return new Type[0][];
+        }
+
+        int labels = 0;
+        for (AbstractInsnNode insn : insns) {
+            if (insn.getType() == AbstractInsnNode.LABEL) {
+                labels++;
+            }
+        }
+        Type[][] result = new Type[labels + 1][];
+        int position = 0;
+        for (int i = 0; i < insns.length; ++i) {
+            if (insns[i].getType() == AbstractInsnNode.LABEL) {
+                position++;
+            } else if (loads[i] != null) {
+                int var = ((VarInsnNode) insns[i]).var;
+                if (result[position] == null) {
+                    result[position] = new Type[method.maxLocals];
+                }
+                Type previous = result[position][var];
+                result[position][var] = previous == null ? loads[i] : merge(previous, loads[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fills {@code loads} with the type read by each load of a reachable block.
+     */
+    private void analyze(AbstractInsnNode[] insns, Type[] loads) throws AnalyzerException {
+        Interpreter interpreter = new Interpreter();
+        int blocks = cfg.getBlockCount();
+        @SuppressWarnings("unchecked")
+        Frame<BasicValue>[] entries = (Frame<BasicValue>[]) new Frame<?>[blocks];
+        boolean[] declared = new boolean[blocks];
+        boolean[] visited = new boolean[blocks];
+        readStackMap(insns, entries, declared, interpreter);
+        if (entries[0] == null) {
+            entries[0] = initialFrame(interpreter);
+        }
+
+        // a worklist of blocks, taken in reverse postorder
+        boolean[] queued = new boolean[blocks];
+        queued[cfg.getReversePostorder(0)] = true;
+        int next = 0;
+        Frame<BasicValue> frame = new Frame<BasicValue>(method.maxLocals, method.maxStack);
+        List<Integer> handlers = new ArrayList<Integer>();
+        while (next < blocks) {
+            if (!queued[next]) {
+                next++;
+                continue;
+            }
+            queued[next] = false;
+            int block = cfg.getBlockAt(next);
+            visited[block] = true;
+
+            handlers.clear();
+            for (int i = cfg.getSuccessorStart(block); i < cfg.getSuccessorEnd(block); ++i) {
+                if (cfg.isHandler(cfg.getSuccessor(i))) {
+                    handlers.add(cfg.getSuccessor(i));
+                }
+            }
+            frame.init(entries[block]);
+            int restart = Math.min(next + 1, mergeHandlers(frame, handlers, entries, declared, visited, queued,
+                    interpreter));
+            for (int i = cfg.getBlockStart(block); i < cfg.getBlockEnd(block); ++i) {
+                AbstractInsnNode insn = insns[i];
+                int opcode = insn.getOpcode();
+                if (opcode < 0) {
+                    continue;
+                }
+                if (opcode >= Opcodes.ILOAD && opcode <= Opcodes.ALOAD) {
+                    BasicValue value = frame.getLocal(((VarInsnNode) insn).var);
+                    loads[i] = value != NULL_VALUE ? value.getType() : null;
+                }
+                frame.execute(insn, interpreter);
+                if (!handlers.isEmpty() && (opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE
+                        || opcode == Opcodes.IINC)) {
+                    restart = Math.min(restart, mergeHandlers(frame, handlers, entries, declared, visited,
+                            queued, interpreter));
+                }
+            }
+            for (int i = cfg.getSuccessorStart(block); i < cfg.getSuccessorEnd(block); ++i) {
+                int successor = cfg.getSuccessor(i);
+                if (!cfg.isHandler(successor) && merge(entries, declared, visited, successor, frame,
+                        interpreter)) {
+                    queued[cfg.getReversePostorder(successor)] = true;
+                    restart = Math.min(restart, cfg.getReversePostorder(successor));
+                }
+            }
+            next = restart;
+        }
+    }
+
+    /**
+     * Merges the locals of {@code frame}, with the caught exception on the stack, into the
+     * entries of {@code handlers}.
+     *
+     * @return the reverse postorder of the first handler whose entry changed, or the
+     * number of blocks if none did
+     */
+    private int mergeHandlers(Frame<BasicValue> frame, List<Integer> handlers, Frame<BasicValue>[] entries,
+                              boolean[] declared, boolean[] visited, boolean[] queued,
+                              Interpreter interpreter) throws AnalyzerException {
+        int restart = cfg.getBlockCount();
+        for (int handler : handlers) {
+            if (declared[handler] && visited[handler]) {
+                continue;
+            }
+            Frame<BasicValue> caught = new Frame<BasicValue>(frame);
+            caught.clearStack();
+            String type = cfg.getHandlerType(handler);
+            caught.push(interpreter.newValue(Type.getObjectType(type != null ? type : "java/lang/Throwable")));
+            if (merge(entries, declared, visited, handler, caught, interpreter)) {
+                queued[cfg.getReversePostorder(handler)] = true;
+                restart = Math.min(restart, cfg.getReversePostorder(handler));
+            }
+        }
+        return restart;
+    }
+
+    /**
+     * @return whether {@code block} has to be interpreted (again): it has not been yet, or
+     * its entry changed
+     */
+    private static boolean merge(Frame<BasicValue>[] entries, boolean[] declared, boolean[] visited, int block,
+                                 Frame<BasicValue> frame, Interpreter interpreter) throws AnalyzerException {
+        if (declared[block]) {
+            return !visited[block];
+        }
+        if (entries[block] == null) {
+            entries[block] = new Frame<BasicValue>(frame);
+            return true;
+        }
+        return entries[block].merge(frame, interpreter);
+    }
+
+    private Frame<BasicValue> initialFrame(Interpreter interpreter) {
+        Frame<BasicValue> frame = new Frame<BasicValue>(method.maxLocals, method.maxStack);
+        int local = 0;
+        if ((method.access & Opcodes.ACC_STATIC) == 0) {
+            frame.setLocal(local++, interpreter.newValue(Type.getObjectType(className)));
+        }
+        for (Type type : Type.getArgumentTypes(method.desc)) {
+            frame.setLocal(local++, interpreter.newValue(type));
+            if (type.getSize() == 2) {
+                frame.setLocal(local++, BasicValue.UNINITIALIZED_VALUE);
+            }
+        }
+        while (local < method.maxLocals) {
+            frame.setLocal(local++, BasicValue.UNINITIALIZED_VALUE);
+        }
+        return frame;
+    }
+
+    /**
+     * Turns the StackMapTable into entry frames of the blocks it describes. Frames are
+     * stored as differences to the previous one, so they are decoded in code order.
+     */
+    private void readStackMap(AbstractInsnNode[] insns, Frame<BasicValue>[] entries, boolean[] declared,
+                              Interpreter interpreter) {
+        List<Object> locals = null;
+        for (int i = 0; i < insns.length; ++i) {
+            if (insns[i].getType() != AbstractInsnNode.FRAME) {
+                continue;
+            }
+            FrameNode node = (FrameNode) insns[i];
+            if (locals == null) {
+                locals = initialLocals();
+            }
+            switch (node.type) {
+                case Opcodes.F_NEW:
+                case Opcodes.F_FULL:
+                    locals = new ArrayList<Object>(node.local);
+                    break;
+                case Opcodes.F_APPEND:
+                    locals.addAll(node.local);
+                    break;
+                case Opcodes.F_CHOP:
+                    for (int n = node.local.size(); n > 0 && !locals.isEmpty(); --n) {
+                        locals.remove(locals.size() - 1);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            int block = cfg.getBlockOf(i);
+            if (!startsBlock(insns, i, block)) {
+                continue;
+            }
+            List<Object> stack = node.type == Opcodes.F_SAME1 || node.type == Opcodes.F_NEW
+                    || node.type == Opcodes.F_FULL ? node.stack : null;
+            Frame<BasicValue> frame = new Frame<BasicValue>(method.maxLocals, method.maxStack);
+            int slot = 0;
+            for (Object local : locals) {
+                BasicValue value = toValue(local, interpreter);
+                frame.setLocal(slot++, value);
+                if (value.getSize() == 2) {
+                    frame.setLocal(slot++, BasicValue.UNINITIALIZED_VALUE);
+                }
+            }
+            while (slot < method.maxLocals) {
+                frame.setLocal(slot++, BasicValue.UNINITIALIZED_VALUE);
+            }
+            if (stack != null) {
+                for (Object value : stack) {
+                    frame.push(toValue(value, interpreter));
+                }
+            }
+            entries[block] = frame;
+            declared[block] = true;
+        }
+    }
+
+    /**
+     * @return whether only labels and line numbers precede the frame at {@code index} in its block
+     */
+    private boolean startsBlock(AbstractInsnNode[] insns, int index, int block) {
+        for (int i = cfg.getBlockStart(block); i < index; ++i) {
+            if (insns[i].getOpcode() >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the locals of the implicit first frame, in StackMapTable form
+     */
+    private List<Object> initialLocals() {
+        List<Object> locals = new ArrayList<Object>();
+        if ((method.access & Opcodes.ACC_STATIC) == 0) {
+            locals.add(method.name.equals("<init>") ? Opcodes.UNINITIALIZED_THIS : className);
+        }
+        for (Type type : Type.getArgumentTypes(method.desc)) {
+            switch (type.getSort()) {
+                case Type.BOOLEAN:
+                case Type.CHAR:
+                case Type.BYTE:
+                case Type.SHORT:
+                case Type.INT:
+                    locals.add(Opcodes.INTEGER);
+                    break;
+                case Type.FLOAT:
+                    locals.add(Opcodes.FLOAT);
+                    break;
+                case Type.LONG:
+                    locals.add(Opcodes.LONG);
+                    break;
+                case Type.DOUBLE:
+                    locals.add(Opcodes.DOUBLE);
+                    break;
+                case Type.ARRAY:
+                    locals.add(type.getDescriptor());
+                    break;
+                default:
+                    locals.add(type.getInternalName());
+                    break;
+            }
+        }
+        return locals;
+    }
+
+    private BasicValue toValue(Object value, Interpreter interpreter) {
+        if (value instanceof String) {
+            String name = (String) value;
+            return interpreter.newValue(name.startsWith("[") ? Type.getType(name) : Type.getObjectType(name));
+        }
+        if (value instanceof LabelNode) {
+            // an object created by the NEW following the label, not yet initialized
+            for (AbstractInsnNode insn = (LabelNode) value; insn != null; insn = insn.getNext()) {
+                if (insn instanceof TypeInsnNode) {
+                    return interpreter.newValue(Type.getObjectType(((TypeInsnNode) insn).desc));
+                }
+                if (insn.getOpcode() >= 0) {
+                    break;
+                }
+            }
+            return BasicValue.REFERENCE_VALUE;
+        }
+        if (value == Opcodes.INTEGER) {
+            return BasicValue.INT_VALUE;
+        }
+        if (value == Opcodes.FLOAT) {
+            return BasicValue.FLOAT_VALUE;
+        }
+        if (value == Opcodes.LONG) {
+            return BasicValue.LONG_VALUE;
+        }
+        if (value == Opcodes.DOUBLE) {
+            return BasicValue.DOUBLE_VALUE;
+        }
+        if (value == Opcodes.NULL) {
+            return NULL_VALUE;
+        }
+        if (value == Opcodes.UNINITIALIZED_THIS) {
+            return interpreter.newValue(Type.getObjectType(className));
+        }
+        return BasicValue.UNINITIALIZED_VALUE;
+    }
+
+    private static boolean isReference(BasicValue value) {
+        return isReference(value.getType());
+    }
+
+    private static boolean isReference(Type type) {
+        return type != null && (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY);
+    }
+
+    private Type merge(Type a, Type b) {
+        if (a.equals(b)) {
+            return a;
+        }
+        if (!isReference(a) || !isReference(b)) {
+            return UNKNOWN;
+        }
+        return hierarchy != null ? hierarchy.getCommonSupertype(a, b) : Type.getObjectType("java/lang/Object");
+    }
+
+    /**
+     * {@link BasicInterpreter} keeping the class of references: it makes a typed value
+     * wherever the basic one knows the type, and merges references to a common supertype.
+     */
+    private class Interpreter extends BasicInterpreter {
+        Interpreter() {
+            super(Opcodes.ASM4);
+        }
+
+        @Override
+        public BasicValue newValue(Type type) {
+            if (type != null && (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY)) {
+                return new BasicValue(type);
+            }
+            return super.newValue(type);
+        }
+
+        @Override
+        public BasicValue newOperation(AbstractInsnNode insn) throws AnalyzerException {
+            if (insn.getOpcode() == Opcodes.ACONST_NULL) {
+                return NULL_VALUE;
+            }
+            return super.newOperation(insn);
+        }
+
+        @Override
+        public BasicValue binaryOperation(AbstractInsnNode insn, BasicValue value1, BasicValue value2)
+                throws AnalyzerException {
+            if (insn.getOpcode() == Opcodes.AALOAD && value1.getType() != null
+                    && value1.getType().getSort() == Type.ARRAY) {
+                return newValue(Type.getType(value1.getType().getDescriptor().substring(1)));
+            }
+            return super.binaryOperation(insn, value1, value2);
+        }
+
+        @Override
+        public BasicValue merge(BasicValue v, BasicValue w) {
+            if (v.equals(w)) {
+                return v;
+            }
+            if (isReference(v) && isReference(w)) {
+                if (v == NULL_VALUE) {
+                    return w;
+                }
+                if (w == NULL_VALUE) {
+                    return v;
+                }
+                return newValue(LocalTypes.this.merge(v.getType(), w.getType()));
+            }
+            return BasicValue.UNINITIALIZED_VALUE;
+        }
+    }
+}
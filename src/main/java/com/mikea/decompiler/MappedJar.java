@@ -0,0 +1,400 @@
+package com.mikea.decompiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.ZipException;
+
+/**
+ * Read-only view of a jar (zip) file backed by memory mappings.
+ * <p>
+ * The central directory is parsed directly, without {@link java.util.zip.ZipFile}, and entry
+ * data is copied (stored entries) or inflated (deflated entries) straight from the mapping
+ * into a caller-provided {@link ClassBuffer}, so reading a class allocates nothing once the
+ * buffers have grown. Files larger than 2 GB are mapped in overlapping chunks; the rare entry
+ * that crosses a chunk boundary is read with a positional channel read. Zip64 is supported,
+ * as are archives with data prepended (such as a launcher script) whose offsets do not
+ * account for it.
+ * Jars nested in a jar are opened with {@link #openNested(Entry)}: stored ones are views of
+ * the outer mapping, deflated ones are inflated onto the heap.
+ * Instances are safe for concurrent reads.
+ */
+public class MappedJar {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private static final long CHUNK_SIZE = 1L << 30;
+    private static final long CHUNK_OVERLAP = 64L << 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    /**
+     * The file, or for a nested jar the path to it, e.g. {@code app.jar!/lib/util.jar}.
+     */
+    private final String path;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final long size;
+    private final ByteBuffer[] chunks;
+    private final List<Entry> entries;
+
+    public MappedJar(File file) throws IOException {
+        this(file, true);
+    }
+
+    /**
+     * @param readDirectory whether to read the central directory; if not, {@link #entries()}
+     *                      is empty and entries come from elsewhere, see {@link JarIndex}
+     */
+    MappedJar(File file, boolean readDirectory) throws IOException {
+        this.file = file;
+        this.path = file.getPath();
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            this.channel = randomAccessFile.getChannel();
+            this.size = channel.size();
+
+            int chunkCount = (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            chunks = new ByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; ++i) {
+                long start = i * CHUNK_SIZE;
+                long length = Math.min(size - start, CHUNK_SIZE + CHUNK_OVERLAP);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+
+            entries = readDirectory ? Collections.unmodifiableList(readCentralDirectory())
+                    : Collections.<Entry>emptyList();
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        } catch (RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A jar held in {@code data}, from its position to its limit.
+     */
+    private MappedJar(String path, ByteBuffer data) throws IOException {
+        this.file = null;
+        this.path = path;
+        this.randomAccessFile = null;
+        this.channel = null;
+        this.size = data.remaining();
+        this.chunks = new ByteBuffer[]{data.slice()};
+        this.entries = Collections.unmodifiableList(readCentralDirectory());
+    }
+
+    /**
+     * @return the jar file, or null for a nested jar
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the jar file, or for a nested jar the path to it, e.g. {@code app.jar!/lib/util.jar}
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return all entries, in central directory order
+     */
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * Reads the uncompressed content of {@code entry} into {@code buffer}.
+     */
+    public void read(Entry entry, ClassBuffer buffer) throws IOException {
+        long dataOffset = dataOffset(entry, buffer.header());
+        int length = toInt(entry.size, entry);
+        byte[] data = buffer.data(length);
+        switch (entry.method) {
+            case STORED: {
+                readBytes(dataOffset, data, 0, length);
+                break;
+            }
+            case DEFLATED: {
+                int compressedSize = toInt(entry.compressedSize, entry);
+                byte[] input = buffer.input(compressedSize);
+                readBytes(dataOffset, input, 0, compressedSize);
+                try {
+                    buffer.inflate(compressedSize, length);
+                } catch (DataFormatException e) {
+                    throw new ZipException("Corrupt entry " + entry.name + " in " + path + ": " + e.getMessage());
+                }
+                break;
+            }
+            default: {
+                throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+            }
+        }
+        buffer.setLength(length);
+    }
+
+    /**
+     * Opens the jar stored as {@code entry}. A stored jar that lies within one mapping
+     * is read in place; any other is first read into memory, where it stays until the
+     * returned jar is no longer used.
+     */
+    public MappedJar openNested(Entry entry) throws IOException {
+        String nestedPath = path + "!/" + entry.name;
+        if (entry.method == STORED) {
+            long dataOffset = dataOffset(entry, new byte[LOCAL_HEADER_SIZE]);
+            int chunk = chunk(dataOffset);
+            long chunkStart = chunk * CHUNK_SIZE;
+            if (dataOffset + entry.size <= chunkStart + chunks[chunk].capacity()) {
+                ByteBuffer view = chunks[chunk].duplicate();
+                view.position((int) (dataOffset - chunkStart));
+                view.limit((int) (dataOffset - chunkStart + entry.size));
+                return new MappedJar(nestedPath, view);
+            }
+        }
+        ClassBuffer buffer = new ClassBuffer();
+        read(entry, buffer);
+        return new MappedJar(nestedPath, ByteBuffer.wrap(buffer.bytes(), 0, buffer.length()));
+    }
+
+    /**
+     * Closes the file. Nested jars share the mapping of the outermost jar and need not be closed.
+     */
+    public void close() throws IOException {
+        if (randomAccessFile != null) {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * @param header scratch space for the local header
+     * @return the offset of the data of {@code entry}, after its local header
+     */
+    private long dataOffset(Entry entry, byte[] header) throws IOException {
+        readBytes(entry.localHeaderOffset, header, 0, LOCAL_HEADER_SIZE);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (headerBuffer.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Bad local header for " + entry.name + " in " + path);
+        }
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE
+                + (headerBuffer.getShort(26) & 0xffff) + (headerBuffer.getShort(28) & 0xffff);
+    }
+
+    private static int toInt(long value, Entry entry) throws ZipException {
+        if (value > Integer.MAX_VALUE - 16) {
+            throw new ZipException("Entry too large: " + entry.name);
+        }
+        return (int) value;
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        int tailSize = (int) Math.min(size, END_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = readBuffer(size - tailSize, tailSize);
+        int end = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; --i) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new ZipException("Not a zip file: " + path);
+        }
+
+        long entryCount = tail.getShort(end + 10) & 0xffff;
+        long directorySize = tail.getInt(end + 12) & 0xffffffffL;
+        long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+
+        // where the central directory really ends: at the end record, or at the zip64 one
+        long directoryEnd = size - tailSize + end;
+        long locatorOffset = directoryEnd - ZIP64_LOCATOR_SIZE;
+        if (locatorOffset >= 0) {
+            ByteBuffer locator = readBuffer(locatorOffset, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                // the recorded offset misses any prepended data; the record normally
+                // comes right before the locator
+                long end64Offset = locator.getLong(8);
+                if (end64Offset < 0 || end64Offset + ZIP64_END_SIZE > size
+                        || readBuffer(end64Offset, 4).getInt(0) != ZIP64_END_SIGNATURE) {
+                    end64Offset = locatorOffset - ZIP64_END_SIZE;
+                }
+                ByteBuffer end64 = readBuffer(end64Offset, ZIP64_END_SIZE);
+                if (end64.getInt(0) != ZIP64_END_SIGNATURE) {
+                    throw new ZipException("Bad zip64 end record in " + path);
+                }
+                entryCount = end64.getLong(32);
+                directorySize = end64.getLong(40);
+                directoryOffset = end64.getLong(48);
+                directoryEnd = end64Offset;
+            }
+        }
+        if (directorySize > Integer.MAX_VALUE) {
+            throw new ZipException("Central directory too large in " + path);
+        }
+        // bytes prepended to the archive after it was written, as ZipFile accounts for them
+        long prefix = directoryEnd - directorySize - directoryOffset;
+        if (prefix < 0) {
+            throw new ZipException("Bad central directory offset in " + path);
+        }
+        directoryOffset += prefix;
+
+        ByteBuffer directory = readBuffer(directoryOffset, (int) directorySize);
+        List<Entry> result = new ArrayList<Entry>((int) Math.min(entryCount, 1 << 20));
+        int position = 0;
+        for (long i = 0; i < entryCount; ++i) {
+            if (directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Bad central directory header in " + path);
+            }
+            int flags = directory.getShort(position + 8) & 0xffff;
+            int method = directory.getShort(position + 10) & 0xffff;
+            long compressedSize = directory.getInt(position + 20) & 0xffffffffL;
+            long uncompressedSize = directory.getInt(position + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xffffffffL;
+
+            byte[] nameBytes = new byte[nameLength];
+            for (int j = 0; j < nameLength; ++j) {
+                nameBytes[j] = directory.get(position + 46 + j);
+            }
+            String name = new String(nameBytes, UTF8);
+
+            int extra = position + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = directory.getShort(extra) & 0xffff;
+                int dataSize = directory.getShort(extra + 2) & 0xffff;
+                if (id == 0x0001) {
+                    int field = extra + 4;
+                    if (uncompressedSize == 0xffffffffL) {
+                        uncompressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xffffffffL) {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xffffffffL) {
+                        localHeaderOffset = directory.getLong(field);
+                    }
+                }
+                extra += 4 + dataSize;
+            }
+
+            if ((flags & 1) != 0) {
+                method = -1;
+            }
+            result.add(new Entry(name, method, compressedSize, uncompressedSize, localHeaderOffset + prefix));
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+        return result;
+    }
+
+    private ByteBuffer readBuffer(long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        readBytes(offset, bytes, 0, length);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return the chunk holding {@code offset}; a nested jar is a single chunk of up to 2 GB
+     */
+    private int chunk(long offset) {
+        return (int) Math.min(offset / CHUNK_SIZE, chunks.length - 1);
+    }
+
+    private void readBytes(long offset, byte[] dst, int dstOffset, int length) throws IOException {
+        if (offset < 0 || offset + length > size) {
+            throw new ZipException("Offset out of range in " + path);
+        }
+        int chunk = chunk(offset);
+        ByteBuffer mapping = chunks[chunk];
+        long chunkStart = chunk * CHUNK_SIZE;
+        if (offset + length <= chunkStart + mapping.capacity()) {
+            ByteBuffer view = mapping.duplicate();
+            view.position((int) (offset - chunkStart));
+            view.get(dst, dstOffset, length);
+            return;
+        }
+
+        ByteBuffer target = ByteBuffer.wrap(dst, dstOffset, length);
+        long position = offset;
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position);
+            if (read < 0) {
+                throw new ZipException("Unexpected end of " + path);
+            }
+            position += read;
+        }
+    }
+
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        int getMethod() {
+            return method;
+        }
+
+        long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
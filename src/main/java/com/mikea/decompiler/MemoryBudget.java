@@ -0,0 +1,105 @@
+package com.mikea.decompiler;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bytes held by work in flight: class files read but not yet decompiled, and sources
+ * waiting to be written. Acquiring blocks while the budget is spent, which is what slows
+ * the reading stage down to the pace of the later ones. A single request larger than the
+ * whole budget is admitted once nothing else is held, so it can not stall the pipeline.
+ * Waiting goes through a {@link ReentrantLock} rather than a monitor, so that a virtual
+ * thread waiting for memory does not pin its carrier thread.
+ */
+class MemoryBudget {
+    private final long maxBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private long used = 0;
+    private long peak = 0;
+
+    /**
+     * @param maxBytes the budget, or 0 for no limit
+     */
+    MemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    void acquire(long bytes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!fits(bytes)) {
+                released.await();
+            }
+            take(bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean tryAcquire(long bytes) {
+        lock.lock();
+        try {
+            if (!fits(bytes)) {
+                return false;
+            }
+            take(bytes);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes {@code bytes} even if that goes over the budget; for holders the rest of the
+     * pipeline is waiting on.
+     */
+    void forceAcquire(long bytes) {
+        lock.lock();
+        try {
+            take(bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(long bytes) {
+        lock.lock();
+        try {
+            used -= bytes;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getUsed() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the most bytes held at once so far
+     */
+    long getPeak() {
+        lock.lock();
+        try {
+            return peak;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fits(long bytes) {
+        return maxBytes <= 0 || used == 0 || used + bytes <= maxBytes;
+    }
+
+    private void take(long bytes) {
+        used += bytes;
+        peak = Math.max(peak, used);
+    }
+}
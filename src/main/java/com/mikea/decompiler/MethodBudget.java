@@ -0,0 +1,142 @@
+package com.mikea.decompiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Limits the work spent on a single method. Methods over the budget are written as a
+ * bytecode listing instead of source, and recorded for the report. One budget is shared
+ * by all workers.
+ */
+public class MethodBudget {
+    private final int maxInstructions;
+    private final long maxNanos;
+    private final List<Overrun> overruns = new ArrayList<Overrun>();
+
+    /**
+     * @param maxInstructions methods with more instructions are not evaluated at all; 0 for no limit
+     * @param maxMillis       evaluation of a method is abandoned after this long; 0 for no limit
+     */
+    public MethodBudget(int maxInstructions, long maxMillis) {
+        this.maxInstructions = maxInstructions;
+        this.maxNanos = maxMillis * 1000000;
+    }
+
+    boolean allows(int instructions) {
+        return maxInstructions <= 0 || instructions <= maxInstructions;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} after which a method started at {@code start}
+     * is over the budget, or 0 if there is no time limit
+     */
+    long deadline(long start) {
+        if (maxNanos <= 0) {
+            return 0;
+        }
+        long deadline = start + maxNanos;
+        // 0 means no deadline
+        return deadline != 0 ? deadline : 1;
+    }
+
+    void record(String className, MethodKey method, int instructions, long nanos, boolean timedOut) {
+        synchronized (overruns) {
+            overruns.add(new Overrun(className, method, instructions, nanos, timedOut));
+        }
+    }
+
+    /**
+     * @return the methods over the budget so far, slowest first
+     */
+    public List<Overrun> getOverruns() {
+        List<Overrun> result;
+        synchronized (overruns) {
+            result = new ArrayList<Overrun>(overruns);
+        }
+        Collections.sort(result, new Comparator<Overrun>() {
+            @Override
+            public int compare(Overrun a, Overrun b) {
+                return a.nanos < b.nanos ? 1 : a.nanos > b.nanos ? -1 : 0;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return one line per method over the budget, slowest first
+     */
+    public String report() {
+        List<Overrun> list = getOverruns();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("budget: %d methods over budget", list.size()));
+        for (Overrun overrun : list) {
+            sb.append("\n  ").append(overrun);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A method written as a listing because it was over the budget.
+     */
+    public static class Overrun {
+        private final String className;
+        private final MethodKey method;
+        private final int instructions;
+        private final long nanos;
+        private final boolean timedOut;
+
+        Overrun(String className, MethodKey method, int instructions, long nanos, boolean timedOut) {
+            this.className = className;
+            this.method = method;
+            this.instructions = instructions;
+            this.nanos = nanos;
+            this.timedOut = timedOut;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public MethodKey getMethod() {
+            return method;
+        }
+
+        public int getInstructions() {
+            return instructions;
+        }
+
+        /**
+         * @return time spent on the method, including the listing
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return true if the method ran out of time, false if it had too many instructions
+         */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s.%s: %d instructions, %.1f ms (%s)", className, method, instructions,
+                    nanos / 1e6, timedOut ? "time" : "size");
+        }
+    }
+
+    /**
+     * Thrown while evaluating a method that ran out of time. Carries no stack trace, the
+     * caller falls back to a listing.
+     */
+    static class Exceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Exceeded() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -3,9 +3,7 @@ package com.mikea.decompiler;
 import org.objectweb.asm.Type;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -13,68 +11,164 @@ import java.util.Set;
 public class MethodInfo {
 
     final String className;
-    private final int access;
-    private final String name;
-    private final String desc;
-    private final String signature;
-    private final String[] exceptions;
 
-    private final Map<Integer, VarInfo> locals = new HashMap<Integer, VarInfo>();
+    /**
+     * Local variables by slot. Slots reused for several variables hold a chain of
+     * entries ordered by start position.
+     */
+    private VarInfo[] locals;
+    private String[] fallbackNames;
     private final Set<String> localNames = new HashSet<String>();
+    private LocalTypes localTypes;
 
-    public MethodInfo(String className, int access, String name, String desc, String signature, String[] exceptions) {
+    /**
+     * @param className internal name of the class declaring the method
+     * @param maxLocals the number of local variable slots, the table grows if a larger slot is used
+     */
+    public MethodInfo(String className, int maxLocals) {
         this.className = className;
-        this.access = access;
-        this.name = name;
-        this.desc = desc;
-        this.signature = signature;
-        this.exceptions = exceptions;
+        this.locals = new VarInfo[maxLocals];
+        this.fallbackNames = new String[maxLocals];
     }
 
+    /**
+     * Adds a variable that is in scope everywhere in the method.
+     */
     public void addVar(int index, String name, Type type) {
-        String realName = name;
-        int i = 0;
-        while (localNames.contains(realName)) {
-            realName = name + i;
-            i++;
+        addVar(index, name, type, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Adds a variable that is in scope between positions {@code start} (inclusive) and
+     * {@code end} (exclusive). Positions only need to increase along the code; the
+     * decompiler uses the number of labels preceding an instruction.
+     */
+    public void addVar(int index, String name, Type type, int start, int end) {
+        if (index >= locals.length) {
+            int length = Math.max(index + 1, locals.length * 2);
+            locals = Arrays.copyOf(locals, length);
+            fallbackNames = Arrays.copyOf(fallbackNames, length);
+        }
+
+        VarInfo previous = null;
+        VarInfo next = locals[index];
+        while (next != null && next.start <= start) {
+            previous = next;
+            next = next.next;
+        }
+
+        String realName = null;
+        for (VarInfo var = locals[index]; var != null; var = var.next) {
+            if (var.declaredName.equals(name)) {
+                realName = var.name;
+                break;
+            }
+        }
+        if (realName == null) {
+            realName = name;
+            int i = 0;
+            while (!localNames.add(realName)) {
+                realName = name + i;
+                i++;
+            }
+        }
+
+        VarInfo varInfo = new VarInfo(name, realName, type, start, end, next);
+        if (previous == null) {
+            locals[index] = varInfo;
+        } else {
+            previous.next = varInfo;
         }
-        locals.put(index, new VarInfo(realName, type));
-        localNames.add(realName);
     }
 
-    public String getTag() {
-        return getMethodTag(access, name, desc, signature, exceptions);
+    /**
+     * @param localTypes types of locals missing from the local variable table
+     */
+    void setLocalTypes(LocalTypes localTypes) {
+        this.localTypes = localTypes;
     }
 
-    public static String getMethodTag(int access, String name, String desc, String signature, String[] exceptions) {
-        return String.format("%d-%s-%s-%s-%s", access, name, desc, signature,
-                exceptions != null ? Arrays.asList(exceptions).toString() : "");
+    /**
+     * @param position position of the instruction reading the variable
+     */
+    public String getVarName(int var, int position) {
+        return getName(var, find(var, position, false));
     }
 
-    public String getVarName(int var) {
-        VarInfo varInfo = locals.get(var);
-        if (varInfo == null) {
-            return "__local_" + var;
+    /**
+     * @param position position of the instruction storing to the variable; a store that
+     *                 initializes a variable comes directly before its scope
+     */
+    public String getStoredVarName(int var, int position) {
+        return getName(var, find(var, position, true));
+    }
+
+    private String getName(int var, VarInfo varInfo) {
+        return varInfo != null ? varInfo.name : getFallbackName(var);
+    }
+
+    /**
+     * @param position position of the instruction reading the variable
+     * @return the declared type, else the inferred one, else {@code Object}
+     */
+    public Type getVarType(int var, int position) {
+        VarInfo varInfo = find(var, position, false);
+        if (varInfo != null) {
+            return varInfo.type;
+        }
+        Type type = localTypes != null ? localTypes.getType(var, position) : null;
+        return type != null ? type : Type.getObjectType("java/lang/Object");
+    }
+
+    /**
+     * Finds the variable in scope at {@code position}, or for a store also the one whose
+     * scope starts right after it. Anything else in the slot, such as a compiler temp, is
+     * not in the table and gets null.
+     */
+    private VarInfo find(int var, int position, boolean store) {
+        if (var >= locals.length) {
+            return null;
+        }
+        // entries are ordered by start, so the first one not ending before position either
+        // contains it or is the next one to start
+        for (VarInfo varInfo = locals[var]; varInfo != null; varInfo = varInfo.next) {
+            if (position < varInfo.start) {
+                return store && position == varInfo.start - 1 ? varInfo : null;
+            }
+            if (position < varInfo.end) {
+                return varInfo;
+            }
         }
-        return varInfo.name;
+        return null;
     }
 
-    public Type getVarType(int var) {
-        VarInfo varInfo = locals.get(var);
-        if (varInfo == null) {
-            System.err.println("error: Null type");
-            return Type.getObjectType("UnknownType");
+    private String getFallbackName(int var) {
+        if (var >= fallbackNames.length) {
+            return "__local_" + var;
+        }
+        String name = fallbackNames[var];
+        if (name == null) {
+            name = "__local_" + var;
+            fallbackNames[var] = name;
         }
-        return varInfo.type;
+        return name;
     }
 
     private static class VarInfo {
+        private final String declaredName;
         private final String name;
         private final Type type;
+        private final int start;
+        private final int end;
+        private VarInfo next;
 
-        public VarInfo(String name, Type type) {
+        public VarInfo(String declaredName, String name, Type type, int start, int end, VarInfo next) {
+            this.declaredName = declaredName;
             this.name = name;
             this.type = type;
+            this.start = start;
+            this.end = end;
+            this.next = next;
         }
     }
 }
@@ -0,0 +1,46 @@
+package com.mikea.decompiler;
+
+/**
+ * Identity of a method within its class: name and descriptor, with the hash computed once.
+ */
+public final class MethodKey {
+    private final String name;
+    private final String desc;
+    private final int hash;
+
+    public MethodKey(String name, String desc) {
+        this.name = name;
+        this.desc = desc;
+        this.hash = 31 * name.hashCode() + desc.hashCode();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDesc() {
+        return desc;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MethodKey)) {
+            return false;
+        }
+        MethodKey other = (MethodKey) o;
+        return hash == other.hash && name.equals(other.name) && desc.equals(other.desc);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name + desc;
+    }
+}
@@ -0,0 +1,246 @@
+package com.mikea.decompiler;
+
+import org.objectweb.asm.util.Printer;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters of where decompilation time goes. Updated from every worker, so
+ * each counter is a {@link LongAdder}; the per-instruction ones are on the hot path.
+ * Readable while a run is in progress through JMX, see {@link #register()}, and as JSON
+ * once it is done.
+ */
+public final class Metrics {
+    public static final String OBJECT_NAME = "com.mikea.decompiler:type=Metrics";
+
+    public enum Phase {
+        /**
+         * Reading class bytes from the jar.
+         */
+        READ,
+        /**
+         * {@link org.objectweb.asm.ClassReader} parsing, excluding method bodies.
+         */
+        PARSE,
+        /**
+         * Scoping local variables before a method body is evaluated.
+         */
+        PREPASS,
+        /**
+         * Structuring and evaluating method bodies.
+         */
+        EVALUATE,
+        /**
+         * Handing sources to the sink.
+         */
+        WRITE
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final LongAdder[] phaseNanos = adders(PHASES.length);
+    private static final LongAdder[] opcodes = adders(256);
+    private static final LongAdder classes = new LongAdder();
+    private static final LongAdder methods = new LongAdder();
+    private static final LongAdder stackUnderflows = new LongAdder();
+    private static final LongAdder bytesWritten = new LongAdder();
+
+    private Metrics() {
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] result = new LongAdder[count];
+        for (int i = 0; i < count; ++i) {
+            result[i] = new LongAdder();
+        }
+        return result;
+    }
+
+    static void time(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()].add(nanos);
+    }
+
+    static void opcode(int opcode) {
+        opcodes[opcode].increment();
+    }
+
+    static void classDecompiled() {
+        classes.increment();
+    }
+
+    static void methodDecompiled() {
+        methods.increment();
+    }
+
+    /**
+     * An instruction found fewer values on the evaluator stack than it consumes.
+     */
+    static void stackUnderflow() {
+        stackUnderflows.increment();
+    }
+
+    static void bytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public static long getClasses() {
+        return classes.sum();
+    }
+
+    public static long getMethods() {
+        return methods.sum();
+    }
+
+    public static long getStackUnderflows() {
+        return stackUnderflows.sum();
+    }
+
+    public static long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public static long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * @return nanoseconds per phase, keyed by lower case phase name
+     */
+    public static Map<String, Long> getPhaseNanos() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Phase phase : PHASES) {
+            result.put(phase.name().toLowerCase(Locale.ROOT), getPhaseNanos(phase));
+        }
+        return result;
+    }
+
+    public static long getOpcodeCount(int opcode) {
+        return opcodes[opcode].sum();
+    }
+
+    /**
+     * @return counts of the instructions evaluated so far, keyed by mnemonic; opcodes never seen are left out
+     */
+    public static Map<String, Long> getOpcodeCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int opcode = 0; opcode < opcodes.length; ++opcode) {
+            long count = opcodes[opcode].sum();
+            if (count != 0) {
+                String name = opcode < Printer.OPCODES.length ? Printer.OPCODES[opcode] : null;
+                result.put(name != null ? name : String.valueOf(opcode), count);
+            }
+        }
+        return result;
+    }
+
+    public static void reset() {
+        for (LongAdder adder : phaseNanos) {
+            adder.reset();
+        }
+        for (LongAdder adder : opcodes) {
+            adder.reset();
+        }
+        classes.reset();
+        methods.reset();
+        stackUnderflows.reset();
+        bytesWritten.reset();
+    }
+
+    public static String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"classes\": ").append(getClasses()).append(",\n");
+        sb.append("  \"methods\": ").append(getMethods()).append(",\n");
+        sb.append("  \"stackUnderflows\": ").append(getStackUnderflows()).append(",\n");
+        sb.append("  \"bytesWritten\": ").append(getBytesWritten()).append(",\n");
+        sb.append("  \"phaseNanos\": ");
+        appendJson(sb, getPhaseNanos());
+        sb.append(",\n");
+        sb.append("  \"opcodes\": ");
+        appendJson(sb, getOpcodeCounts());
+        sb.append("\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Keys are phase names and mnemonics, which need no escaping.
+     */
+    private static void appendJson(StringBuilder sb, Map<String, Long> map) {
+        sb.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            sb.append(first ? "\n    \"" : ",\n    \"").append(entry.getKey()).append("\": ").append(entry.getValue());
+            first = false;
+        }
+        sb.append(first ? "}" : "\n  }");
+    }
+
+    public static void writeJson(File file) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+        try {
+            out.write(toJson());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as {@link #OBJECT_NAME}.
+     * Registering again is a no-op.
+     */
+    public static void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // registered by an earlier run in this process
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Bean implements MetricsMXBean {
+        @Override
+        public long getClasses() {
+            return Metrics.getClasses();
+        }
+
+        @Override
+        public long getMethods() {
+            return Metrics.getMethods();
+        }
+
+        @Override
+        public long getStackUnderflows() {
+            return Metrics.getStackUnderflows();
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return Metrics.getBytesWritten();
+        }
+
+        @Override
+        public Map<String, Long> getPhaseNanos() {
+            return Metrics.getPhaseNanos();
+        }
+
+        @Override
+        public Map<String, Long> getOpcodeCounts() {
+            return Metrics.getOpcodeCounts();
+        }
+    }
+}
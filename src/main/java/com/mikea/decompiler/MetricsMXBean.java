@@ -0,0 +1,20 @@
+package com.mikea.decompiler;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link Metrics}.
+ */
+public interface MetricsMXBean {
+    long getClasses();
+
+    long getMethods();
+
+    long getStackUnderflows();
+
+    long getBytesWritten();
+
+    Map<String, Long> getPhaseNanos();
+
+    Map<String, Long> getOpcodeCounts();
+}
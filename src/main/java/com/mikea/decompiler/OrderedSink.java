@@ -0,0 +1,204 @@
+package com.mikea.decompiler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Funnels sources produced concurrently into a delegate sink from a single writer thread,
+ * in sequence order. Every unit of work gets a {@link #slot(int) slot} numbered by its
+ * position in the input; the writer commits slot {@code n} only after slots {@code 0..n-1},
+ * so the delegate sees the same order regardless of scheduling.
+ * <p>
+ * Sources waiting for earlier slots count against a {@link MemoryBudget}: closing a slot
+ * blocks while the budget is spent, unless it is the slot the writer waits for. Slots are
+ * closed from decompiling threads, which may be virtual, so waiting goes through a
+ * {@link ReentrantLock} rather than a monitor that would pin their carrier threads.
+ */
+public class OrderedSink {
+    private final SourceSink delegate;
+    private final MemoryBudget memory;
+    private final Thread writerThread;
+    private final Map<Integer, List<Source>> completed = new HashMap<Integer, List<Source>>();
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when a slot is completed, a slot is written or the writer fails.
+     */
+    private final Condition changed = lock.newCondition();
+
+    private int next = 0;
+    private int expected = -1;
+    private IOException failure;
+
+    public OrderedSink(SourceSink delegate) {
+        this(delegate, new MemoryBudget(0));
+    }
+
+    OrderedSink(SourceSink delegate, MemoryBudget memory) {
+        this.delegate = delegate;
+        this.memory = memory;
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "decompiler-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * @return a sink collecting the output of unit {@code sequence}; it must be closed
+     * exactly once, even if the unit produced nothing
+     */
+    public SourceSink slot(final int sequence) {
+        return new SourceSink() {
+            private final List<Source> sources = new ArrayList<Source>(1);
+
+            @Override
+            public void write(String className, CharSequence source) {
+                sources.add(new Source(className, source.toString()));
+            }
+
+            @Override
+            public void close() throws IOException {
+                complete(sequence, sources);
+            }
+        };
+    }
+
+    private void complete(int sequence, List<Source> sources) throws IOException {
+        long bytes = size(sources);
+        lock.lock();
+        try {
+            boolean acquired = memory.tryAcquire(bytes);
+            while (!acquired && sequence != next && failure == null) {
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the writer", e);
+                }
+                acquired = memory.tryAcquire(bytes);
+            }
+            if (failure != null) {
+                if (acquired) {
+                    memory.release(bytes);
+                }
+                throw failure;
+            }
+            if (!acquired) {
+                memory.forceAcquire(bytes);
+            }
+            completed.put(sequence, sources);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the memory taken by {@code sources}, two bytes per char
+     */
+    private static long size(List<Source> sources) {
+        long size = 0;
+        for (Source source : sources) {
+            size += 2L * source.text.length();
+        }
+        return size;
+    }
+
+    /**
+     * Waits until slots {@code 0..count-1} are written and stops the writer thread.
+     * The delegate is not closed.
+     */
+    public void finish(int count) throws IOException {
+        lock.lock();
+        try {
+            expected = count;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the writer", e);
+        }
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<Source> sources;
+            lock.lock();
+            try {
+                while (!completed.containsKey(next) && next != expected) {
+                    try {
+                        changed.await();
+                    } catch (InterruptedException e) {
+                        failure = new IOException("Writer interrupted");
+                        return;
+                    }
+                }
+                if (next == expected) {
+                    return;
+                }
+                sources = completed.remove(next);
+                next++;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                for (Source source : sources) {
+                    delegate.write(source.className, source.text);
+                }
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    memory.release(size(sources));
+                    for (List<Source> pending : completed.values()) {
+                        memory.release(size(pending));
+                    }
+                    completed.clear();
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            memory.release(size(sources));
+            lock.lock();
+            try {
+                // the next slot may be waiting for memory
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Source {
+        private final String className;
+        private final String text;
+
+        Source(String className, String text) {
+            this.className = className;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package com.mikea.decompiler;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decompiles class files in three stages: the calling thread reads class bytes, worker
+ * threads decompile them, and the sink (through an {@link OrderedSink} if the order
+ * matters) writes the sources. Stages are connected by a bounded queue, and the class
+ * bytes and buffered sources in flight share one {@link MemoryBudget}, so reading waits
+ * for the slower stages instead of filling the heap. Every class gets its own
+ * writer/visitor/evaluator chain, so workers share nothing but the sink. Entries from any
+ * number of jars and directories go through the same queue, see {@link ClassPath}.
+ * <p>
+ * When reading and writing block for long (jars on network storage), classes can instead
+ * each get a task of their own, see {@link #setThreadPerClass(boolean)}.
+ */
+public class ParallelDecompiler {
+    private static final Item END = new Item(-1, null, null, 0);
+    /**
+     * Classes being read, decompiled or written at once per decompiling thread, in the
+     * thread per class mode.
+     */
+    private static final int TASKS_PER_THREAD = 32;
+
+    private final SourceSink sink;
+    private final int threads;
+    private final boolean orderedOutput;
+    private final DecompileCache cache;
+    private final MethodBudget budget;
+    private final ClassHierarchy hierarchy;
+    private final MemoryBudget memory;
+    private ClassFilter filter;
+    private FailureReport failureReport;
+    private boolean threadPerClass;
+
+    /**
+     * @param orderedOutput whether {@code sink} must receive classes in input order; if so,
+     *                      writes go through an {@link OrderedSink}
+     * @param cache         cache of generated sources, or null
+     * @param budget        limits on a single method, or null for none
+     * @param hierarchy     supertypes of the classes being decompiled, or null if unknown
+     * @param memoryBytes   bytes of class files and sources to hold at most, or 0 for no limit
+     */
+    public ParallelDecompiler(SourceSink sink, int threads, boolean orderedOutput, DecompileCache cache,
+                              MethodBudget budget, ClassHierarchy hierarchy, long memoryBytes) {
+        this.sink = sink;
+        this.threads = threads;
+        this.orderedOutput = orderedOutput;
+        this.cache = cache;
+        this.budget = budget;
+        this.hierarchy = hierarchy;
+        this.memory = new MemoryBudget(memoryBytes);
+    }
+
+    /**
+     * @param filter decides, from the class bytes, which of the entries to decompile; name
+     *               patterns should already have been applied to the entries
+     */
+    public void setFilter(ClassFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @param failures where failing classes and methods are recorded; classes that can not
+     *                 be read or decompiled are then skipped or written as stubs instead of
+     *                 failing the run
+     */
+    public void setFailureReport(FailureReport failures) {
+        this.failureReport = failures;
+    }
+
+    /**
+     * @param threadPerClass whether each class is read, decompiled and written by a task of
+     *                       its own, on a virtual thread where the runtime has them, rather
+     *                       than read on the calling thread and decompiled by a fixed set
+     *                       of workers. Tasks blocked in I/O do not count against
+     *                       {@code threads}, which then only limits how many classes are
+     *                       decompiled at once.
+     */
+    public void setThreadPerClass(boolean threadPerClass) {
+        this.threadPerClass = threadPerClass;
+    }
+
+    /**
+     * @return whether the runtime has virtual threads (Java 21 and later); if not, the
+     * thread per class mode uses a cached pool of platform threads
+     */
+    public static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the most bytes of class files and sources held at once so far
+     */
+    public long getPeakMemory() {
+        return memory.getPeak();
+    }
+
+    /**
+     * Decompiles all entries. If some of them fail, the failure of the first
+     * failing entry (in input order) is rethrown once every entry is processed,
+     * so the outcome does not depend on scheduling. With a {@link FailureReport}, only
+     * failures to write the output are rethrown.
+     */
+    public void decompile(List<ClassEntry> entries) throws IOException {
+        Throwable[] failures = new Throwable[entries.size()];
+        OrderedSink orderedSink = orderedOutput ? new OrderedSink(sink, memory) : null;
+        if (threadPerClass) {
+            try {
+                decompileTasks(entries, orderedSink, failures);
+            } finally {
+                if (orderedSink != null) {
+                    orderedSink.finish(entries.size());
+                }
+            }
+            rethrow(failures);
+            return;
+        }
+        BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(2 * threads);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            workers[i] = new Thread(new Worker(queue, orderedSink, failures), "decompiler-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        try {
+            read(entries, queue, orderedSink, failures);
+        } finally {
+            try {
+                for (int i = 0; i < threads; ++i) {
+                    queue.put(END);
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the workers", e);
+            }
+            if (orderedSink != null) {
+                orderedSink.finish(entries.size());
+            }
+        }
+        rethrow(failures);
+    }
+
+    private static void rethrow(Throwable[] failures) throws IOException {
+        for (Throwable failure : failures) {
+            if (failure == null) {
+                continue;
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    /**
+     * The reading stage: hands the entries over to the workers in input order, waiting for
+     * memory before reading each class.
+     */
+    private void read(List<ClassEntry> entries, BlockingQueue<Item> queue, OrderedSink orderedSink,
+                      Throwable[] failures) throws IOException {
+        for (int i = 0; i < entries.size(); ++i) {
+            ClassEntry entry = entries.get(i);
+            if (!entry.getName().endsWith(".class")) {
+                close(orderedSink, i, failures);
+                continue;
+            }
+
+            long size = Math.max(entry.getSize(), 0);
+            try {
+                memory.acquire(size);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + entry.getName(), e);
+            }
+            ClassBuffer buffer = ClassBuffer.acquire();
+            try {
+                long start = System.nanoTime();
+                entry.read(buffer);
+                Metrics.time(Metrics.Phase.READ, System.nanoTime() - start);
+            } catch (Throwable t) {
+                if (failureReport != null && t instanceof IOException) {
+                    failureReport.record(App.className(entry.getName()), null, t);
+                } else {
+                    failures[i] = t;
+                }
+                ClassBuffer.release(buffer);
+                memory.release(size);
+                close(orderedSink, i, failures);
+                continue;
+            }
+            try {
+                queue.put(new Item(i, App.className(entry.getName()), buffer, size));
+            } catch (InterruptedException e) {
+                ClassBuffer.release(buffer);
+                memory.release(size);
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + entry.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Starts a task per class, waiting for memory before each, and waits for all of them.
+     */
+    private void decompileTasks(List<ClassEntry> entries, OrderedSink orderedSink, Throwable[] failures)
+            throws IOException {
+        ExecutorService executor = virtualThreadExecutor();
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "decompiler-task-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        Semaphore cpu = new Semaphore(threads);
+        Semaphore tasks = new Semaphore(threads * TASKS_PER_THREAD);
+        try {
+            for (int i = 0; i < entries.size(); ++i) {
+                ClassEntry entry = entries.get(i);
+                if (!entry.getName().endsWith(".class")) {
+                    close(orderedSink, i, failures);
+                    continue;
+                }
+
+                long size = Math.max(entry.getSize(), 0);
+                try {
+                    tasks.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading " + entry.getName(), e);
+                }
+                try {
+                    memory.acquire(size);
+                } catch (InterruptedException e) {
+                    tasks.release();
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading " + entry.getName(), e);
+                }
+                executor.execute(new Task(i, entry, size, cpu, tasks, orderedSink, failures));
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    // still working
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the workers", e);
+            }
+        }
+    }
+
+    /**
+     * @return {@code Executors.newVirtualThreadPerTaskExecutor()}, or null before Java 21
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Completes slot {@code sequence} of {@code orderedSink}, if there is one, with no output.
+     */
+    private static void close(OrderedSink orderedSink, int sequence, Throwable[] failures) {
+        if (orderedSink == null) {
+            return;
+        }
+        try {
+            orderedSink.slot(sequence).close();
+        } catch (Throwable t) {
+            if (failures[sequence] == null) {
+                failures[sequence] = t;
+            }
+        }
+    }
+
+    private static class Item {
+        private final int sequence;
+        private final String className;
+        private final ClassBuffer buffer;
+        private final long size;
+
+        Item(int sequence, String className, ClassBuffer buffer, long size) {
+            this.sequence = sequence;
+            this.className = className;
+            this.buffer = buffer;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The decompiling stage.
+     */
+    private class Worker implements Runnable {
+        private final BlockingQueue<Item> queue;
+        private final OrderedSink orderedSink;
+        private final Throwable[] failures;
+
+        Worker(BlockingQueue<Item> queue, OrderedSink orderedSink, Throwable[] failures) {
+            this.queue = queue;
+            this.orderedSink = orderedSink;
+            this.failures = failures;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Item item;
+                try {
+                    item = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (item == END) {
+                    return;
+                }
+
+                int i = item.sequence;
+                SourceSink target = orderedSink != null ? orderedSink.slot(i) : sink;
+                try {
+                    if (filter == null || filter.acceptsBytes(item.buffer.bytes(), item.buffer.length())) {
+                        App.decompile(item.className, item.buffer, target, cache, budget, hierarchy,
+                                failureReport);
+                    }
+                } catch (Throwable t) {
+                    failures[i] = t;
+                } finally {
+                    ClassBuffer.release(item.buffer);
+                    // the source is only charged once the class bytes are given back
+                    memory.release(item.size);
+                    if (orderedSink != null) {
+                        try {
+                            target.close();
+                        } catch (Throwable t) {
+                            if (failures[i] == null) {
+                                failures[i] = t;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads, decompiles and writes one class, holding one of the {@code cpu} permits only
+     * while decompiling.
+     */
+    private class Task implements Runnable {
+        private final int sequence;
+        private final ClassEntry entry;
+        private final long size;
+        private final Semaphore cpu;
+        private final Semaphore tasks;
+        private final OrderedSink orderedSink;
+        private final Throwable[] failures;
+
+        Task(int sequence, ClassEntry entry, long size, Semaphore cpu, Semaphore tasks, OrderedSink orderedSink,
+             Throwable[] failures) {
+            this.sequence = sequence;
+            this.entry = entry;
+            this.size = size;
+            this.cpu = cpu;
+            this.tasks = tasks;
+            this.orderedSink = orderedSink;
+            this.failures = failures;
+        }
+
+        @Override
+        public void run() {
+            int i = sequence;
+            String className = App.className(entry.getName());
+            SourceSink target = orderedSink != null ? orderedSink.slot(i) : sink;
+            ClassBuffer buffer = ClassBuffer.acquire();
+            try {
+                if (read(buffer, className)) {
+                    CpuSink cpuSink = new CpuSink(target, cpu);
+                    try {
+                        if (filter == null || filter.acceptsBytes(buffer.bytes(), buffer.length())) {
+                            App.decompile(className, buffer, cpuSink, cache, budget, hierarchy, failureReport);
+                        }
+                    } finally {
+                        cpuSink.release();
+                    }
+                }
+            } catch (Throwable t) {
+                failures[i] = t;
+            } finally {
+                ClassBuffer.release(buffer);
+                memory.release(size);
+                if (orderedSink != null) {
+                    try {
+                        target.close();
+                    } catch (Throwable t) {
+                        if (failures[i] == null) {
+                            failures[i] = t;
+                        }
+                    }
+                }
+                tasks.release();
+            }
+        }
+
+        /**
+         * @return false if the class could not be read and was recorded in the failure report
+         */
+        private boolean read(ClassBuffer buffer, String className) throws IOException {
+            long start = System.nanoTime();
+            try {
+                entry.read(buffer);
+            } catch (IOException e) {
+                if (failureReport == null) {
+                    throw e;
+                }
+                failureReport.record(className, null, e);
+                return false;
+            }
+            Metrics.time(Metrics.Phase.READ, System.nanoTime() - start);
+            return true;
+        }
+    }
+
+    /**
+     * Takes a {@code cpu} permit when created and gives it back as soon as the source is
+     * handed on, so that writing it does not hold up another class being decompiled.
+     */
+    private static class CpuSink implements SourceSink {
+        private final SourceSink sink;
+        private final Semaphore cpu;
+        private boolean held = true;
+
+        CpuSink(SourceSink sink, Semaphore cpu) {
+            this.sink = sink;
+            this.cpu = cpu;
+            cpu.acquireUninterruptibly();
+        }
+
+        @Override
+        public void write(String className, CharSequence source) throws IOException {
+            release();
+            sink.write(className, source);
+        }
+
+        @Override
+        public void close() throws IOException {
+            sink.close();
+        }
+
+        void release() {
+            if (held) {
+                held = false;
+                cpu.release();
+            }
+        }
+    }
+}
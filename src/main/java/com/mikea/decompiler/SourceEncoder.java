@@ -0,0 +1,54 @@
+package com.mikea.decompiler;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes sources into a byte buffer that is reused between calls. Not thread safe.
+ */
+class SourceEncoder {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final CharsetEncoder encoder;
+    private final boolean direct;
+    private ByteBuffer buffer;
+
+    SourceEncoder(Charset charset, boolean direct) {
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.direct = direct;
+        this.buffer = allocate(INITIAL_BUFFER_SIZE);
+    }
+
+    /**
+     * @return the encoded bytes, valid until the next call
+     */
+    ByteBuffer encode(CharSequence source) throws CharacterCodingException {
+        CharBuffer chars = CharBuffer.wrap(source);
+        int capacity = (int) Math.min(Integer.MAX_VALUE, (long) (source.length() * (double) encoder.maxBytesPerChar()));
+        if (buffer.capacity() < capacity) {
+            buffer = allocate(Math.max(capacity, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        encoder.reset();
+        CoderResult result = encoder.encode(chars, buffer, true);
+        if (result.isUnderflow()) {
+            result = encoder.flush(buffer);
+        }
+        if (!result.isUnderflow()) {
+            result.throwException();
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
@@ -0,0 +1,18 @@
+package com.mikea.decompiler;
+
+import java.io.IOException;
+
+/**
+ * Destination of generated sources. {@link JavaSourceWriter} buffers a whole class and
+ * hands it over in one {@link #write} call; implementations must accept calls from
+ * several threads at once.
+ */
+public interface SourceSink {
+    /**
+     * @param className dotted class name, e.g. {@code java.lang.String}
+     * @param source    complete source of the class; only valid for the duration of the call
+     */
+    void write(String className, CharSequence source) throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,642 @@
+package com.mikea.decompiler;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+
+import java.util.Arrays;
+
+/**
+ * Writes a method body as structured code: {@code if}/{@code else}, {@code while (true)}
+ * loops, {@code switch} and labeled blocks left with {@code break}/{@code continue},
+ * instead of a flat list of jumps.
+ * <p>
+ * The structure follows the dominator tree of the {@link ControlFlowGraph} (Ramsey, "Beyond
+ * Relooper"): a block reached by a single forward edge is written inline where it is
+ * branched to; a merge block, an exception handler or a loop exit is written after a
+ * labeled block that encloses everything branching to it. Loop headers open a loop.
+ * <p>
+ * The structure is first planned as a flat list of operations, so that labels nobody
+ * breaks to can be left out, and then written by replaying each block's instructions
+ * through the {@link EvaluateMethodVisitor}. Values left on the operand stack at the
+ * end of a block are passed on in temps, see {@link Evaluator#spill()}.
+ */
+final class Structurer {
+    private static final int NONE = ControlFlowGraph.NONE;
+    /**
+     * Deeper nesting is written as flat jumps, so that planning can recurse.
+     */
+    private static final int MAX_DEPTH = 500;
+
+    private static final int BLOCK = 0;
+    private static final int IF = 1;
+    private static final int IF_NOT = 2;
+    private static final int ELSE = 3;
+    private static final int END = 4;
+    private static final int DISCARD = 5;
+    private static final int OPEN_BLOCK = 6;
+    private static final int CLOSE_BLOCK = 7;
+    private static final int OPEN_LOOP = 8;
+    private static final int CLOSE_LOOP = 9;
+    private static final int BREAK = 10;
+    private static final int CONTINUE = 11;
+    private static final int SWITCH = 12;
+    private static final int CASE = 13;
+    private static final int DEFAULT = 14;
+    private static final int BREAK_SWITCH = 15;
+
+    private static final String[] OPERATIONS = new String[Opcodes.IFNONNULL + 1];
+    private static final int[] NEGATIONS = new int[Opcodes.IFNONNULL + 1];
+
+    static {
+        condition(Opcodes.IFEQ, "== 0", Opcodes.IFNE);
+        condition(Opcodes.IFNE, "!= 0", Opcodes.IFEQ);
+        condition(Opcodes.IFLT, "< 0", Opcodes.IFGE);
+        condition(Opcodes.IFGE, ">= 0", Opcodes.IFLT);
+        condition(Opcodes.IFGT, "> 0", Opcodes.IFLE);
+        condition(Opcodes.IFLE, "<= 0", Opcodes.IFGT);
+        condition(Opcodes.IF_ICMPEQ, "==", Opcodes.IF_ICMPNE);
+        condition(Opcodes.IF_ICMPNE, "!=", Opcodes.IF_ICMPEQ);
+        condition(Opcodes.IF_ICMPLT, "<", Opcodes.IF_ICMPGE);
+        condition(Opcodes.IF_ICMPGE, ">=", Opcodes.IF_ICMPLT);
+        condition(Opcodes.IF_ICMPGT, ">", Opcodes.IF_ICMPLE);
+        condition(Opcodes.IF_ICMPLE, "<=", Opcodes.IF_ICMPGT);
+        condition(Opcodes.IF_ACMPEQ, "==", Opcodes.IF_ACMPNE);
+        condition(Opcodes.IF_ACMPNE, "!=", Opcodes.IF_ACMPEQ);
+        condition(Opcodes.IFNULL, "== null", Opcodes.IFNONNULL);
+        condition(Opcodes.IFNONNULL, "!= null", Opcodes.IFNULL);
+    }
+
+    private static void condition(int opcode, String operation, int negation) {
+        OPERATIONS[opcode] = operation;
+        NEGATIONS[opcode] = negation;
+    }
+
+    private final MethodNode method;
+    private final ControlFlowGraph cfg;
+    private final EvaluateMethodVisitor visitor;
+    private final Evaluator evaluator;
+    private final JavaSourceWriter writer;
+
+    /** pairs of (operation, argument) */
+    private final ControlFlowGraph.IntList ops;
+    private int depth = 0;
+    private boolean failed = false;
+
+    private final int[] alias;
+    private final boolean[] blockUsed;
+    private final boolean[] loopUsed;
+    private final Type[][] entryTypes;
+    private final boolean[] entryKnown;
+
+    private Structurer(MethodNode method, ControlFlowGraph cfg, EvaluateMethodVisitor visitor, Evaluator evaluator,
+                       JavaSourceWriter writer) {
+        this.method = method;
+        this.cfg = cfg;
+        this.visitor = visitor;
+        this.evaluator = evaluator;
+        this.writer = writer;
+
+        int blocks = cfg.getBlockCount();
+        ops = new ControlFlowGraph.IntList(blocks * 4);
+        alias = new int[blocks];
+        Arrays.fill(alias, NONE);
+        blockUsed = new boolean[blocks];
+        loopUsed = new boolean[blocks];
+        entryTypes = new Type[blocks][];
+        entryKnown = new boolean[blocks];
+    }
+
+    /**
+     * @param cfg the graph of {@code method}, or null if it could not be built
+     * @return a structurer for the method, or null if it has to be written as flat jumps:
+     * it has no code, uses subroutines, has irreducible control flow or nests too deeply
+     */
+    static Structurer create(MethodNode method, ControlFlowGraph cfg, EvaluateMethodVisitor visitor,
+                             Evaluator evaluator, JavaSourceWriter writer) {
+        if (cfg == null || !cfg.isReducible()) {
+            return null;
+        }
+        Structurer structurer = new Structurer(method, cfg, visitor, evaluator, writer);
+        structurer.doTree(0, NONE);
+        return structurer.failed ? null : structurer;
+    }
+
+    /**
+     * Visits {@code method} like {@link MethodNode#accept(MethodVisitor)}, with the
+     * structured body in place of the instructions.
+     */
+    void accept() {
+        visitor.setStructured(true);
+        method.accept(new MethodVisitor(Opcodes.ASM4, visitor) {
+            @Override
+            public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+            }
+
+            @Override
+            public void visitInsn(int opcode) {
+            }
+
+            @Override
+            public void visitIntInsn(int opcode, int operand) {
+            }
+
+            @Override
+            public void visitVarInsn(int opcode, int var) {
+            }
+
+            @Override
+            public void visitTypeInsn(int opcode, String type) {
+            }
+
+            @Override
+            public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            }
+
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+            }
+
+            @Override
+            public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            }
+
+            @Override
+            public void visitJumpInsn(int opcode, Label label) {
+            }
+
+            @Override
+            public void visitLabel(Label label) {
+            }
+
+            @Override
+            public void visitLdcInsn(Object cst) {
+            }
+
+            @Override
+            public void visitIincInsn(int var, int increment) {
+            }
+
+            @Override
+            public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            }
+
+            @Override
+            public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            }
+
+            @Override
+            public void visitMultiANewArrayInsn(String desc, int dims) {
+            }
+
+            @Override
+            public void visitLineNumber(int line, Label start) {
+            }
+
+            @Override
+            public void visitMaxs(int maxStack, int maxLocals) {
+                write();
+                super.visitMaxs(maxStack, maxLocals);
+            }
+        });
+    }
+
+    // planning
+
+    private void add(int op, int argument) {
+        ops.add(op);
+        ops.add(argument);
+    }
+
+    /**
+     * Plans block {@code x} and the blocks it dominates.
+     *
+     * @param fallthrough the block reached by running off the end of the planned code,
+     *                    branches to it need no statement
+     */
+    private void doTree(int x, int fallthrough) {
+        if (++depth > MAX_DEPTH) {
+            failed = true;
+        }
+        while (x != NONE && !failed) {
+            boolean header = cfg.isLoopHeader(x);
+
+            // placed children in decreasing reverse postorder; for a loop header, those
+            // outside the loop go after it
+            int childStart = cfg.getChildStart(x);
+            int childEnd = cfg.getChildEnd(x);
+            int[] inner = new int[childEnd - childStart];
+            int[] exits = header ? new int[childEnd - childStart] : null;
+            int innerCount = 0;
+            int exitCount = 0;
+            for (int i = childEnd - 1; i >= childStart; --i) {
+                int child = cfg.getChild(i);
+                if (!isPlaced(child)) {
+                    continue;
+                }
+                if (header && !cfg.isInLoop(child, x)) {
+                    exits[exitCount++] = child;
+                } else {
+                    inner[innerCount++] = child;
+                }
+            }
+
+            for (int i = 0; i < exitCount; ++i) {
+                add(OPEN_BLOCK, exits[i]);
+            }
+            if (header) {
+                if (exitCount > 0) {
+                    // the innermost exit directly follows the loop
+                    alias[exits[exitCount - 1]] = x;
+                }
+                add(OPEN_LOOP, x);
+            }
+            for (int i = 0; i < innerCount; ++i) {
+                add(OPEN_BLOCK, inner[i]);
+            }
+
+            int loopEnd = header ? x : fallthrough;
+            planNode(x, innerCount > 0 ? inner[innerCount - 1] : loopEnd);
+
+            int tail = NONE;
+            for (int i = innerCount - 1; i >= 0; --i) {
+                add(CLOSE_BLOCK, inner[i]);
+                int next = i > 0 ? inner[i - 1] : loopEnd;
+                if (i == 0 && !header) {
+                    tail = inner[i];
+                } else {
+                    doTree(inner[i], next);
+                }
+            }
+            if (header) {
+                add(CLOSE_LOOP, x);
+                for (int i = exitCount - 1; i >= 0; --i) {
+                    add(CLOSE_BLOCK, exits[i]);
+                    if (i == 0) {
+                        tail = exits[i];
+                    } else {
+                        doTree(exits[i], exits[i - 1]);
+                    }
+                }
+            }
+            x = tail;
+        }
+        depth--;
+    }
+
+    /**
+     * A block is written after a labeled block, rather than where it is branched to,
+     * if several edges lead to it, if it handles exceptions, or if it leaves a loop
+     * whose header dominates it.
+     */
+    private boolean isPlaced(int block) {
+        if (cfg.getForwardPredecessors(block) > 1 || cfg.isHandler(block)) {
+            return true;
+        }
+        int idom = cfg.getIdom(block);
+        return idom != NONE && cfg.isLoopHeader(idom) && !cfg.isInLoop(block, idom);
+    }
+
+    private void planNode(int x, int fallthrough) {
+        add(BLOCK, x);
+        AbstractInsnNode terminator = cfg.getTerminator(x);
+        int next = x + 1 < cfg.getBlockCount() ? x + 1 : NONE;
+        if (terminator instanceof JumpInsnNode) {
+            int target = blockOf(((JumpInsnNode) terminator).label);
+            if (terminator.getOpcode() == Opcodes.GOTO) {
+                doBranch(x, target, fallthrough);
+            } else {
+                planIf(x, target, next, fallthrough);
+            }
+        } else if (terminator instanceof TableSwitchInsnNode) {
+            TableSwitchInsnNode node = (TableSwitchInsnNode) terminator;
+            int[] keys = new int[node.labels.size()];
+            for (int i = 0; i < keys.length; ++i) {
+                keys[i] = node.min + i;
+            }
+            planSwitch(x, keys, node.labels.toArray(), node.dflt, fallthrough);
+        } else if (terminator instanceof LookupSwitchInsnNode) {
+            LookupSwitchInsnNode node = (LookupSwitchInsnNode) terminator;
+            int[] keys = new int[node.keys.size()];
+            for (int i = 0; i < keys.length; ++i) {
+                keys[i] = node.keys.get(i);
+            }
+            planSwitch(x, keys, node.labels.toArray(), node.dflt, fallthrough);
+        } else if (terminator == null || !isExit(terminator.getOpcode())) {
+            doBranch(x, next, fallthrough);
+        }
+    }
+
+    /**
+     * A jump that is just a {@code break} or {@code continue} is written as a guard
+     * before the fall-through branch. Otherwise the fall-through branch goes first, as
+     * the compiler lays out the {@code then} branch, and if it does not complete
+     * normally the other one follows the {@code if} instead of going into an {@code else}.
+     */
+    private void planIf(int x, int target, int next, int fallthrough) {
+        if (target != fallthrough && (isBackEdge(x, target) || isPlaced(target))) {
+            add(IF, x);
+            doBranch(x, target, fallthrough);
+            add(END, 0);
+            doBranch(x, next, fallthrough);
+            return;
+        }
+
+        int condition = ops.size();
+        add(IF_NOT, x);
+        int thenStart = ops.size();
+        doBranch(x, next, fallthrough);
+        if (isEmpty(thenStart)) {
+            ops.set(condition, IF);
+            int elseStart = ops.size();
+            doBranch(x, target, fallthrough);
+            if (isEmpty(elseStart)) {
+                ops.set(condition, DISCARD);
+            } else {
+                add(END, 0);
+            }
+        } else if (!completesNormally()) {
+            add(END, 0);
+            doBranch(x, target, fallthrough);
+        } else {
+            int elseStart = ops.size();
+            add(ELSE, 0);
+            doBranch(x, target, fallthrough);
+            if (isEmpty(elseStart + 2)) {
+                ops.set(elseStart, END);
+            } else {
+                add(END, 0);
+            }
+        }
+    }
+
+    /**
+     * @return whether the code planned since {@code from} writes no statements: it
+     * only goes through blocks that do nothing but jump on
+     */
+    private boolean isEmpty(int from) {
+        for (int i = from; i < ops.size(); i += 2) {
+            if (ops.get(i) != BLOCK || !isForwarder(ops.get(i + 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isForwarder(int block) {
+        AbstractInsnNode[] insns = cfg.getInstructions();
+        for (int i = cfg.getBlockStart(block); i < cfg.getBlockEnd(block); ++i) {
+            int opcode = insns[i].getOpcode();
+            if (opcode >= 0 && opcode != Opcodes.GOTO) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the code planned last is known to end with a jump, return or throw
+     */
+    private boolean completesNormally() {
+        int op = ops.get(ops.size() - 2);
+        if (op == BREAK || op == CONTINUE || op == BREAK_SWITCH) {
+            return false;
+        }
+        if (op == BLOCK) {
+            AbstractInsnNode terminator = cfg.getTerminator(ops.get(ops.size() - 1));
+            return terminator == null || !isExit(terminator.getOpcode());
+        }
+        return true;
+    }
+
+    /**
+     * Cases branching to the same block are grouped, in code order of their targets.
+     * Every case ends with an explicit jump, so none falls through into the next.
+     */
+    private void planSwitch(int x, int[] keys, Object[] labels, LabelNode dflt, int fallthrough) {
+        add(SWITCH, x);
+        long[] cases = new long[keys.length];
+        for (int i = 0; i < keys.length; ++i) {
+            cases[i] = ((long) blockOf((LabelNode) labels[i]) << 32) | i;
+        }
+        Arrays.sort(cases);
+
+        int defaultTarget = blockOf(dflt);
+        boolean defaultWritten = false;
+        for (int i = 0; i < cases.length; ) {
+            int target = (int) (cases[i] >>> 32);
+            for (; i < cases.length && (int) (cases[i] >>> 32) == target; ++i) {
+                add(CASE, keys[(int) cases[i]]);
+            }
+            if (target == defaultTarget) {
+                add(DEFAULT, 0);
+                defaultWritten = true;
+            }
+            planCase(x, target, fallthrough);
+        }
+        if (!defaultWritten) {
+            add(DEFAULT, 0);
+            planCase(x, defaultTarget, fallthrough);
+        }
+        add(END, 0);
+    }
+
+    private void planCase(int x, int target, int fallthrough) {
+        if (target == fallthrough) {
+            add(BREAK_SWITCH, 0);
+        } else {
+            doBranch(x, target, NONE);
+        }
+    }
+
+    private void doBranch(int source, int target, int fallthrough) {
+        if (target == NONE) {
+            return;
+        }
+        if (isBackEdge(source, target)) {
+            if (target != fallthrough) {
+                add(CONTINUE, target);
+            }
+        } else if (isPlaced(target)) {
+            if (target != fallthrough) {
+                add(BREAK, target);
+            }
+        } else {
+            doTree(target, fallthrough);
+        }
+    }
+
+    private boolean isBackEdge(int source, int target) {
+        return cfg.isLoopHeader(target) && cfg.getReversePostorder(target) <= cfg.getReversePostorder(source);
+    }
+
+    private int blockOf(LabelNode label) {
+        return cfg.getBlockOf(method.instructions.indexOf(label));
+    }
+
+    private static boolean isExit(int opcode) {
+        return (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW;
+    }
+
+    // writing
+
+    private void write() {
+        for (int i = 0; i < ops.size(); i += 2) {
+            int op = ops.get(i);
+            int argument = ops.get(i + 1);
+            if (op == BREAK) {
+                if (alias[argument] != NONE) {
+                    loopUsed[alias[argument]] = true;
+                } else {
+                    blockUsed[argument] = true;
+                }
+            } else if (op == CONTINUE) {
+                loopUsed[argument] = true;
+            } else if (op == OPEN_BLOCK && cfg.isHandler(argument)) {
+                // shows the extent of the code protected by the handler
+                blockUsed[argument] = true;
+            }
+        }
+
+        for (int i = 0; i < ops.size(); i += 2) {
+            int argument = ops.get(i + 1);
+            switch (ops.get(i)) {
+                case BLOCK: {
+                    writeBlock(argument);
+                    break;
+                }
+                case IF:
+                case IF_NOT:
+                case DISCARD: {
+                    JumpInsnNode jump = (JumpInsnNode) cfg.getTerminator(argument);
+                    int opcode = ops.get(i) == IF_NOT ? NEGATIONS[jump.getOpcode()] : jump.getOpcode();
+                    int operands = opcode >= Opcodes.IF_ICMPEQ && opcode <= Opcodes.IF_ACMPNE ? 2 : 1;
+                    // a condition with nothing to branch to is still evaluated for its effects
+                    boolean empty = ops.get(i) == DISCARD;
+                    boolean effects = empty && evaluator.hasEffects(operands);
+                    String condition = evaluator.condition(operands, OPERATIONS[opcode]);
+                    passStack(argument);
+                    if (!empty || effects) {
+                        writer.startBlock("if (" + (condition != null ? condition : "__unknown") + ")");
+                    }
+                    if (effects) {
+                        writer.endBlock();
+                    }
+                    break;
+                }
+                case ELSE: {
+                    writer.writeLine("} else {");
+                    break;
+                }
+                case END:
+                case CLOSE_LOOP: {
+                    writer.endBlock();
+                    break;
+                }
+                case OPEN_BLOCK: {
+                    if (blockUsed[argument]) {
+                        writer.startBlock(blockLabel(argument) + ":");
+                    }
+                    break;
+                }
+                case CLOSE_BLOCK: {
+                    if (blockUsed[argument]) {
+                        writer.endBlock();
+                    }
+                    break;
+                }
+                case OPEN_LOOP: {
+                    writer.startBlock(loopUsed[argument] ? loopLabel(argument) + ": while (true)" : "while (true)");
+                    break;
+                }
+                case BREAK: {
+                    int loop = alias[argument];
+                    writer.writeStatement("break " + (loop != NONE ? loopLabel(loop) : blockLabel(argument)));
+                    break;
+                }
+                case CONTINUE: {
+                    writer.writeStatement("continue " + loopLabel(argument));
+                    break;
+                }
+                case SWITCH: {
+                    String value = evaluator.popValue();
+                    passStack(argument);
+                    writer.startBlock("switch (" + (value != null ? value : "__unknown") + ")");
+                    break;
+                }
+                case CASE: {
+                    writer.writeLine("case " + argument + ":");
+                    break;
+                }
+                case DEFAULT: {
+                    writer.writeLine("default:");
+                    break;
+                }
+                case BREAK_SWITCH: {
+                    writer.writeStatement("break");
+                    break;
+                }
+                default: {
+                    throw new IllegalStateException("Unknown operation " + ops.get(i));
+                }
+            }
+        }
+        evaluator.reset();
+    }
+
+    private void writeBlock(int block) {
+        if (cfg.isHandler(block)) {
+            String type = cfg.getHandlerType(block);
+            writer.writeComment("catch " + (type != null ? type.replace('/', '.') : "finally"));
+            evaluator.restore(new Type[]{Type.getObjectType(type != null ? type : "java/lang/Throwable")});
+        } else {
+            evaluator.restore(entryTypes[block]);
+        }
+        visitor.setPosition(cfg.getBlockPosition(block));
+
+        AbstractInsnNode[] insns = cfg.getInstructions();
+        AbstractInsnNode terminator = cfg.getTerminator(block);
+        boolean branches = terminator instanceof JumpInsnNode || terminator instanceof TableSwitchInsnNode
+                || terminator instanceof LookupSwitchInsnNode;
+        for (int i = cfg.getBlockStart(block); i < cfg.getBlockEnd(block); ++i) {
+            if (branches && insns[i] == terminator) {
+                continue;
+            }
+            insns[i].accept(visitor);
+        }
+        if (!branches || terminator.getOpcode() == Opcodes.GOTO) {
+            passStack(block);
+        }
+    }
+
+    /**
+     * Hands the values on the stack to the successors of {@code block} that have not
+     * been given theirs yet.
+     */
+    private void passStack(int block) {
+        Type[] types = evaluator.spill();
+        for (int i = cfg.getSuccessorStart(block); i < cfg.getSuccessorEnd(block); ++i) {
+            int successor = cfg.getSuccessor(i);
+            if (!entryKnown[successor]) {
+                entryKnown[successor] = true;
+                entryTypes[successor] = types;
+            }
+        }
+    }
+
+    private static String blockLabel(int block) {
+        return "__block_" + block;
+    }
+
+    private static String loopLabel(int block) {
+        return "__loop_" + block;
+    }
+}
@@ -0,0 +1,346 @@
+package com.mikea.decompiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link java.text.MessageFormat}-style pattern such as {@code "{0}[{1}]"}, parsed once
+ * into literal parts and argument slots and rendered straight into a {@link StringBuilder}.
+ * Only plain {@code {n}} elements are supported; quoting follows MessageFormat
+ * ({@code '{'} is a literal brace, {@code ''} a single quote).
+ */
+final class Template {
+    /**
+     * Precedence of names, literals, calls, field and array accesses.
+     */
+    static final int PRIMARY = 14;
+    static final int UNARY = 13;
+    static final int RELATIONAL = 9;
+    static final int ASSIGNMENT = 1;
+    private static final int DELIMITED = -1;
+
+    private final String pattern;
+    private final String[] literals;
+    private final int[] slots;
+    private final int flags;
+    /**
+     * Per slot: the precedence an argument needs so that it can be used without
+     * parentheses, or {@link #DELIMITED} if the pattern already delimits it.
+     */
+    private final int[] contexts;
+    /**
+     * Per slot: whether the argument is the right operand of a binary operator and so
+     * needs parentheses even at the operator's own precedence.
+     */
+    private final boolean[] rightOperands;
+    private final int precedence;
+
+    private Template(String pattern, String[] literals, int[] slots, int flags) {
+        this.pattern = pattern;
+        this.literals = literals;
+        this.slots = slots;
+        this.flags = flags;
+        this.contexts = new int[slots.length];
+        this.rightOperands = new boolean[slots.length];
+        for (int i = 0; i < slots.length; ++i) {
+            int before = precedenceBefore(literals[i], i == 0);
+            int after = precedenceAfter(literals[i + 1], i + 1 == slots.length);
+            contexts[i] = Math.max(before, after);
+            rightOperands[i] = before != DELIMITED && before != UNARY && before != PRIMARY;
+        }
+        this.precedence = lowestPrecedence(literals);
+    }
+
+    public static Template compile(String pattern) {
+        return compile(pattern, 0);
+    }
+
+    /**
+     * @param flags what the rendered expression depends on besides its arguments, such as
+     *              {@link Evaluator#READS_HEAP}, or what the rendered statement changes, such
+     *              as {@link Evaluator#WRITES_HEAP}
+     */
+    public static Template compile(String pattern, int flags) {
+        List<String> literals = new ArrayList<String>();
+        List<Integer> slots = new ArrayList<Integer>();
+
+        StringBuilder literal = new StringBuilder();
+        boolean inQuote = false;
+        for (int i = 0; i < pattern.length(); ++i) {
+            char ch = pattern.charAt(i);
+            if (ch == '\'') {
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+                    literal.append('\'');
+                    ++i;
+                } else {
+                    inQuote = !inQuote;
+                }
+            } else if (inQuote || ch != '{') {
+                literal.append(ch);
+            } else {
+                int end = pattern.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unmatched braces in the pattern: " + pattern);
+                }
+                int slot;
+                try {
+                    slot = Integer.parseInt(pattern.substring(i + 1, end));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Unsupported format element in the pattern: " + pattern);
+                }
+                if (slot < 0) {
+                    throw new IllegalArgumentException("Negative argument number in the pattern: " + pattern);
+                }
+                literals.add(literal.toString());
+                slots.add(slot);
+                literal.setLength(0);
+                i = end;
+            }
+        }
+        literals.add(literal.toString());
+
+        int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; ++i) {
+            slotArray[i] = slots.get(i);
+        }
+        return new Template(pattern, literals.toArray(new String[literals.size()]), slotArray, flags);
+    }
+
+    /**
+     * @param first whether nothing precedes {@code literal} in the pattern
+     * @return the precedence imposed on the argument after {@code literal}
+     */
+    private static int precedenceBefore(String literal, boolean first) {
+        int end = literal.length();
+        while (end > 0 && literal.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (end == 0) {
+            return first ? DELIMITED : PRIMARY;
+        }
+        char ch = literal.charAt(end - 1);
+        if (ch == '(' || ch == '[' || ch == ',') {
+            return DELIMITED;
+        }
+        if (ch == ')') {
+            // a cast
+            return UNARY;
+        }
+        if (isOperator(ch)) {
+            int start = end;
+            while (start > 0 && isOperator(literal.charAt(start - 1))) {
+                start--;
+            }
+            return isUnary(literal, start, first) ? UNARY : binaryPrecedence(literal.substring(start, end));
+        }
+        int start = end;
+        while (start > 0 && Character.isJavaIdentifierPart(literal.charAt(start - 1))) {
+            start--;
+        }
+        String word = literal.substring(start, end);
+        if (word.equals("return") || word.equals("throw") || word.equals("case")) {
+            return DELIMITED;
+        }
+        return word.equals("instanceof") ? RELATIONAL : PRIMARY;
+    }
+
+    /**
+     * @param last whether nothing follows {@code literal} in the pattern
+     * @return the precedence imposed on the argument before {@code literal}
+     */
+    private static int precedenceAfter(String literal, boolean last) {
+        int start = 0;
+        while (start < literal.length() && literal.charAt(start) == ' ') {
+            start++;
+        }
+        if (start == literal.length()) {
+            return last ? DELIMITED : PRIMARY;
+        }
+        char ch = literal.charAt(start);
+        if (ch == ')' || ch == ']' || ch == ',' || ch == ';') {
+            return DELIMITED;
+        }
+        if (isOperator(ch)) {
+            int end = start;
+            while (end < literal.length() && isOperator(literal.charAt(end))) {
+                end++;
+            }
+            int precedence = binaryPrecedence(literal.substring(start, end));
+            // the left side of an assignment is a variable
+            return precedence == ASSIGNMENT ? PRIMARY : precedence;
+        }
+        return literal.startsWith("instanceof", start) ? RELATIONAL : PRIMARY;
+    }
+
+    /**
+     * @return the precedence of the loosest operator outside of brackets
+     */
+    private static int lowestPrecedence(String[] literals) {
+        int lowest = PRIMARY;
+        int depth = 0;
+        for (int l = 0; l < literals.length; ++l) {
+            String literal = literals[l];
+            for (int i = 0; i < literal.length(); ++i) {
+                char ch = literal.charAt(i);
+                if (ch == '(' || ch == '[') {
+                    depth++;
+                } else if (ch == ')' || ch == ']') {
+                    depth--;
+                    if (depth == 0 && ch == ')' && l + 1 < literals.length && literal.substring(i + 1).trim().isEmpty()) {
+                        // a cast, the parentheses are followed by its operand
+                        lowest = Math.min(lowest, UNARY);
+                    }
+                } else if (depth == 0 && isOperator(ch)) {
+                    int end = i;
+                    while (end < literal.length() && isOperator(literal.charAt(end))) {
+                        end++;
+                    }
+                    int precedence = isUnary(literal, i, l == 0) ? UNARY : binaryPrecedence(literal.substring(i, end));
+                    lowest = Math.min(lowest, precedence);
+                    i = end - 1;
+                } else if (depth == 0 && Character.isJavaIdentifierStart(ch)
+                        && (i == 0 || !Character.isJavaIdentifierPart(literal.charAt(i - 1)))) {
+                    if (literal.startsWith("instanceof", i)) {
+                        lowest = Math.min(lowest, RELATIONAL);
+                    } else if (literal.startsWith("new ", i)) {
+                        lowest = Math.min(lowest, UNARY);
+                    }
+                }
+            }
+        }
+        return lowest;
+    }
+
+    /**
+     * @return whether the operator at {@code index} has no left operand
+     */
+    private static boolean isUnary(String literal, int index, boolean first) {
+        int i = index;
+        while (i > 0 && literal.charAt(i - 1) == ' ') {
+            i--;
+        }
+        if (i == 0) {
+            return first;
+        }
+        char ch = literal.charAt(i - 1);
+        return ch == '(' || ch == '[' || ch == ',' || isOperator(ch);
+    }
+
+    private static boolean isOperator(char ch) {
+        return "+-*/%&|^<>=!?:~".indexOf(ch) >= 0;
+    }
+
+    private static int binaryPrecedence(String operator) {
+        if (operator.equals("*") || operator.equals("/") || operator.equals("%")) {
+            return 12;
+        }
+        if (operator.equals("+") || operator.equals("-")) {
+            return 11;
+        }
+        if (operator.equals("<<") || operator.equals(">>") || operator.equals(">>>")) {
+            return 10;
+        }
+        if (operator.equals("<") || operator.equals(">") || operator.equals("<=") || operator.equals(">=")) {
+            return RELATIONAL;
+        }
+        if (operator.equals("==") || operator.equals("!=")) {
+            return 8;
+        }
+        if (operator.equals("&")) {
+            return 7;
+        }
+        if (operator.equals("^")) {
+            return 6;
+        }
+        if (operator.equals("|")) {
+            return 5;
+        }
+        if (operator.equals("&&")) {
+            return 4;
+        }
+        if (operator.equals("||")) {
+            return 3;
+        }
+        if (operator.equals("?") || operator.equals(":")) {
+            return 2;
+        }
+        if (operator.endsWith("=")) {
+            return ASSIGNMENT;
+        }
+        // not an operator we know of, keep arguments apart from it
+        return PRIMARY;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return the precedence of the rendered expression, from {@link #ASSIGNMENT} to {@link #PRIMARY}
+     */
+    public int getPrecedence() {
+        return precedence;
+    }
+
+    /**
+     * @return whether each of the first {@code argsCount} arguments is rendered exactly
+     * once and in order, so that rendering evaluates them as the bytecode did
+     */
+    public boolean isOrdered(int argsCount) {
+        int next = 0;
+        for (int slot : slots) {
+            if (slot < argsCount) {
+                if (slot != next) {
+                    return false;
+                }
+                next++;
+            }
+        }
+        return next == argsCount;
+    }
+
+    /**
+     * Appends the pattern to {@code out} with slot {@code n} replaced by {@code args[n]}.
+     * Like MessageFormat, slots without an argument are rendered as {@code {n}}.
+     */
+    public void render(StringBuilder out, String[] args, int argsCount) {
+        render(out, args, argsCount, null);
+    }
+
+    /**
+     * Like {@link #render(StringBuilder, String[], int)}, parenthesizing the arguments
+     * whose {@code precedences} are too low for where the pattern puts them.
+     */
+    public void render(StringBuilder out, String[] args, int argsCount, int[] precedences) {
+        for (int i = 0; i < slots.length; ++i) {
+            out.append(literals[i]);
+            int slot = slots[i];
+            if (slot < argsCount) {
+                if (precedences != null && needsParentheses(i, args[slot], precedences[slot])) {
+                    out.append('(').append(args[slot]).append(')');
+                } else {
+                    out.append(args[slot]);
+                }
+            } else {
+                out.append('{').append(slot).append('}');
+            }
+        }
+        out.append(literals[slots.length]);
+    }
+
+    private boolean needsParentheses(int index, String arg, int argPrecedence) {
+        int context = contexts[index];
+        if (argPrecedence < context || (argPrecedence == context && rightOperands[index])) {
+            return true;
+        }
+        // - -x, not --x
+        String literal = literals[index];
+        return !literal.isEmpty() && !arg.isEmpty() && isOperator(literal.charAt(literal.length() - 1))
+                && literal.charAt(literal.length() - 1) == arg.charAt(0);
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
@@ -0,0 +1,128 @@
+package com.mikea.decompiler;
+
+import org.objectweb.asm.Type;
+
+import java.util.EmptyStackException;
+
+/**
+ * Unsynchronized operand stack. Values are kept in parallel arrays so that
+ * pushing and popping does not allocate; the arrays only grow and are reused
+ * across methods via {@link #clear()}. Each value carries the {@link Evaluator}
+ * flags of its expression.
+ */
+class ValueStack {
+    private String[] exprs = new String[16];
+    private Type[] types = new Type[16];
+    private int[] flags = new int[16];
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; ++i) {
+            exprs[i] = null;
+            types[i] = null;
+        }
+        size = 0;
+    }
+
+    public void push(String expr, Type type) {
+        push(expr, type, 0);
+    }
+
+    public void push(String expr, Type type, int exprFlags) {
+        if (size == exprs.length) {
+            grow();
+        }
+        exprs[size] = expr;
+        types[size] = type;
+        flags[size] = exprFlags;
+        size++;
+    }
+
+    /**
+     * Removes the top value and returns its expression.
+     */
+    public String pop() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        size--;
+        String expr = exprs[size];
+        exprs[size] = null;
+        types[size] = null;
+        return expr;
+    }
+
+    public String peekExpr() {
+        return exprs[top()];
+    }
+
+    public Type peekType() {
+        return types[top()];
+    }
+
+    public int peekFlags() {
+        return flags[top()];
+    }
+
+    /**
+     * @param depth 0 for the top of the stack, 1 for the value below it, etc.
+     */
+    public String exprAt(int depth) {
+        return exprs[size - 1 - depth];
+    }
+
+    public Type typeAt(int depth) {
+        return types[size - 1 - depth];
+    }
+
+    public int flagsAt(int depth) {
+        return flags[size - 1 - depth];
+    }
+
+    /**
+     * Replaces the expression of a value, keeping its type.
+     */
+    public void set(int depth, String expr, int exprFlags) {
+        exprs[size - 1 - depth] = expr;
+        flags[size - 1 - depth] = exprFlags;
+    }
+
+    private int top() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return size - 1;
+    }
+
+    private void grow() {
+        String[] newExprs = new String[exprs.length * 2];
+        Type[] newTypes = new Type[types.length * 2];
+        int[] newFlags = new int[flags.length * 2];
+        System.arraycopy(exprs, 0, newExprs, 0, size);
+        System.arraycopy(types, 0, newTypes, 0, size);
+        System.arraycopy(flags, 0, newFlags, 0, size);
+        exprs = newExprs;
+        types = newTypes;
+        flags = newFlags;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size; ++i) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(exprs[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,50 @@
+package com.mikea.decompiler;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams all sources into one zip (sources jar) as {@code package/path/ClassName.java}
+ * entries, so a run produces a single sequential file instead of one file per class.
+ * Writes are serialized; pair it with {@link OrderedSink} when feeding it from several
+ * threads to keep the entry order deterministic.
+ */
+public class ZipSink implements SourceSink {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final ZipOutputStream out;
+    private final SourceEncoder encoder;
+
+    public ZipSink(File file) throws IOException {
+        this(file, Charset.defaultCharset());
+    }
+
+    public ZipSink(File file, Charset charset) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Can't create directory " + parent);
+        }
+        out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        encoder = new SourceEncoder(charset, false);
+    }
+
+    @Override
+    public synchronized void write(String className, CharSequence source) throws IOException {
+        ByteBuffer bytes = encoder.encode(source);
+        out.putNextEntry(new ZipEntry(className.replace('.', '/') + ".java"));
+        out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        out.closeEntry();
+        Metrics.bytesWritten(bytes.remaining());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
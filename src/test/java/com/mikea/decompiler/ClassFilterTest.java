@@ -0,0 +1,41 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+import org.objectweb.asm.ClassWriter;
+
+public class ClassFilterTest extends TestCase {
+    public void testGlobs() {
+        ClassFilter filter = new ClassFilter().includeGlob("com.foo.*").excludeGlob("com.foo.*Test");
+        assertTrue(filter.acceptsName("com.foo.Bar"));
+        assertTrue(filter.acceptsName("com.foo.Bar$Inner"));
+        assertFalse(filter.acceptsName("com.foo.BarTest"));
+        assertFalse(filter.acceptsName("com.foo.sub.Bar"));
+        assertFalse(filter.acceptsName("com.foobar.Bar"));
+
+        ClassFilter deep = new ClassFilter().includeGlob("com.foo.**");
+        assertTrue(deep.acceptsName("com.foo.sub.Bar"));
+        assertFalse(deep.acceptsName("org.foo.Bar"));
+    }
+
+    public void testRegex() {
+        ClassFilter filter = new ClassFilter().excludeRegex(".*\\$\\d+");
+        assertTrue(filter.acceptsName("a.B"));
+        assertFalse(filter.acceptsName("a.B$1"));
+        assertFalse(filter.needsBytes());
+    }
+
+    public void testReferences() {
+        // class C { void m(java.util.List l) {} }
+        ClassWriter cw = TestClasses.classWriter("p/C");
+        cw.visitField(0, "count", "J", null, 42L).visitEnd();
+        TestClasses.emptyMethod(cw, 0, "m", "(Ljava/util/List;)V");
+        byte[] bytes = TestClasses.toByteArray(cw);
+
+        assertTrue(new ClassFilter().referencing("java.util.List").acceptsBytes(bytes, bytes.length));
+        assertTrue(new ClassFilter().referencing("java.lang.Object").acceptsBytes(bytes, bytes.length));
+        ClassFilter filter = new ClassFilter().referencing("java.util.Map").referencing("java.util.Li");
+        assertTrue(filter.needsBytes());
+        assertFalse(filter.acceptsBytes(bytes, bytes.length));
+        assertEquals(1, filter.getSkippedByReference());
+    }
+}
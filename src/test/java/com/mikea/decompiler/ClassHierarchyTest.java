@@ -0,0 +1,149 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class ClassHierarchyTest extends TestCase {
+    private File dir;
+    private ClassHierarchy hierarchy;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("hierarchy", "");
+        dir.delete();
+        new File(dir, "p").mkdirs();
+        // interface I extends Runnable; class B { String f; void m() {} }; class A extends B implements I
+        write("p/I", Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT, "java/lang/Object", "java/lang/Runnable");
+        ClassWriter b = classWriter("p/B", Opcodes.ACC_PUBLIC, "java/lang/Object");
+        b.visitField(0, "f", "Ljava/lang/String;", null, null).visitEnd();
+        MethodVisitor m = b.visitMethod(0, "m", "()V", null, null);
+        m.visitCode();
+        m.visitInsn(Opcodes.RETURN);
+        m.visitMaxs(0, 1);
+        m.visitEnd();
+        write("p/B", b);
+        write("p/A", Opcodes.ACC_PUBLIC, "p/B", "p/I");
+
+        ClassPath classPath = new ClassPath();
+        classPath.add(dir);
+        hierarchy = new ClassHierarchy(classPath);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (String name : new String[]{"p/A.class", "p/B.class", "p/I.class", "p"}) {
+            new File(dir, name).delete();
+        }
+        dir.delete();
+    }
+
+    public void testSupertypes() {
+        assertEquals("p/B", hierarchy.getSuperclass("p/A"));
+        assertEquals(Arrays.asList("p/I"), hierarchy.getInterfaces("p/A"));
+        assertTrue(hierarchy.isInterface("p/I"));
+        assertFalse(hierarchy.isInterface("p/A"));
+
+        assertTrue(hierarchy.isSubtype("p/A", "p/B"));
+        assertTrue(hierarchy.isSubtype("p/A", "p/I"));
+        // through an interface of the platform
+        assertTrue(hierarchy.isSubtype("p/A", "java/lang/Runnable"));
+        assertFalse(hierarchy.isSubtype("p/B", "p/A"));
+        assertFalse(hierarchy.isSubtype("p/A", "p/Missing"));
+        assertFalse(hierarchy.contains("p/Missing"));
+    }
+
+    public void testPlatform() {
+        assertTrue(hierarchy.contains("java/util/ArrayList"));
+        assertTrue(hierarchy.isSubtype("java/util/ArrayList", "java/util/Collection"));
+        assertFalse(hierarchy.isSubtype("java/util/List", "java/util/ArrayList"));
+        // inherited from a superclass rather than from the interface declaring it
+        assertEquals("java/util/AbstractCollection", hierarchy.findMethodOwner("java/util/ArrayList", "containsAll",
+                "(Ljava/util/Collection;)Z"));
+    }
+
+    public void testAssignable() {
+        Type a = Type.getObjectType("p/A");
+        Type b = Type.getObjectType("p/B");
+        assertTrue(hierarchy.isAssignable(a, b));
+        assertFalse(hierarchy.isAssignable(b, a));
+        assertTrue(hierarchy.isAssignable(Type.getType("[Lp/A;"), Type.getType("[Lp/B;")));
+        assertTrue(hierarchy.isAssignable(Type.getType("[I"), Type.getObjectType("java/lang/Cloneable")));
+        assertFalse(hierarchy.isAssignable(Type.getType("[I"), Type.getType("[J")));
+        assertFalse(hierarchy.isAssignable(Type.getObjectType("UnknownType"), b));
+    }
+
+    public void testMembers() {
+        assertEquals("Ljava/lang/String;", hierarchy.getFieldDesc("p/A", "f"));
+        assertNull(hierarchy.getFieldDesc("p/A", "g"));
+        assertEquals("p/B", hierarchy.findMethodOwner("p/A", "m", "()V"));
+        assertEquals("java/lang/Object", hierarchy.findMethodOwner("p/A", "hashCode", "()I"));
+        assertNull(hierarchy.findMethodOwner("p/A", "m", "(I)V"));
+    }
+
+    public void testRedundantCast() {
+        // static B up(A a) { return (B) a; }  static A down(B b) { return (A) b; }
+        ClassWriter cw = classWriter("p/C", Opcodes.ACC_PUBLIC, "java/lang/Object");
+        cast(cw, "up", "(Lp/A;)Lp/B;", "p/B");
+        cast(cw, "down", "(Lp/B;)Lp/A;", "p/A");
+        cw.visitEnd();
+        JavaSourceWriter writer = new JavaSourceWriter("p.C", new SourceSink() {
+            @Override
+            public void write(String className, CharSequence source) {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        new DecompileVisitor(writer, null, hierarchy).decompile(new ClassReader(cw.toByteArray()));
+        String source = writer.getSource().toString();
+        assertFalse(source, source.contains("(p.B)"));
+        assertTrue(source, source.contains("(p.A) "));
+    }
+
+    private static void cast(ClassWriter cw, String name, String desc, String type) {
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, name, desc, null, null);
+        Label start = new Label();
+        Label end = new Label();
+        mv.visitCode();
+        mv.visitLabel(start);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, type);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitLabel(end);
+        // the operand type of the cast comes from the local variable table
+        mv.visitLocalVariable("value", Type.getArgumentTypes(desc)[0].getDescriptor(), null, start, end, 0);
+        mv.visitMaxs(1, 1);
+        mv.visitEnd();
+    }
+
+    private static ClassWriter classWriter(String name, int access, String superName, String... interfaces) {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_6, access, name, null, superName, interfaces);
+        return cw;
+    }
+
+    private void write(String name, int access, String superName, String... interfaces) throws IOException {
+        write(name, classWriter(name, access, superName, interfaces));
+    }
+
+    private void write(String name, ClassWriter cw) throws IOException {
+        cw.visitEnd();
+        FileOutputStream out = new FileOutputStream(new File(dir, name + ".class"));
+        try {
+            out.write(cw.toByteArray());
+        } finally {
+            out.close();
+        }
+    }
+}
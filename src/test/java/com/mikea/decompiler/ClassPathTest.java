@@ -0,0 +1,178 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ClassPathTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("classpath", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(dir);
+    }
+
+    public void testDirectory() throws IOException {
+        File classes = new File(dir, "classes");
+        new File(classes, "a/b").mkdirs();
+        write(new File(classes, "a/b/C.class"), content(10));
+        write(new File(classes, "a/A.class"), content(20));
+        write(new File(classes, "a/notes.txt"), content(5));
+
+        ClassPath classPath = new ClassPath();
+        classPath.add(classes);
+        try {
+            assertEquals(Arrays.asList("a/A.class", "a/b/C.class"), names(classPath));
+            assertEquals(10, classPath.entries().get(1).getSize());
+            assertContent(content(10), classPath.entries().get(1));
+        } finally {
+            classPath.close();
+        }
+    }
+
+    public void testNestedJars() throws IOException {
+        byte[] stored = jar(false, "lib/Stored.class", content(30));
+        byte[] deflated = jar(true, "lib/Deflated.class", content(40), "app/Main.class", content(1));
+        File fat = new File(dir, "fat.jar");
+        write(fat, jar(false, "BOOT-INF/classes/app/Main.class", content(50),
+                "BOOT-INF/lib/stored.jar", stored, "BOOT-INF/lib/deflated.jar", deflated));
+        // a deflated nested jar
+        File outer = new File(dir, "outer.jar");
+        write(outer, jar(true, "inner.jar", deflated));
+
+        ClassPath classPath = new ClassPath();
+        classPath.add(fat);
+        classPath.add(outer);
+        try {
+            assertEquals(Arrays.asList("app/Main.class", "lib/Stored.class", "lib/Deflated.class"), names(classPath));
+            assertEquals(5, classPath.getJarCount());
+            // app/Main.class in deflated.jar and all of outer.jar repeat earlier classes
+            assertEquals(3, classPath.getDuplicateCount());
+            assertContent(content(50), classPath.entries().get(0));
+            assertContent(content(30), classPath.entries().get(1));
+            assertContent(content(40), classPath.entries().get(2));
+        } finally {
+            classPath.close();
+        }
+    }
+
+    public void testUnreadableJars() throws IOException {
+        byte[] good = jar(false, "a/A.class", content(10));
+        File corrupt = new File(dir, "corrupt.jar");
+        write(corrupt, content(100));
+        File truncated = new File(dir, "truncated.jar");
+        write(truncated, Arrays.copyOf(good, good.length - 10));
+        File fat = new File(dir, "fat.jar");
+        write(fat, jar(false, "lib/bad.jar", content(60), "lib/good.jar", good));
+
+        ClassPath classPath = new ClassPath();
+        try {
+            classPath.add(corrupt);
+            fail();
+        } catch (IOException e) {
+            // expected without a report
+        }
+
+        FailureReport failures = new FailureReport();
+        classPath.setFailureReport(failures);
+        classPath.add(corrupt);
+        classPath.add(truncated);
+        classPath.add(fat);
+        classPath.add(new File(dir, "missing.jar"));
+        try {
+            assertEquals(Arrays.asList("a/A.class"), names(classPath));
+            assertContent(content(10), classPath.entries().get(0));
+            List<FailureReport.Failure> list = failures.getFailures();
+            assertEquals(4, list.size());
+            assertEquals(corrupt.getPath(), list.get(0).getClassName());
+            assertEquals(fat.getPath() + "!/lib/bad.jar", list.get(1).getClassName());
+        } finally {
+            classPath.close();
+        }
+    }
+
+    private static List<String> names(ClassPath classPath) {
+        List<String> names = new ArrayList<String>();
+        for (ClassEntry entry : classPath.entries()) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+
+    private static void assertContent(byte[] expected, ClassEntry entry) throws IOException {
+        ClassBuffer buffer = ClassBuffer.acquire();
+        try {
+            entry.read(buffer);
+            assertTrue(Arrays.equals(expected, Arrays.copyOf(buffer.bytes(), buffer.length())));
+        } finally {
+            ClassBuffer.release(buffer);
+        }
+    }
+
+    /**
+     * @param namesAndContents entry names, each followed by its content
+     */
+    private static byte[] jar(boolean deflate, Object... namesAndContents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            byte[] content = (byte[]) namesAndContents[i + 1];
+            ZipEntry entry = new ZipEntry((String) namesAndContents[i]);
+            if (!deflate) {
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(content.length);
+                CRC32 crc = new CRC32();
+                crc.update(content);
+                entry.setCrc(crc.getValue());
+            }
+            out.putNextEntry(entry);
+            out.write(content);
+            out.closeEntry();
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] content(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            bytes[i] = (byte) (i % 5 + size);
+        }
+        return bytes;
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,112 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
+
+public class ControlFlowGraphTest extends TestCase {
+    /**
+     * int m(int n) { int s = 0; while (n > 0) { if (n % 2 == 0) s += n; n--; } return s; }
+     */
+    public void testLoop() {
+        MethodNode method = new MethodNode(Opcodes.ACC_STATIC, "m", "(I)I", null, null);
+        Label head = new Label();
+        Label odd = new Label();
+        Label exit = new Label();
+        method.visitInsn(Opcodes.ICONST_0);
+        method.visitVarInsn(Opcodes.ISTORE, 1);
+        method.visitLabel(head);
+        method.visitVarInsn(Opcodes.ILOAD, 0);
+        method.visitJumpInsn(Opcodes.IFLE, exit);
+        method.visitVarInsn(Opcodes.ILOAD, 0);
+        method.visitInsn(Opcodes.ICONST_2);
+        method.visitInsn(Opcodes.IREM);
+        method.visitJumpInsn(Opcodes.IFNE, odd);
+        method.visitIincInsn(1, 1);
+        method.visitLabel(odd);
+        method.visitIincInsn(0, -1);
+        method.visitJumpInsn(Opcodes.GOTO, head);
+        method.visitLabel(exit);
+        method.visitVarInsn(Opcodes.ILOAD, 1);
+        method.visitInsn(Opcodes.IRETURN);
+
+        ControlFlowGraph cfg = ControlFlowGraph.build(method);
+        assertNotNull(cfg);
+        assertTrue(cfg.isReducible());
+        // entry, head, test, even, odd, exit
+        assertEquals(6, cfg.getBlockCount());
+        assertTrue(cfg.isLoopHeader(1));
+        assertFalse(cfg.isLoopHeader(0));
+        assertFalse(cfg.isLoopHeader(4));
+        assertTrue(cfg.isInLoop(3, 1));
+        assertTrue(cfg.isInLoop(4, 1));
+        assertFalse(cfg.isInLoop(5, 1));
+        assertEquals(1, cfg.getIdom(2));
+        assertEquals(2, cfg.getIdom(3));
+        assertEquals(2, cfg.getIdom(4));
+        assertEquals(1, cfg.getIdom(5));
+        assertTrue(cfg.dominates(1, 4));
+        assertFalse(cfg.dominates(3, 4));
+        assertEquals(2, cfg.getForwardPredecessors(4));
+    }
+
+    public void testIrreducible() {
+        MethodNode method = new MethodNode(Opcodes.ACC_STATIC, "m", "(I)V", null, null);
+        Label a = new Label();
+        Label b = new Label();
+        method.visitVarInsn(Opcodes.ILOAD, 0);
+        method.visitJumpInsn(Opcodes.IFEQ, b);
+        method.visitLabel(a);
+        method.visitIincInsn(0, -1);
+        method.visitLabel(b);
+        method.visitVarInsn(Opcodes.ILOAD, 0);
+        method.visitJumpInsn(Opcodes.IFNE, a);
+        method.visitInsn(Opcodes.RETURN);
+
+        ControlFlowGraph cfg = ControlFlowGraph.build(method);
+        assertNotNull(cfg);
+        assertFalse(cfg.isReducible());
+    }
+
+    public void testHandlerCoveringItself() {
+        MethodNode method = new MethodNode(Opcodes.ACC_STATIC, "m", "()V", null, null);
+        Label start = new Label();
+        Label end = new Label();
+        Label handler = new Label();
+        Label handlerEnd = new Label();
+        method.visitTryCatchBlock(start, end, handler, null);
+        method.visitTryCatchBlock(handler, handlerEnd, handler, null);
+        method.visitLabel(start);
+        method.visitInsn(Opcodes.NOP);
+        method.visitLabel(end);
+        method.visitInsn(Opcodes.RETURN);
+        method.visitLabel(handler);
+        method.visitVarInsn(Opcodes.ASTORE, 0);
+        method.visitLabel(handlerEnd);
+        method.visitVarInsn(Opcodes.ALOAD, 0);
+        method.visitInsn(Opcodes.ATHROW);
+
+        ControlFlowGraph cfg = ControlFlowGraph.build(method);
+        assertNotNull(cfg);
+        assertTrue(cfg.isReducible());
+        for (int block = 0; block < cfg.getBlockCount(); ++block) {
+            assertFalse(cfg.isLoopHeader(block));
+            if (cfg.isHandler(block)) {
+                assertNull(cfg.getHandlerType(block));
+            }
+        }
+    }
+
+    public void testSubroutines() {
+        MethodNode method = new MethodNode(Opcodes.ACC_STATIC, "m", "()V", null, null);
+        Label subroutine = new Label();
+        method.visitJumpInsn(Opcodes.JSR, subroutine);
+        method.visitInsn(Opcodes.RETURN);
+        method.visitLabel(subroutine);
+        method.visitVarInsn(Opcodes.ASTORE, 0);
+        method.visitVarInsn(Opcodes.RET, 0);
+
+        assertNull(ControlFlowGraph.build(method));
+    }
+}
@@ -0,0 +1,86 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class DaemonTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("daemon", "");
+        assertTrue(dir.delete());
+        assertTrue(new File(dir, "p").mkdirs());
+        write("p/A", TestClasses.classFile("p/A"));
+        write("p/B", TestClasses.classWithBrokenMethod("p/B"));
+    }
+
+    @Override
+    protected void tearDown() {
+        new File(dir, "p/A.class").delete();
+        new File(dir, "p/B.class").delete();
+        new File(dir, "p").delete();
+        dir.delete();
+    }
+
+    public void testProtocol() throws IOException {
+        Daemon daemon = new Daemon(null, null, 1024 * 1024);
+        String answer = serve(daemon, "decompile " + dir + " p.A\n"
+                + "decompile " + dir + " p/A\n"
+                + "decompile " + dir + " p.Missing\n"
+                + "frobnicate\n"
+                + "quit\n"
+                + "stats\n");
+
+        String[] lines = answer.split("\n");
+        assertTrue(answer, lines[0].startsWith("ok "));
+        int count = Integer.parseInt(lines[0].substring("ok ".length()));
+        assertEquals("package p;", lines[1]);
+        assertEquals(lines[0], lines[count + 1]);
+        assertEquals("error java.io.IOException: Class not found: p.Missing", lines[2 * count + 2]);
+        assertEquals("error unknown request: frobnicate", lines[2 * count + 3]);
+        // nothing is answered after quit
+        assertEquals(2 * count + 4, lines.length);
+        assertTrue(daemon.stats(), daemon.stats().startsWith("requests: 3, memory hits: 1,"));
+        assertTrue(daemon.stats(), daemon.stats().contains("failures: 0 classes stubbed, 0 methods listed"));
+    }
+
+    public void testFailures() throws IOException {
+        Daemon daemon = new Daemon(null, null, 1024 * 1024);
+        String source = daemon.decompile(dir.getPath(), "p.B");
+        assertTrue(source, source.contains("decompilation failed"));
+        // a source from memory is not counted again
+        daemon.decompile(dir.getPath(), "p.B");
+        assertTrue(daemon.stats(), daemon.stats().contains("failures: 0 classes stubbed, 1 methods listed"));
+    }
+
+    public void testMemoryLimit() throws IOException {
+        Daemon daemon = new Daemon(null, null, 0);
+        String source = daemon.decompile(dir.getPath(), "p.A");
+        assertEquals(source, daemon.decompile(dir.getPath(), "p.A"));
+        // nothing fits, so nothing is kept
+        assertTrue(daemon.stats(), daemon.stats().contains("memory hits: 0,"));
+        assertTrue(daemon.stats(), daemon.stats().contains("sources in memory: 0,"));
+    }
+
+    private static String serve(Daemon daemon, String requests) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        daemon.serve(new ByteArrayInputStream(requests.getBytes("UTF-8")), out);
+        return out.toString("UTF-8");
+    }
+
+    private void write(String name, byte[] classFile) throws IOException {
+        OutputStream out = new FileOutputStream(new File(dir, name + ".class"));
+        try {
+            out.write(classFile);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+
+public class DecompileCacheTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("cache", "");
+        assertTrue(dir.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(dir);
+    }
+
+    public void testHitAndMiss() throws Exception {
+        DecompileCache cache = new DecompileCache(dir, 1024 * 1024);
+        byte[] bytes = {1, 2, 3, 4};
+        String key = cache.key(bytes, bytes.length);
+        assertFalse(key.equals(cache.key(bytes, 3)));
+
+        assertNull(cache.get(key));
+        cache.put(key, new StringBuilder("class A {}\n"));
+        assertEquals("class A {}\n", cache.get(key));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        DecompileCache reopened = new DecompileCache(dir, 1024 * 1024);
+        assertEquals(cache.getSize(), reopened.getSize());
+        assertEquals("class A {}\n", reopened.get(key));
+    }
+
+    public void testHierarchyInKey() throws Exception {
+        DecompileCache cache = new DecompileCache(dir, 1024 * 1024);
+        byte[] bytes = {1, 2, 3, 4};
+        File classes = new File(dir, "classes");
+        assertTrue(classes.mkdirs());
+        File classFile = new File(classes, "A.class");
+        assertTrue(classFile.createNewFile());
+        ClassPath classPath = new ClassPath();
+        classPath.add(classes);
+        byte[] fingerprint = new ClassHierarchy(classPath).getFingerprint();
+        assertFalse(cache.key(bytes, 4).equals(cache.key(bytes, 4, fingerprint)));
+
+        // the same class against a class path that has changed since
+        assertTrue(classFile.setLastModified(classFile.lastModified() - 10000));
+        ClassPath changed = new ClassPath();
+        changed.add(classes);
+        byte[] changedFingerprint = new ClassHierarchy(changed).getFingerprint();
+        assertFalse(cache.key(bytes, 4, fingerprint).equals(cache.key(bytes, 4, changedFingerprint)));
+
+        assertNull(new ClassHierarchy(new ClassLookup(new ArrayList<File>(), dir)).getFingerprint());
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        DecompileCache cache = new DecompileCache(dir, 250);
+        String source = new String(new char[100]).replace('\0', 'x');
+        String[] keys = new String[3];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = cache.key(new byte[]{(byte) i}, 1);
+        }
+        cache.put(keys[0], source);
+        cache.put(keys[1], source);
+        new File(new File(dir, keys[0].substring(0, 2)), keys[0].substring(2) + ".java").setLastModified(0);
+        cache.put(keys[2], source);
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(200, cache.getSize());
+        assertNull(cache.get(keys[0]));
+        assertEquals(source, cache.get(keys[1]));
+        assertEquals(source, cache.get(keys[2]));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
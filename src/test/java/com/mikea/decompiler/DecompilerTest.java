@@ -0,0 +1,103 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class DecompilerTest extends TestCase {
+    private final Decompiler decompiler = new Decompiler();
+
+    public void testBytes() throws IOException {
+        String source = decompiler.decompile(TestClasses.classFile("p/A")).toString();
+        assertTrue(source, source.startsWith("package p;\n"));
+        assertTrue(source, source.contains("class A {\n"));
+        assertTrue(source, source.contains("void m() {\nreturn;\n}"));
+
+        ByteBuffer buffer = ByteBuffer.wrap(TestClasses.classFile("p/A"));
+        assertEquals(source, decompiler.decompile(buffer).toString());
+        assertEquals(0, buffer.position());
+    }
+
+    public void testAppendable() throws IOException {
+        byte[] bytes = TestClasses.classFile("p/A");
+        StringBuilder target = new StringBuilder("// header\n");
+        decompiler.decompile(bytes, 0, bytes.length, target);
+        assertEquals("// header\n" + decompiler.decompile(bytes), target.toString());
+    }
+
+    public void testNotAClass() throws IOException {
+        try {
+            decompiler.decompile(new byte[]{1, 2, 3});
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testTakeFailures() throws IOException {
+        decompiler.decompile(TestClasses.classWithBrokenMethod("p/A"));
+        FailureReport failures = decompiler.takeFailures();
+        assertEquals(1, failures.getFailures().size());
+        assertTrue(decompiler.getFailures().isEmpty());
+
+        decompiler.decompile(TestClasses.classFile("p/A"));
+        assertTrue(decompiler.takeFailures().isEmpty());
+        assertEquals(1, failures.getFailures().size());
+    }
+
+    public void testJar() throws IOException {
+        Map<String, String> sources = decompileJar(decompiler.threads(2));
+        assertEquals(2, sources.size());
+        assertTrue(sources.get("p.B"), sources.get("p.B").contains("class B {\n"));
+        assertTrue(decompiler.getFailures().isEmpty());
+    }
+
+    public void testThreadPerClass() throws IOException {
+        Map<String, String> sources = decompileJar(decompiler.threads(2).threadPerClass(true));
+        assertEquals(decompileJar(new Decompiler().threads(1)), sources);
+        assertEquals(2, sources.size());
+    }
+
+    /**
+     * Decompiles a jar of p.A, p.B and q.C, leaving out package q.
+     */
+    private static Map<String, String> decompileJar(Decompiler decompiler) throws IOException {
+        File jar = File.createTempFile("decompiler", ".jar");
+        try {
+            ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+            try {
+                for (String name : new String[]{"p/A", "p/B", "q/C"}) {
+                    out.putNextEntry(new ZipEntry(name + ".class"));
+                    out.write(TestClasses.classFile(name));
+                    out.closeEntry();
+                }
+            } finally {
+                out.close();
+            }
+
+            final Map<String, String> sources = new ConcurrentHashMap<String, String>();
+            decompiler.filter(new ClassFilter().excludeGlob("q.**")).decompile(Arrays.asList(jar), new SourceSink() {
+                @Override
+                public void write(String className, CharSequence source) {
+                    sources.put(className, source.toString());
+                }
+
+                @Override
+                public void close() {
+                    fail();
+                }
+            });
+            return sources;
+        } finally {
+            jar.delete();
+        }
+    }
+}
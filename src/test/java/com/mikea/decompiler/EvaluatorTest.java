@@ -0,0 +1,150 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+import org.objectweb.asm.Type;
+
+public class EvaluatorTest extends TestCase {
+    private static final Template ADD = Template.compile("{0} + {1}");
+    private static final Template SUB = Template.compile("{0} - {1}");
+    private static final Template MUL = Template.compile("{0} * {1}");
+    private static final Template ARRAY_LOAD = Template.compile("{0}[{1}]", Evaluator.READS_HEAP);
+    private static final Template NEW = Template.compile("new {0}", Evaluator.UNINITIALIZED);
+    private static final Template STORE = Template.compile("{1} = {0}", Evaluator.WRITES_LOCAL);
+    private static final Template IINC = Template.compile("{0}+={1}", Evaluator.WRITES_LOCAL);
+    private static final Template PUTFIELD = Template.compile("{0}.{2} = {1}", Evaluator.WRITES_HEAP);
+    private static final Template RETURN_VALUE = Template.compile("return {0}");
+
+    private JavaSourceWriter writer;
+    private Evaluator evaluator;
+
+    @Override
+    protected void setUp() throws Exception {
+        writer = new JavaSourceWriter("A", new SourceSink() {
+            @Override
+            public void write(String className, CharSequence source) {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        evaluator = new Evaluator(writer);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        writer.close();
+    }
+
+    public void testExpressionTree() {
+        // x = (a + b) * c[i] - d
+        local("a");
+        local("b");
+        evaluator.expr2(ADD, Type.INT_TYPE);
+        local("c");
+        local("i");
+        evaluator.expr2(ARRAY_LOAD, Type.INT_TYPE);
+        evaluator.expr2(MUL, Type.INT_TYPE);
+        local("d");
+        evaluator.expr2(SUB, Type.INT_TYPE);
+        evaluator.stmt(STORE, 1, "x");
+        assertEquals("x = (a + b) * c[i] - d;\n", source());
+    }
+
+    public void testRightOperand() {
+        local("a");
+        local("b");
+        local("c");
+        evaluator.expr2(SUB, Type.INT_TYPE);
+        evaluator.expr2(SUB, Type.INT_TYPE);
+        evaluator.stmt1(RETURN_VALUE);
+        assertEquals("return a - (b - c);\n", source());
+    }
+
+    public void testStoreToReadVariable() {
+        // y = i++ + j
+        local("i");
+        evaluator.stmt(IINC, 0, "i", "1");
+        local("j");
+        evaluator.expr2(ADD, Type.INT_TYPE);
+        evaluator.stmt(STORE, 1, "y");
+        assertEquals("__temp_0 = i;\ni+=1;\ny = __temp_0 + j;\n", source());
+    }
+
+    public void testStoreToOtherVariable() {
+        local("i");
+        evaluator.load("1", Type.INT_TYPE);
+        evaluator.stmt(STORE, 1, "j");
+        evaluator.stmt1(RETURN_VALUE);
+        assertEquals("j = 1;\nreturn i;\n", source());
+    }
+
+    public void testCallsKeepOrder() {
+        evaluator.staticCall("f", 0, Type.INT_TYPE);
+        evaluator.staticCall("g", 0, Type.INT_TYPE);
+        evaluator.swap();
+        evaluator.expr2(SUB, Type.INT_TYPE);
+        evaluator.stmt1(RETURN_VALUE);
+        assertEquals("__temp_0 = f();\n__temp_1 = g();\nreturn __temp_1 - __temp_0;\n", source());
+    }
+
+    public void testHeapWriteBeforeRead() {
+        local("o");
+        evaluator.getField("A", "f", Type.INT_TYPE);
+        local("o");
+        evaluator.load("1", Type.INT_TYPE);
+        evaluator.stmt(PUTFIELD, 2, "f");
+        evaluator.stmt1(RETURN_VALUE);
+        assertEquals("__temp_0 = o.f;\no.f = 1;\nreturn __temp_0;\n", source());
+    }
+
+    public void testDiscardedCall() {
+        evaluator.staticCall("f", 0, Type.INT_TYPE);
+        evaluator.pop();
+        local("a");
+        evaluator.pop();
+        assertEquals("f();\n", source());
+    }
+
+    public void testDuplicatedCall() {
+        local("o");
+        evaluator.virtualCall("next", 0, Type.INT_TYPE);
+        evaluator.dup();
+        evaluator.expr2(MUL, Type.INT_TYPE);
+        evaluator.stmt1(RETURN_VALUE);
+        assertEquals("__temp_0 = o.next();\nreturn __temp_0 * __temp_0;\n", source());
+    }
+
+    public void testConstructor() {
+        evaluator.expr(NEW, Type.getObjectType("B"), 0, "B");
+        evaluator.dup();
+        local("a");
+        evaluator.constructorCall("super", 1);
+        evaluator.virtualCall("run", 0, Type.VOID_TYPE);
+        assertEquals("new B(a).run();\n", source());
+    }
+
+    public void testSpill() {
+        local("a");
+        local("b");
+        evaluator.swap();
+        Type[] types = evaluator.spill();
+        assertEquals(2, types.length);
+        assertEquals("__stack_0 = b;\n__stack_1 = a;\n", source());
+
+        // the slots are reassigned, values reading them must not see that
+        evaluator.swap();
+        evaluator.spill();
+        assertEquals("__stack_0 = b;\n__stack_1 = a;\n"
+                + "__temp_0 = __stack_1;\n__temp_1 = __stack_0;\n__stack_0 = __temp_0;\n__stack_1 = __temp_1;\n",
+                source());
+    }
+
+    private void local(String name) {
+        evaluator.load(name, Type.INT_TYPE, Evaluator.READS_LOCALS);
+    }
+
+    private String source() {
+        return writer.getSource().toString();
+    }
+}
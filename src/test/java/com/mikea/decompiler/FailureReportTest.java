@@ -0,0 +1,97 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FailureReportTest extends TestCase {
+    private final Map<String, String> sources = new HashMap<String, String>();
+    private final SourceSink sink = new SourceSink() {
+        @Override
+        public void write(String className, CharSequence source) {
+            sources.put(className, source.toString());
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    public void testFailingMethod() throws IOException {
+        FailureReport failures = new FailureReport();
+        App.decompile("p.A", buffer(TestClasses.classWithBrokenMethod("p/A")), sink, null, null, null, failures);
+
+        String source = sources.get("p.A");
+        assertTrue(source, source.contains("decompilation failed"));
+        // the other method is still decompiled
+        assertTrue(source, source.contains("void good() {\nreturn;\n}"));
+        assertEquals(1, failures.getFailures().size());
+        assertEquals(0, failures.getClassFailureCount());
+        assertEquals(new MethodKey("broken", "()V"), failures.getFailures().get(0).getMethod());
+    }
+
+    public void testFailingClass() throws IOException {
+        FailureReport failures = new FailureReport();
+        App.decompile("p.B", corruptClass(), sink, null, null, null, failures);
+
+        String source = sources.get("p.B");
+        assertTrue(source, source.startsWith("package p;\n// decompilation failed: "));
+        assertTrue(source, source.endsWith("class B {\n}\n"));
+        assertEquals(1, failures.getClassFailureCount());
+        assertTrue(failures.toJson(), failures.toJson().contains("{\"class\": \"p.B\", \"method\": null, "));
+    }
+
+    public void testFailingCache() throws IOException {
+        File dir = File.createTempFile("cache", "");
+        assertTrue(dir.delete());
+        try {
+            DecompileCache cache = new DecompileCache(dir, 1024 * 1024);
+            ClassBuffer buffer = buffer(TestClasses.classFile("p/C"));
+            // a file where the bucket directory of the class should go
+            String key = cache.key(buffer.bytes(), buffer.length());
+            assertTrue(new File(dir, key.substring(0, 2)).createNewFile());
+
+            FailureReport failures = new FailureReport();
+            App.decompile("p.C", buffer, sink, cache, null, null, failures);
+
+            String source = sources.get("p.C");
+            assertTrue(source, source.contains("void m() {\nreturn;\n}"));
+            assertEquals(1, failures.getFailures().size());
+            assertEquals(IOException.class.getName(), failures.getFailures().get(0).getException());
+        } finally {
+            for (File file : dir.listFiles()) {
+                assertTrue(file.delete());
+            }
+            assertTrue(dir.delete());
+        }
+    }
+
+    public void testWithoutReport() throws IOException {
+        try {
+            App.decompile("p.B", corruptClass(), sink, null, null, null, null);
+            fail();
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    private static ClassBuffer buffer(byte[] bytes) {
+        ClassBuffer buffer = new ClassBuffer();
+        System.arraycopy(bytes, 0, buffer.data(bytes.length), 0, bytes.length);
+        buffer.setLength(bytes.length);
+        return buffer;
+    }
+
+    /**
+     * A class claiming more constants than it has.
+     */
+    private static ClassBuffer corruptClass() {
+        byte[] bytes = TestClasses.classWithBrokenMethod("p/A");
+        bytes[8] = (byte) 0xFF;
+        bytes[9] = (byte) 0xFF;
+        return buffer(bytes);
+    }
+}
@@ -0,0 +1,112 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class JarIndexTest extends TestCase {
+    private File jar;
+    private File indexDir;
+
+    @Override
+    protected void setUp() throws IOException {
+        jar = File.createTempFile("index", ".jar");
+        indexDir = File.createTempFile("index", "");
+        assertTrue(indexDir.delete());
+        writeJar(jar, "p/B", "p/A", "p/A$1", "p/A$Inner", "p/AB", "BOOT-INF/classes/q/C");
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = indexDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        indexDir.delete();
+        jar.delete();
+    }
+
+    public void testFind() throws IOException {
+        JarIndex index = JarIndex.open(jar, indexDir);
+        try {
+            assertTrue(index.isBuilt());
+            assertEquals(6, index.size());
+            assertEquals("p/A.class", index.find("p/A.class").getName());
+            assertEquals("q/C.class", index.find("q/C.class").getName());
+            assertNull(index.find("p/A"));
+            assertNull(index.find("p/Z.class"));
+            assertEquals(Arrays.asList("p/A$1.class", "p/A$Inner.class"), names(index.findAll("p/A$")));
+
+            ClassBuffer buffer = new ClassBuffer();
+            index.find("p/B.class").read(buffer);
+            assertEquals(0xCA, buffer.bytes()[0] & 0xff);
+        } finally {
+            index.close();
+        }
+    }
+
+    public void testReopen() throws IOException {
+        JarIndex.open(jar, indexDir).close();
+        JarIndex index = JarIndex.open(jar, indexDir);
+        try {
+            assertFalse(index.isBuilt());
+            assertEquals("p/AB.class", index.find("p/AB.class").getName());
+        } finally {
+            index.close();
+        }
+
+        writeJar(jar, "p/D");
+        assertTrue(jar.setLastModified(jar.lastModified() + 2000));
+        index = JarIndex.open(jar, indexDir);
+        try {
+            assertTrue(index.isBuilt());
+            assertNull(index.find("p/A.class"));
+            assertNotNull(index.find("p/D.class"));
+        } finally {
+            index.close();
+        }
+    }
+
+    public void testLookup() throws IOException {
+        ClassLookup lookup = new ClassLookup(Arrays.asList(jar), indexDir);
+        try {
+            assertEquals(Arrays.asList("p/A.class", "p/A$1.class", "p/A$Inner.class"),
+                    names(lookup.findWithNested("p/A")));
+            assertTrue(lookup.findWithNested("p/Z").isEmpty());
+        } finally {
+            lookup.close();
+        }
+    }
+
+    private static List<String> names(List<ClassEntry> entries) {
+        List<String> result = new ArrayList<String>();
+        for (ClassEntry entry : entries) {
+            result.add(entry.getName());
+        }
+        return result;
+    }
+
+    private static void writeJar(File file, String... classes) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (String name : classes) {
+                String internalName = name.startsWith("BOOT-INF/classes/")
+                        ? name.substring("BOOT-INF/classes/".length()) : name;
+                out.putNextEntry(new ZipEntry(name + ".class"));
+                out.write(TestClasses.classFile(internalName));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
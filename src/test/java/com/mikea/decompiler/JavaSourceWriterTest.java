@@ -0,0 +1,42 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class JavaSourceWriterTest extends TestCase {
+    private final SourceSink sink = new SourceSink() {
+        @Override
+        public void write(String className, CharSequence source) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    public void testPoolIsBounded() throws IOException {
+        int max = 2 * Runtime.getRuntime().availableProcessors();
+        List<JavaSourceWriter> writers = new ArrayList<JavaSourceWriter>();
+        for (int i = 0; i < max + 10; i++) {
+            writers.add(new JavaSourceWriter("A", sink));
+        }
+        for (JavaSourceWriter writer : writers) {
+            writer.close();
+        }
+        assertEquals(max, JavaSourceWriter.pooledBuffers());
+    }
+
+    public void testLargeBufferIsDropped() throws IOException {
+        JavaSourceWriter writer = new JavaSourceWriter("A", sink);
+        int pooled = JavaSourceWriter.pooledBuffers();
+        char[] line = new char[64 * 1024];
+        for (int i = 0; i < 32; i++) {
+            writer.writeLine(new String(line));
+        }
+        writer.close();
+        assertEquals(pooled, JavaSourceWriter.pooledBuffers());
+    }
+}
@@ -0,0 +1,119 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.MethodNode;
+
+public class LocalTypesTest extends TestCase {
+    private final ClassHierarchy hierarchy = new ClassHierarchy(new ClassPath());
+
+    public void testMerge() {
+        LocalTypes types = localTypes(method(false));
+        // the local assigned an ArrayList on one branch and a LinkedList on the other
+        assertEquals(Type.getObjectType("java/util/AbstractList"), types.getType(1, 3));
+        assertEquals(Type.getObjectType("java/lang/String"), types.getType(2, 3));
+        assertNull(types.getType(0, 3));
+        assertNull(types.getType(1, 1));
+    }
+
+    public void testStackMap() {
+        LocalTypes types = localTypes(method(true));
+        // as declared by the frame at the join
+        assertEquals(Type.getObjectType("java/util/List"), types.getType(1, 3));
+        assertEquals(Type.getObjectType("java/lang/String"), types.getType(2, 3));
+    }
+
+    public void testMethodInfo() {
+        MethodNode method = method(false);
+        MethodInfo info = new MethodInfo("p/C", method.maxLocals);
+        assertEquals(Type.getObjectType("java/lang/Object"), info.getVarType(1, 3));
+        info.setLocalTypes(localTypes(method));
+        assertEquals(Type.getObjectType("java/util/AbstractList"), info.getVarType(1, 3));
+    }
+
+    public void testPrimitives() {
+        // reads a boolean argument, a long and a double, without a local variable table
+        MethodNode method = new MethodNode(Opcodes.ACC_STATIC, "m", "(Z)V", null, null);
+        method.visitCode();
+        method.visitInsn(Opcodes.LCONST_1);
+        method.visitVarInsn(Opcodes.LSTORE, 1);
+        method.visitLabel(new Label());
+        method.visitVarInsn(Opcodes.ILOAD, 0);
+        method.visitInsn(Opcodes.POP);
+        method.visitVarInsn(Opcodes.LLOAD, 1);
+        method.visitInsn(Opcodes.L2D);
+        method.visitVarInsn(Opcodes.DSTORE, 3);
+        method.visitLabel(new Label());
+        method.visitVarInsn(Opcodes.DLOAD, 3);
+        method.visitInsn(Opcodes.POP2);
+        method.visitInsn(Opcodes.RETURN);
+        method.visitMaxs(2, 5);
+        method.visitEnd();
+
+        LocalTypes types = localTypes(method);
+        assertEquals(Type.INT_TYPE, types.getType(0, 1));
+        assertEquals(Type.LONG_TYPE, types.getType(1, 1));
+        assertEquals(Type.DOUBLE_TYPE, types.getType(3, 2));
+        assertNull(types.getType(3, 1));
+
+        MethodInfo info = new MethodInfo("p/C", method.maxLocals);
+        info.setLocalTypes(types);
+        assertEquals(Type.LONG_TYPE, info.getVarType(1, 1));
+    }
+
+    private LocalTypes localTypes(MethodNode method) {
+        return new LocalTypes(method, "p/C", ControlFlowGraph.build(method), hierarchy);
+    }
+
+    /**
+     * static void m(boolean c) {
+     *     List x = c ? new ArrayList() : new LinkedList();
+     *     x.hashCode();
+     *     String s = "a";
+     *     s.length();
+     * }
+     */
+    private static MethodNode method(boolean frames) {
+        MethodNode mv = new MethodNode(Opcodes.ACC_STATIC, "m", "(Z)V", null, null);
+        Label start = new Label();
+        Label otherwise = new Label();
+        Label join = new Label();
+        mv.visitCode();
+        mv.visitLabel(start);
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitJumpInsn(Opcodes.IFEQ, otherwise);
+        newInstance(mv, "java/util/ArrayList");
+        mv.visitVarInsn(Opcodes.ASTORE, 1);
+        mv.visitJumpInsn(Opcodes.GOTO, join);
+        mv.visitLabel(otherwise);
+        if (frames) {
+            mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+        }
+        newInstance(mv, "java/util/LinkedList");
+        mv.visitVarInsn(Opcodes.ASTORE, 1);
+        mv.visitLabel(join);
+        if (frames) {
+            mv.visitFrame(Opcodes.F_APPEND, 1, new Object[]{"java/util/List"}, 0, null);
+        }
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Object", "hashCode", "()I");
+        mv.visitInsn(Opcodes.POP);
+        mv.visitLdcInsn("a");
+        mv.visitVarInsn(Opcodes.ASTORE, 2);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "length", "()I");
+        mv.visitInsn(Opcodes.POP);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(2, 3);
+        mv.visitEnd();
+        return mv;
+    }
+
+    private static void newInstance(MethodNode mv, String type) {
+        mv.visitTypeInsn(Opcodes.NEW, type);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, type, "<init>", "()V");
+    }
+}
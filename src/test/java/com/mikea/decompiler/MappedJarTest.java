@@ -0,0 +1,113 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class MappedJarTest extends TestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("mapped", ".jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            out.putNextEntry(new ZipEntry("a/"));
+            out.closeEntry();
+
+            out.putNextEntry(new ZipEntry("a/Deflated.class"));
+            out.write(content(1000));
+            out.closeEntry();
+
+            byte[] stored = content(100);
+            ZipEntry storedEntry = new ZipEntry("a/Stored.class");
+            storedEntry.setMethod(ZipEntry.STORED);
+            storedEntry.setSize(stored.length);
+            CRC32 crc = new CRC32();
+            crc.update(stored);
+            storedEntry.setCrc(crc.getValue());
+            out.putNextEntry(storedEntry);
+            out.write(stored);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testEntries() throws IOException {
+        MappedJar jar = new MappedJar(file);
+        try {
+            List<MappedJar.Entry> entries = jar.entries();
+            assertEquals(3, entries.size());
+            assertEquals("a/", entries.get(0).getName());
+            assertTrue(entries.get(0).isDirectory());
+            assertEquals("a/Deflated.class", entries.get(1).getName());
+            assertEquals("a/Stored.class", entries.get(2).getName());
+        } finally {
+            jar.close();
+        }
+    }
+
+    public void testRead() throws IOException {
+        MappedJar jar = new MappedJar(file);
+        ClassBuffer buffer = ClassBuffer.acquire();
+        try {
+            jar.read(jar.entries().get(1), buffer);
+            assertTrue(Arrays.equals(content(1000), Arrays.copyOf(buffer.bytes(), buffer.length())));
+            jar.read(jar.entries().get(2), buffer);
+            assertTrue(Arrays.equals(content(100), Arrays.copyOf(buffer.bytes(), buffer.length())));
+        } finally {
+            ClassBuffer.release(buffer);
+            jar.close();
+        }
+    }
+
+    public void testPrefixed() throws IOException {
+        // e.g. a launcher script in front of the jar, with offsets left as they were
+        File prefixed = File.createTempFile("prefixed", ".jar");
+        try {
+            FileOutputStream out = new FileOutputStream(prefixed);
+            try {
+                out.write("#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes("UTF-8"));
+                out.write(Files.readAllBytes(file.toPath()));
+            } finally {
+                out.close();
+            }
+            MappedJar jar = new MappedJar(prefixed);
+            ClassBuffer buffer = ClassBuffer.acquire();
+            try {
+                assertEquals(3, jar.entries().size());
+                jar.read(jar.entries().get(1), buffer);
+                assertTrue(Arrays.equals(content(1000), Arrays.copyOf(buffer.bytes(), buffer.length())));
+                jar.read(jar.entries().get(2), buffer);
+                assertTrue(Arrays.equals(content(100), Arrays.copyOf(buffer.bytes(), buffer.length())));
+            } finally {
+                ClassBuffer.release(buffer);
+                jar.close();
+            }
+        } finally {
+            prefixed.delete();
+        }
+    }
+
+    private static byte[] content(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            bytes[i] = (byte) (i % 7);
+        }
+        return bytes;
+    }
+}
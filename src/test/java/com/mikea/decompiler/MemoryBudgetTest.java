@@ -0,0 +1,79 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class MemoryBudgetTest extends TestCase {
+    public void testLimit() {
+        MemoryBudget memory = new MemoryBudget(100);
+        assertTrue(memory.tryAcquire(60));
+        assertFalse(memory.tryAcquire(60));
+        assertTrue(memory.tryAcquire(40));
+        memory.release(100);
+        // larger than the whole budget, but nothing else is held
+        assertTrue(memory.tryAcquire(500));
+        assertFalse(memory.tryAcquire(1));
+        memory.release(500);
+        assertEquals(0, memory.getUsed());
+        assertEquals(500, memory.getPeak());
+    }
+
+    public void testUnlimited() {
+        MemoryBudget memory = new MemoryBudget(0);
+        assertTrue(memory.tryAcquire(Long.MAX_VALUE / 2));
+        assertTrue(memory.tryAcquire(Long.MAX_VALUE / 2));
+    }
+
+    /**
+     * Slots completed in reverse order under a budget that holds one source at a time
+     * still reach the delegate in order, and do not wait for each other forever.
+     */
+    public void testOrderedSinkUnderPressure() throws Exception {
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        MemoryBudget memory = new MemoryBudget(16);
+        final OrderedSink orderedSink = new OrderedSink(new SourceSink() {
+            @Override
+            public void write(String className, CharSequence source) {
+                written.add(className);
+            }
+
+            @Override
+            public void close() {
+            }
+        }, memory);
+
+        int count = 8;
+        Thread[] threads = new Thread[count];
+        final Throwable[] failures = new Throwable[count];
+        for (int i = count - 1; i >= 0; --i) {
+            final int sequence = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SourceSink slot = orderedSink.slot(sequence);
+                        slot.write("C" + sequence, "class C {}");
+                        slot.close();
+                    } catch (Throwable t) {
+                        failures[sequence] = t;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+        orderedSink.finish(count);
+
+        for (int i = 0; i < count; ++i) {
+            assertNull(failures[i]);
+            assertEquals("C" + i, written.get(i));
+        }
+        assertEquals(0, memory.getUsed());
+    }
+}
@@ -0,0 +1,68 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.List;
+
+public class MethodBudgetTest extends TestCase {
+    public void testLargeMethodListed() {
+        MethodBudget budget = new MethodBudget(20, 0);
+        String source = decompile(budget);
+
+        assertTrue(source, source.contains("void small()"));
+        assertTrue(source, source.contains("return 1;"));
+        assertTrue(source, source.contains("// over budget (33 instructions)"));
+        assertTrue(source, source.contains("//     IINC 0 1"));
+        assertFalse(source, source.contains("+="));
+        assertTrue(source, source.trim().endsWith("}"));
+
+        List<MethodBudget.Overrun> overruns = budget.getOverruns();
+        assertEquals(1, overruns.size());
+        assertEquals("A", overruns.get(0).getClassName());
+        assertEquals(new MethodKey("large", "(I)V"), overruns.get(0).getMethod());
+        assertEquals(33, overruns.get(0).getInstructions());
+        assertFalse(overruns.get(0).isTimedOut());
+    }
+
+    public void testUnlimited() {
+        MethodBudget budget = new MethodBudget(0, 0);
+        String source = decompile(budget);
+
+        assertFalse(source, source.contains("over budget"));
+        assertTrue(budget.getOverruns().isEmpty());
+    }
+
+    private static String decompile(MethodBudget budget) {
+        ClassWriter cw = TestClasses.classWriter("A");
+        MethodVisitor small = cw.visitMethod(Opcodes.ACC_STATIC, "small", "()I", null, null);
+        small.visitCode();
+        small.visitInsn(Opcodes.ICONST_1);
+        small.visitInsn(Opcodes.IRETURN);
+        small.visitMaxs(1, 0);
+        small.visitEnd();
+        MethodVisitor large = cw.visitMethod(Opcodes.ACC_STATIC, "large", "(I)V", null, null);
+        large.visitCode();
+        for (int i = 0; i < 32; ++i) {
+            large.visitIincInsn(0, 1);
+        }
+        large.visitInsn(Opcodes.RETURN);
+        large.visitMaxs(0, 1);
+        large.visitEnd();
+
+        JavaSourceWriter writer = new JavaSourceWriter("A", new SourceSink() {
+            @Override
+            public void write(String className, CharSequence source) {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        new DecompileVisitor(writer, budget, null).decompile(new ClassReader(TestClasses.toByteArray(cw)));
+        return writer.getSource().toString();
+    }
+}
@@ -0,0 +1,44 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+import org.objectweb.asm.Type;
+
+public class MethodInfoTest extends TestCase {
+    public void testScopedVariables() {
+        MethodInfo info = new MethodInfo("A", 2);
+        info.addVar(0, "this", Type.getObjectType("A"));
+        info.addVar(1, "i", Type.INT_TYPE, 2, 4);
+        info.addVar(1, "s", Type.getObjectType("java/lang/String"), 5, 7);
+
+        assertEquals("this", info.getVarName(0, 6));
+        // a store initializing a variable precedes its scope
+        assertEquals("i", info.getStoredVarName(1, 1));
+        assertEquals("i", info.getVarName(1, 3));
+        assertEquals("s", info.getStoredVarName(1, 4));
+        assertEquals("s", info.getVarName(1, 6));
+        assertEquals(Type.INT_TYPE, info.getVarType(1, 2));
+
+        // out of every scope, e.g. a compiler temp reusing the slot
+        assertEquals("__local_1", info.getVarName(1, 1));
+        assertEquals("__local_1", info.getStoredVarName(1, 0));
+        assertEquals("__local_1", info.getVarName(1, 4));
+        assertEquals("__local_1", info.getVarName(1, 9));
+        assertEquals("__local_1", info.getStoredVarName(1, 9));
+        assertEquals(Type.getObjectType("java/lang/Object"), info.getVarType(1, 9));
+    }
+
+    public void testNames() {
+        MethodInfo info = new MethodInfo("A", 1);
+        info.addVar(1, "i", Type.INT_TYPE, 0, 2);
+        info.addVar(1, "i", Type.INT_TYPE, 3, 5);
+        info.addVar(2, "j", Type.INT_TYPE, 3, 5);
+        info.addVar(4, "i", Type.INT_TYPE, 3, 5);
+
+        assertEquals("i", info.getVarName(1, 4));
+        assertEquals("i0", info.getVarName(4, 4));
+        assertEquals("__local_2", info.getVarName(2, 0));
+        assertSame(info.getVarName(2, 0), info.getVarName(2, 1));
+        assertEquals("j", info.getStoredVarName(2, 2));
+        assertEquals("__local_7", info.getVarName(7, 0));
+    }
+}
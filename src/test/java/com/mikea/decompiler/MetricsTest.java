@@ -0,0 +1,76 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+public class MetricsTest extends TestCase {
+    @Override
+    protected void setUp() throws Exception {
+        Metrics.reset();
+    }
+
+    public void testCounts() {
+        ClassWriter cw = TestClasses.classWriter("A");
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "m", "(II)I", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitInsn(Opcodes.IADD);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitMaxs(2, 2);
+        mv.visitEnd();
+
+        JavaSourceWriter writer = new JavaSourceWriter("A", new SourceSink() {
+            @Override
+            public void write(String className, CharSequence source) {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        new DecompileVisitor(writer).decompile(new ClassReader(TestClasses.toByteArray(cw)));
+
+        assertEquals(1, Metrics.getClasses());
+        assertEquals(1, Metrics.getMethods());
+        assertEquals(2, Metrics.getOpcodeCount(Opcodes.ILOAD));
+        assertEquals(1, Metrics.getOpcodeCount(Opcodes.IADD));
+        assertEquals(Long.valueOf(2), Metrics.getOpcodeCounts().get("ILOAD"));
+        assertFalse(Metrics.getOpcodeCounts().containsKey("ISTORE"));
+        assertTrue(Metrics.getPhaseNanos(Metrics.Phase.EVALUATE) > 0);
+        assertEquals(0, Metrics.getStackUnderflows());
+
+        String json = Metrics.toJson();
+        assertTrue(json, json.contains("\"classes\": 1,"));
+        assertTrue(json, json.contains("\"IADD\": 1"));
+        assertTrue(json, json.contains("\"evaluate\": "));
+    }
+
+    public void testStackUnderflow() {
+        JavaSourceWriter writer = new JavaSourceWriter("A", new SourceSink() {
+            @Override
+            public void write(String className, CharSequence source) {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        new Evaluator(writer).popValue();
+        assertEquals(1, Metrics.getStackUnderflows());
+    }
+
+    public void testRegister() throws Exception {
+        Metrics.register();
+        Metrics.register();
+        Object classes = ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName(Metrics.OBJECT_NAME), "Classes");
+        assertEquals(Long.valueOf(0), classes);
+    }
+}
@@ -0,0 +1,46 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+public class StructurerTest extends TestCase {
+    /**
+     * static void m(Iterator it, int n) { if (it.hasNext()) {} if (n > 0) {} }
+     */
+    public void testEmptyBranches() {
+        ClassWriter cw = TestClasses.classWriter("A");
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "m", "(Ljava/util/Iterator;I)V", null, null);
+        Label first = new Label();
+        Label second = new Label();
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/Iterator", "hasNext", "()Z");
+        mv.visitJumpInsn(Opcodes.IFEQ, first);
+        mv.visitLabel(first);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitJumpInsn(Opcodes.IFLE, second);
+        mv.visitLabel(second);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(1, 2);
+        mv.visitEnd();
+
+        JavaSourceWriter writer = new JavaSourceWriter("A", new SourceSink() {
+            @Override
+            public void write(String className, CharSequence source) {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        new DecompileVisitor(writer).decompile(new ClassReader(TestClasses.toByteArray(cw)));
+        String source = writer.getSource().toString();
+        // the call is evaluated for its effects, the comparison of a local is not needed
+        assertTrue(source, source.contains(".hasNext()"));
+        assertFalse(source, source.contains(" > 0") || source.contains(" <= 0"));
+    }
+}
@@ -0,0 +1,83 @@
+package com.mikea.decompiler;
+
+import junit.framework.TestCase;
+
+import java.text.MessageFormat;
+
+/**
+ * Templates must render exactly what MessageFormat used to.
+ */
+public class TemplateTest extends TestCase {
+    private static final String[] ARGS = {"a", "b[i]", "c.d()"};
+
+    public void testMatchesMessageFormat() {
+        String[] patterns = {
+                "{0} + {1}",
+                "{0}[{1}]",
+                "({0})[{1}]={2}",
+                "{0} } {1}",
+                "{0} > {1} ? 1 : ({0} == {1} ? 0 : -1) /* TODO */",
+                "return",
+                "-{0}",
+                "switch ({0}) '{'case 1: GOTO L0\ndefault: : GOTO L1\n}",
+                "it''s {0}",
+                "'{0}' is {0}",
+                "{2}{1}{0}",
+        };
+        for (String pattern : patterns) {
+            assertEquals(pattern, MessageFormat.format(pattern, (Object[]) ARGS), render(pattern, ARGS.length));
+        }
+    }
+
+    public void testPrecedence() {
+        String[] args = {"a + b", "-c", "d"};
+        int[] precedences = {11, Template.UNARY, Template.PRIMARY};
+        assertEquals("(a + b) * -c", render("{0} * {1}", args, precedences));
+        assertEquals("a + b + d", render("{0} + {2}", args, precedences));
+        assertEquals("d - (a + b)", render("{2} - {0}", args, precedences));
+        assertEquals("(a + b)[d]", render("{0}[{2}]", args, precedences));
+        assertEquals("d[a + b] = a + b", render("{2}[{0}] = {0}", args, precedences));
+        assertEquals("-(-c)", render("-{1}", args, precedences));
+        assertEquals("((long)(a + b))", render("((long){0})", args, precedences));
+        assertEquals("f(a + b, -c)", render("f({0}, {1})", args, precedences));
+
+        assertEquals(12, Template.compile("{0} * {1}").getPrecedence());
+        assertEquals(Template.UNARY, Template.compile("-{0}").getPrecedence());
+        assertEquals(Template.PRIMARY, Template.compile("{0}.length").getPrecedence());
+        assertEquals(Template.RELATIONAL, Template.compile("{0} instanceof {1}").getPrecedence());
+        assertEquals(Template.UNARY, Template.compile("({1}) {0}").getPrecedence());
+        assertEquals(Template.PRIMARY, Template.compile("{0}.{1}({2})").getPrecedence());
+        assertEquals(2, Template.compile("{0} > {1} ? 1 : ({0} == {1} ? 0 : -1)").getPrecedence());
+    }
+
+    public void testOrdered() {
+        assertTrue(Template.compile("{0} + {1}").isOrdered(2));
+        assertTrue(Template.compile("new {1}[{0}]").isOrdered(1));
+        assertFalse(Template.compile("{1} - {0}").isOrdered(2));
+        assertFalse(Template.compile("{0} > {1} ? 1 : ({0} == {1} ? 0 : -1)").isOrdered(2));
+    }
+
+    public void testMissingArgument() {
+        assertEquals("a = {1}", render("{0} = {1}", 1));
+    }
+
+    public void testUnmatchedBrace() {
+        try {
+            Template.compile("{0");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static String render(String pattern, String[] args, int[] precedences) {
+        StringBuilder sb = new StringBuilder();
+        Template.compile(pattern).render(sb, args, args.length, precedences);
+        return sb.toString();
+    }
+
+    private static String render(String pattern, int argsCount) {
+        StringBuilder sb = new StringBuilder();
+        Template.compile(pattern).render(sb, ARGS, argsCount);
+        return sb.toString();
+    }
+}
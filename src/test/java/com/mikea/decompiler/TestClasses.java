@@ -0,0 +1,75 @@
+package com.mikea.decompiler;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Class files generated for tests.
+ */
+final class TestClasses {
+    private TestClasses() {
+    }
+
+    /**
+     * @param name internal name
+     * @return a writer that has started a public class extending {@code Object}, for the
+     * test to add members to and finish with {@link #toByteArray(ClassWriter)}
+     */
+    static ClassWriter classWriter(String name) {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", new String[0]);
+        return cw;
+    }
+
+    /**
+     * Adds a method that only returns, e.g. {@code static void m() {}}.
+     */
+    static void emptyMethod(ClassWriter cw, int access, String name, String desc) {
+        int locals = Type.getArgumentsAndReturnSizes(desc) >> 2;
+        if ((access & Opcodes.ACC_STATIC) != 0) {
+            locals--;
+        }
+        MethodVisitor mv = cw.visitMethod(access, name, desc, null, null);
+        mv.visitCode();
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, locals);
+        mv.visitEnd();
+    }
+
+    static byte[] toByteArray(ClassWriter cw) {
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * @param name internal name
+     * @return {@code public class name { static void m() {} }}
+     */
+    static byte[] classFile(String name) {
+        ClassWriter cw = classWriter(name);
+        emptyMethod(cw, Opcodes.ACC_STATIC, "m", "()V");
+        return toByteArray(cw);
+    }
+
+    /**
+     * @param name internal name
+     * @return a class with a method {@code broken()} that can not be decompiled and a
+     * method {@code good()} that can
+     */
+    static byte[] classWithBrokenMethod(String name) {
+        ClassWriter cw = classWriter(name);
+        // an array of an element type that does not exist
+        MethodVisitor broken = cw.visitMethod(Opcodes.ACC_STATIC, "broken", "()V", null, null);
+        broken.visitCode();
+        broken.visitInsn(Opcodes.ICONST_1);
+        broken.visitIntInsn(Opcodes.NEWARRAY, 99);
+        broken.visitInsn(Opcodes.POP);
+        broken.visitInsn(Opcodes.RETURN);
+        broken.visitMaxs(1, 0);
+        broken.visitEnd();
+        emptyMethod(cw, Opcodes.ACC_STATIC, "good", "()V");
+        return toByteArray(cw);
+    }
+}